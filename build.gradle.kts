@@ -47,3 +47,47 @@ tasks.register<JavaExec>("runClient") {
     mainClass.set("chat.app.ChatApp")
     classpath = sourceSets["main"].runtimeClasspath
 }
+
+tasks.register<JavaExec>("runConsoleClient") {
+    group = "application"
+    description = "Runs the terminal chat client"
+    mainClass.set("chat.app.ConsoleChatView")
+    classpath = sourceSets["main"].runtimeClasspath
+    standardInput = System.`in`
+}
+
+// Micro-benchmarks live in their own source set so they never ship with the application.
+sourceSets {
+    create("perf") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+tasks.register<JavaExec>("bench") {
+    group = "verification"
+    description = "Runs a benchmark from src/perf, chosen with -Pbench=<SimpleClassName>"
+    val bench = (project.findProperty("bench") as String?) ?: "SnapshotRestoreBench"
+    mainClass.set("chat.perf.$bench")
+    classpath = sourceSets["perf"].runtimeClasspath
+    jvmArgs("-Xms1g", "-Xmx1g")
+}
+
+dependencies {
+    "perfImplementation"(platform("org.junit:junit-bom:5.10.0"))
+    "perfImplementation"("org.junit.jupiter:junit-jupiter")
+    "perfRuntimeOnly"("org.junit.platform:junit-platform-launcher")
+}
+
+// Budget tests against a live server; not part of `check` because they need a quiet machine.
+tasks.register<Test>("perfTest") {
+    group = "verification"
+    description = "Checks server throughput, latency and footprint against src/perf/resources/perf-baseline.properties"
+    testClassesDirs = sourceSets["perf"].output.classesDirs
+    classpath = sourceSets["perf"].runtimeClasspath
+    useJUnitPlatform()
+    maxHeapSize = "1g"
+    (project.findProperty("perfBaseline") as String?)?.let { systemProperty("perf.baseline", file(it).absolutePath) }
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+}
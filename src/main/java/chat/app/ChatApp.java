@@ -4,9 +4,14 @@ import chat.protocol.Protocol;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Swing-based reference UI for the simple chat application.
@@ -29,12 +34,17 @@ public class ChatApp implements ChatView {
 
     private ChatClient client;
     private String nick;
+    private MessageCache history;
 
     private JFrame frame;
     private DefaultListModel<String> usersModel;
-    private JPanel messagesPanel;
+    private MessageListModel<Message> messagesModel;
+    private JList<Message> messagesList;
     private JScrollPane messagesScroll;
     private JTextField messageField;
+    private JLabel typingLabel;
+    /** Users shown as typing, mapped to when their indicator expires ({@link System#currentTimeMillis()}). */
+    private final Map<String, Long> typingUntil = new LinkedHashMap<>();
     private JLabel headerTitle;
     private JLabel headerSubtitle;
 
@@ -50,6 +60,19 @@ public class ChatApp implements ChatView {
     private static final Color FG_ON_PRIMARY = Color.WHITE;
     private static final float BUBBLE_MAX_PARENT_WIDTH = 0.7f;
 
+    /**
+     * Maximum number of messages kept in the message area; older ones are discarded.
+     * Can be overridden with the {@code chat.scrollback} system property.
+     */
+    private static final int SCROLLBACK = Integer.getInteger("chat.scrollback", 2000);
+
+    /**
+     * File that keeps recent messages between runs, shown at startup before logging in.
+     * Can be overridden with the {@code chat.history.file} system property; empty disables it.
+     */
+    private static final String HISTORY_FILE = System.getProperty("chat.history.file",
+            Path.of(System.getProperty("user.home"), ".simplechat", "history.bin").toString());
+
     private void show() {
         frame = new JFrame("Simple Chat");
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
@@ -68,15 +91,43 @@ public class ChatApp implements ChatView {
             @Override
             public void windowClosing(WindowEvent e) {
                 if (client != null) client.disconnect();
+                closeHistory();
             }
         });
 
         frame.setSize(1200, 800);
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
+        client = new ChatClient(this, SwingUtilities::invokeLater);
+        showHistory();
         SwingUtilities.invokeLater(this::connectAndLogin);
     }
 
+    /** Opens the local history and shows its messages, as the user they were received as. */
+    private void showHistory() {
+        if (HISTORY_FILE.isEmpty()) return;
+        try {
+            history = MessageCache.open(Path.of(HISTORY_FILE), MessageCache.DEFAULT_CAPACITY,
+                    MessageCache.DEFAULT_PER_CONVERSATION);
+        } catch (IOException e) {
+            appendSystemMessage("Message history unavailable: " + e.getMessage());
+            return;
+        }
+        nick = history.owner();
+        client.setHistory(history);
+        client.replayHistory();
+    }
+
+    private void closeHistory() {
+        if (history == null) return;
+        client.setHistory(null);
+        try {
+            history.close();
+        } catch (IOException ignored) {
+        }
+        history = null;
+    }
+
     private JPanel usersListPanel() {
         JPanel panel = new JPanel(new BorderLayout(8, 8));
         panel.setBorder(BorderFactory.createEmptyBorder(16, 16, 16, 8));
@@ -148,18 +199,64 @@ public class ChatApp implements ChatView {
     }
 
     private JComponent messagesArea() {
-        messagesPanel = new JPanel();
-        messagesPanel.setLayout(new BoxLayout(messagesPanel, BoxLayout.Y_AXIS));
-        messagesPanel.setBackground(BG_CHAT);
+        messagesModel = new MessageListModel<>(SCROLLBACK);
+        messagesList = new JList<>(messagesModel);
+        messagesList.setCellRenderer(new MessageCell());
+        messagesList.setBackground(BG_CHAT);
+        messagesList.setFocusable(false);
+        messagesList.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+            }
+
+            @Override
+            public void addSelectionInterval(int index0, int index1) {
+            }
+        });
 
-        messagesScroll = new JScrollPane(messagesPanel);
+        messagesScroll = new JScrollPane(messagesList);
         messagesScroll.setBorder(null);
         messagesScroll.getViewport().setBackground(BG_CHAT);
         messagesScroll.getVerticalScrollBar().setUnitIncrement(16);
         messagesScroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        messagesScroll.getViewport().addComponentListener(new ComponentAdapter() {
+            private int lastWidth = -1;
+
+            @Override
+            public void componentResized(ComponentEvent e) {
+                int width = messagesScroll.getViewport().getWidth();
+                if (width == lastWidth) return;
+                lastWidth = width;
+                // JList caches row heights; toggling the fixed height forces them to be re-measured
+                // for the new wrapping width (each message caches its own size per width).
+                messagesList.setFixedCellHeight(1);
+                messagesList.setFixedCellHeight(-1);
+            }
+        });
         return messagesScroll;
     }
 
+    /**
+     * A single entry of the message area. Instances are immutable apart from the cached
+     * rendered size, which is only touched on the EDT.
+     */
+    private static final class Message {
+        final String author;
+        final String text;
+        final boolean isPrivate;
+        final boolean fromMe;
+
+        private int measuredWidth = -1;
+        private Dimension measuredSize;
+
+        Message(String author, String text, boolean isPrivate, boolean fromMe) {
+            this.author = author;
+            this.text = text;
+            this.isPrivate = isPrivate;
+            this.fromMe = fromMe;
+        }
+    }
+
     private static class RoundedPanel extends JPanel {
         private final int radius;
 
@@ -180,62 +277,95 @@ public class ChatApp implements ChatView {
         }
     }
 
-    private JLabel createWrappingLabel(String text, boolean fromMe) {
-        JLabel label = new JLabel("<html>" + text + "</html>");
-        label.setFont(label.getFont().deriveFont(13f));
-        label.setForeground(fromMe ? FG_ON_PRIMARY : FG_PRIMARY);
+    /**
+     * Renders message bubbles for {@link #messagesList}.
+     * <p>
+     * A single instance is reused for every row, so only the rows that are painted cost any
+     * components. Configuring the labels (which parses HTML) happens lazily: JList asks for
+     * the preferred size of every row when laying out, and that size is answered from the
+     * per-message cache; the labels are only filled in when a row is actually painted or
+     * measured for the first time.
+     * </p>
+     */
+    private final class MessageCell extends JPanel implements ListCellRenderer<Message> {
+        private final RoundedPanel bubble = new RoundedPanel(18);
+        private final JLabel dmLabel = new JLabel();
+        private final JLabel authorLabel = new JLabel();
+        private final JLabel textLabel = new JLabel();
+
+        private Message message;
+        private int wrapWidth;
+        private Message configuredMessage;
+        private int configuredWidth = -1;
+
+        MessageCell() {
+            super(new BorderLayout());
+            setOpaque(false);
+            setBorder(BorderFactory.createEmptyBorder(4, 0, 12, 0));
 
-        Dimension natural = label.getPreferredSize();
-        int parentWidth = messagesScroll.getViewport().getWidth();
+            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
+            bubble.setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
 
-        int maxWidth = (int) (parentWidth * BUBBLE_MAX_PARENT_WIDTH);
+            dmLabel.setFont(dmLabel.getFont().deriveFont(11f));
+            authorLabel.setFont(authorLabel.getFont().deriveFont(Font.BOLD, 12f));
+            textLabel.setFont(textLabel.getFont().deriveFont(13f));
 
-        if (natural.width > maxWidth) {
-            String html = "<html><body style='width:" + maxWidth + "px'>" + text + "</body></html>";
-            label.setText(html);
+            bubble.add(dmLabel);
+            bubble.add(authorLabel);
+            bubble.add(Box.createVerticalStrut(4));
+            bubble.add(textLabel);
         }
 
-        return label;
-    }
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Message> list, Message value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            message = value;
+            wrapWidth = (int) (messagesScroll.getViewport().getWidth() * BUBBLE_MAX_PARENT_WIDTH);
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (message == null) return super.getPreferredSize();
+            if (message.measuredWidth != wrapWidth) {
+                configure();
+                message.measuredSize = super.getPreferredSize();
+                message.measuredWidth = wrapWidth;
+            }
+            return new Dimension(message.measuredSize);
+        }
 
-    private JComponent messageBubble(String author, String text, boolean isPrivate) {
-        boolean fromMe = nick.equals(author);
-        JPanel outer = new JPanel(new BorderLayout());
-        outer.setOpaque(false);
-        outer.setBorder(BorderFactory.createEmptyBorder(4, 0, 4, 0));
+        @Override
+        public void validate() {
+            configure();
+            super.validate();
+        }
 
-        RoundedPanel bubble = new RoundedPanel(18);
-        bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-        bubble.setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
-        bubble.setBackground(fromMe ? BG_BUBBLE_ME : BG_BUBBLE_THEM);
+        private void configure() {
+            if (message == null || (configuredMessage == message && configuredWidth == wrapWidth)) return;
+            configuredMessage = message;
+            configuredWidth = wrapWidth;
 
-        JLabel authorLabel = new JLabel(fromMe ? "You" : author);
-        authorLabel.setFont(authorLabel.getFont().deriveFont(Font.BOLD, 12f));
-        authorLabel.setForeground(fromMe ? FG_ON_PRIMARY : FG_PRIMARY);
+            boolean fromMe = message.fromMe;
+            bubble.setBackground(fromMe ? BG_BUBBLE_ME : BG_BUBBLE_THEM);
 
-        if (isPrivate) {
-            JLabel dmLabel = new JLabel(fromMe ? "Direct message" : "Direct message to you");
-            dmLabel.setFont(dmLabel.getFont().deriveFont(11f));
+            dmLabel.setVisible(message.isPrivate);
+            dmLabel.setText(fromMe ? "Direct message" : "Direct message to you");
             dmLabel.setForeground(fromMe ? FG_ON_PRIMARY : FG_MUTED);
-            bubble.add(dmLabel);
-        }
 
-        JLabel textLabel = createWrappingLabel(text, fromMe);
+            authorLabel.setText(fromMe ? "You" : message.author);
+            authorLabel.setForeground(fromMe ? FG_ON_PRIMARY : FG_PRIMARY);
 
-        bubble.add(authorLabel);
-        bubble.add(Box.createVerticalStrut(4));
-        bubble.add(textLabel);
+            textLabel.setForeground(fromMe ? FG_ON_PRIMARY : FG_PRIMARY);
+            textLabel.setText("<html>" + message.text + "</html>");
+            if (textLabel.getPreferredSize().width > wrapWidth) {
+                textLabel.setText("<html><body style='width:" + wrapWidth + "px'>" + message.text + "</body></html>");
+            }
 
-        if (fromMe) {
-            outer.add(bubble, BorderLayout.EAST);
-        } else {
-            outer.add(bubble, BorderLayout.WEST);
+            remove(bubble);
+            add(bubble, fromMe ? BorderLayout.EAST : BorderLayout.WEST);
+            invalidate();
         }
-
-        Dimension pref = outer.getPreferredSize();
-        outer.setMaximumSize(new Dimension(Integer.MAX_VALUE, pref.height));
-
-        return outer;
     }
 
     private JComponent inputArea() {
@@ -252,6 +382,22 @@ public class ChatApp implements ChatView {
         messageField.setBackground(Color.WHITE);
         messageField.setToolTipText("Your message");
         messageField.addActionListener(e -> sendCurrentText());
+        messageField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                // Commands are not messages other users are waiting for.
+                String text = messageField.getText().toLowerCase();
+                if (client != null && !text.startsWith("/") && !text.startsWith("dm ")) client.typing();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        });
 
         JButton sendButton = new JButton("Send");
         sendButton.setFocusPainted(false);
@@ -264,21 +410,41 @@ public class ChatApp implements ChatView {
         inner.add(messageField, BorderLayout.CENTER);
         inner.add(rightButtons, BorderLayout.EAST);
 
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(typingLabel.getFont().deriveFont(Font.ITALIC, 12f));
+        typingLabel.setForeground(FG_MUTED);
+        new Timer(1000, e -> expireTyping()).start();
+
+        inputPanel.add(typingLabel, BorderLayout.NORTH);
         inputPanel.add(inner, BorderLayout.CENTER);
         return inputPanel;
     }
 
-    private void addMessage(String author, String text, boolean isPrivate) {
-        messagesPanel.add(messageBubble(author, text, isPrivate));
-        messagesPanel.add(Box.createVerticalStrut(8));
-        messagesPanel.revalidate();
-        messagesPanel.repaint();
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar bar = messagesScroll.getVerticalScrollBar();
-            bar.setValue(bar.getMaximum());
+    private void expireTyping() {
+        long now = System.currentTimeMillis();
+        if (typingUntil.values().removeIf(until -> until <= now)) updateTypingLabel();
+    }
+
+    private void stopTyping(String nick) {
+        if (typingUntil.remove(nick) != null) updateTypingLabel();
+    }
+
+    private void updateTypingLabel() {
+        String[] nicks = typingUntil.keySet().toArray(new String[0]);
+        typingLabel.setText(switch (nicks.length) {
+            case 0 -> " ";
+            case 1 -> nicks[0] + " is typing\u2026";
+            case 2 -> nicks[0] + " and " + nicks[1] + " are typing\u2026";
+            default -> nicks.length + " people are typing\u2026";
         });
     }
 
+    private void addMessage(String author, String text, boolean isPrivate) {
+        boolean fromMe = nick != null && nick.equals(author);
+        messagesModel.add(new Message(author, text, isPrivate, fromMe));
+        SwingUtilities.invokeLater(() -> messagesList.ensureIndexIsVisible(messagesModel.getSize() - 1));
+    }
+
     private void appendSystemMessage(String text) {
         addMessage("System", text, false);
     }
@@ -298,6 +464,19 @@ public class ChatApp implements ChatView {
                 String msg = rest.substring(sp + 1);
                 if (client != null) client.sendPrivate(to, msg);
             }
+        } else if (text.toLowerCase().startsWith("/search ")) {
+            if (client != null) client.search(text.substring("/search ".length()));
+        } else if (text.toLowerCase().startsWith("/send ")) {
+            String[] parts = text.substring("/send ".length()).trim().split(" ", 2);
+            if (parts.length < 2) {
+                appendSystemMessage("Usage: /send nick path");
+            } else if (client != null) {
+                client.sendFile(parts[0], Path.of(parts[1].trim()));
+            }
+        } else if (text.toLowerCase().startsWith("/get ")) {
+            String[] parts = text.substring("/get ".length()).trim().split(" ", 2);
+            Path target = parts.length < 2 ? Path.of(System.getProperty("user.home")) : Path.of(parts[1].trim());
+            if (client != null) client.saveFile(parts[0], target);
         } else {
             if (client != null) client.sendPublic(text);
         }
@@ -307,6 +486,7 @@ public class ChatApp implements ChatView {
     private void showErrorAndClose(String message) {
         JOptionPane.showMessageDialog(frame, message, "Error", JOptionPane.ERROR_MESSAGE);
         if (client != null) client.disconnect();
+        closeHistory();
         if (frame != null) frame.dispose();
     }
 
@@ -315,42 +495,49 @@ public class ChatApp implements ChatView {
         int port = 5000;
 
         try {
-            client = new ChatClient(this);
             client.connect(host, port);
         } catch (IOException e) {
             showErrorAndClose("Cannot connect to server at " + host + ":" + port + "\n" + e.getMessage());
             return;
         }
 
-        while (true) {
-            String proposed = JOptionPane.showInputDialog(frame, "Choose your nick (max " + Protocol.MAX_NICK_LENGTH + "):", "Login", JOptionPane.QUESTION_MESSAGE);
-            if (proposed == null) {
-                if (client != null) client.disconnect();
-                frame.dispose();
-                return;
-            }
-            proposed = proposed.trim();
-            String error = client.login(proposed);
-            if (error == null) {
-                this.nick = proposed;
-                break;
-            } else if (Protocol.ERR_NICK_TAKEN.equals(error) || Protocol.ERR_INVALID_NICK.equals(error)) {
-                JOptionPane.showMessageDialog(frame, error, "Login failed", JOptionPane.WARNING_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(frame, "Login failed: " + error, "Login failed", JOptionPane.WARNING_MESSAGE);
-            }
+        promptLogin();
+    }
+
+    private void promptLogin() {
+        String proposed = JOptionPane.showInputDialog(frame, "Choose your nick (max " + Protocol.MAX_NICK_LENGTH + "):", "Login", JOptionPane.QUESTION_MESSAGE);
+        if (proposed == null) {
+            if (client != null) client.disconnect();
+            closeHistory();
+            frame.dispose();
+            return;
         }
+        client.login(proposed.trim());
     }
 
     @Override
     public void onConnected(String nick) {
+        // The history shown so far was received by someone else; the cache has just dropped it too.
+        if (this.nick != null && !this.nick.equals(nick)) messagesModel.clear();
+        this.nick = nick;
         headerTitle.setText("Room");
         headerSubtitle.setText("Logged in as " + nick);
         appendSystemMessage("Connected as " + nick);
     }
 
+    @Override
+    public void onLoginFailed(String error) {
+        if (Protocol.ERR_NICK_TAKEN.equals(error) || Protocol.ERR_INVALID_NICK.equals(error)) {
+            JOptionPane.showMessageDialog(frame, error, "Login failed", JOptionPane.WARNING_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(frame, "Login failed: " + error, "Login failed", JOptionPane.WARNING_MESSAGE);
+        }
+        promptLogin();
+    }
+
     @Override
     public void onPublicMessage(String from, String text) {
+        stopTyping(from);
         addMessage(from, text, false);
     }
 
@@ -358,6 +545,7 @@ public class ChatApp implements ChatView {
     public void onPrivateMessage(String from, String to, String text) {
         boolean fromMe = nick != null && nick.equals(from);
         boolean toMe = nick != null && nick.equals(to);
+        stopTyping(from);
         if (fromMe && !toMe) {
             addMessage(from, "[to " + to + "] " + text, true);
         } else {
@@ -371,6 +559,13 @@ public class ChatApp implements ChatView {
         for (String u : users) usersModel.addElement(u);
     }
 
+    @Override
+    public void onTyping(java.util.List<String> nicks) {
+        long until = System.currentTimeMillis() + 2 * Protocol.TYPING_INTERVAL_MS;
+        for (String n : nicks) typingUntil.put(n, until);
+        updateTypingLabel();
+    }
+
     @Override
     public void onSystemMessage(String text) {
         appendSystemMessage(text);
@@ -383,6 +578,8 @@ public class ChatApp implements ChatView {
 
     @Override
     public void onDisconnected() {
+        typingUntil.clear();
+        updateTypingLabel();
         appendSystemMessage("Disconnected.");
     }
 }
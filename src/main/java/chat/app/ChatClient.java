@@ -1,41 +1,178 @@
 package chat.app;
 
+import chat.protocol.LineDecoder;
 import chat.protocol.Protocol;
 
-import javax.swing.*;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
  * Chat client logic: networking, protocol parsing, and callbacks to {@link ChatView}.
  * <p>
- * This class contains no UI state and can be reused by different frontends.
- * Network I/O happens on a background thread; all {@link ChatView} callbacks are
- * dispatched onto the Swing Event Dispatch Thread via {@link SwingUtilities#invokeLater(Runnable)}.
+ * This class contains no UI state and no UI toolkit dependencies, so it can be reused by
+ * different frontends, including headless bots and test drivers. Network I/O happens on
+ * background threads; all {@link ChatView} callbacks are handed to a pluggable dispatcher
+ * {@link Executor}: a Swing frontend passes {@code SwingUtilities::invokeLater}, while
+ * headless code can use {@link #SAME_THREAD} to receive callbacks directly on the client's
+ * I/O threads without any event-queue hop.
+ * </p>
+ * <p>
+ * None of the public methods block on the network. Outgoing lines are put on a bounded
+ * send queue and written by a dedicated writer thread, which drains everything queued so far
+ * into a single buffered write and flush. The login handshake is asynchronous as well: its
+ * outcome is reported through {@link ChatView#onConnected(String)} or
+ * {@link ChatView#onLoginFailed(String)}.
+ * </p>
+ * <p>
+ * The client negotiates {@link Protocol#CAP_RESUME} on every connection. If the connection is
+ * lost after login (for example because the server restarted), it reconnects on its own with
+ * exponential backoff and jitter and resumes the session with the last resume token, so the
+ * frontend does not have to ask for the nickname again.
+ * </p>
+ * <p>
+ * It also negotiates {@link Protocol#CAP_STAMPS} and reports the server sequence number and
+ * delivery latency of every message to an optional {@link #setTimingListener timing listener}.
+ * </p>
+ * <p>
+ * With {@link Protocol#CAP_TYPING} it passes the typing notices of other users to
+ * {@link ChatView#onTyping(List)}; {@link #typing()} sends the user's own notices, at most one
+ * per {@link Protocol#TYPING_INTERVAL_MS}.
+ * </p>
+ * <p>
+ * An optional {@link MessageCache} receives every public and private message as it is read, and
+ * {@link #replayHistory()} shows the cached messages before the client has even connected.
  * </p>
  */
 public class ChatClient {
+    /** Maximum number of outgoing lines waiting for the writer thread. */
+    static final int SEND_QUEUE_CAPACITY = 1024;
+    /** How long {@link #disconnect()} waits for queued lines to be flushed before closing the socket. */
+    private static final long DISCONNECT_FLUSH_MS = 250;
+    /** Upper bound of the first reconnect delay; doubled on every failed attempt. */
+    static final long RECONNECT_BASE_DELAY_MS = 250;
+    /** Cap for the exponentially growing reconnect delay. */
+    static final long RECONNECT_MAX_DELAY_MS = 30_000;
+    /** Initial size of the read buffer; it grows only while a longer line is incomplete. */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** Number of offered files that may wait for the server's {@link Protocol#FILE_UPLOAD} reply. */
+    static final int MAX_PENDING_UPLOADS = 16;
+    /** Longest reply line read from a transfer connection. */
+    private static final int MAX_TRANSFER_REPLY_BYTES = 256;
+    /** Queue marker telling the writer thread to stop; compared by identity. */
+    private static final String CLOSE = new String("CLOSE");
+
+    /** Dispatcher that runs callbacks immediately on the client's I/O threads. */
+    public static final Executor SAME_THREAD = Runnable::run;
+
     private final ChatView view;
+    private final Executor dispatcher;
+    private final BlockingDeque<String> sendQueue = new LinkedBlockingDeque<>(SEND_QUEUE_CAPACITY);
+    /** Offered files in the order of their offers, waiting for the upload ticket. */
+    private final BlockingDeque<PendingUpload> pendingUploads = new LinkedBlockingDeque<>(MAX_PENDING_UPLOADS);
+    /** Files other users sent this user, by ticket, until they are saved. */
+    private final Map<String, FileOffer> fileOffers = new ConcurrentHashMap<>();
 
-    private Thread listenerThread;
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private record PendingUpload(Path file, String name, long size) {
+    }
+
+    private record FileOffer(String from, int port, String ticket, long size, String name) {
+    }
+
+    private volatile Thread listenerThread;
+    private volatile Thread writerThread;
+    private volatile Socket socket;
+    private String host;
+    private int port;
+    private volatile boolean closing;
 
     private volatile String nick;
+    private volatile String pendingNick;
+    private volatile boolean resuming;
+    private volatile boolean capsPending;
+    private volatile String resumeToken;
+    private volatile Consumer<DeliveryTiming> timingListener;
+    private volatile long lastTypingSent;
+    private volatile MessageCache history;
 
     /**
-     * Creates a new client bound to a {@link ChatView} implementation.
+     * Creates a new client whose callbacks run on its own I/O threads ({@link #SAME_THREAD}).
      *
      * @param view callback sink for UI/frontends; must not be {@code null}
      */
     public ChatClient(ChatView view) {
+        this(view, SAME_THREAD);
+    }
+
+    /**
+     * Creates a new client bound to a {@link ChatView} implementation.
+     *
+     * @param view callback sink for UI/frontends; must not be {@code null}
+     * @param dispatcher executor used to deliver every {@link ChatView} callback, e.g.
+     *                   {@code SwingUtilities::invokeLater} for Swing; must not be {@code null}
+     */
+    public ChatClient(ChatView view, Executor dispatcher) {
         this.view = Objects.requireNonNull(view, "view");
+        this.dispatcher = Objects.requireNonNull(dispatcher, "dispatcher");
+    }
+
+    /**
+     * Registers a listener for per-message delivery timings, e.g. to chart latency.
+     * <p>
+     * The listener is called on the client's listener thread as soon as a stamped message is
+     * read, independently of the callback dispatcher, so it must be cheap and thread-safe.
+     * </p>
+     *
+     * @param listener the listener, or {@code null} to remove it
+     */
+    public void setTimingListener(Consumer<DeliveryTiming> listener) {
+        this.timingListener = listener;
+    }
+
+    /**
+     * Sets the local history that received messages are appended to, on the listener thread
+     * before they are dispatched.
+     *
+     * @param cache the history, or {@code null} to stop recording
+     */
+    public void setHistory(MessageCache cache) {
+        this.history = cache;
+    }
+
+    /**
+     * Passes the messages of the {@link #setHistory history} to the view through the dispatcher,
+     * oldest first, as if they had just been received. Meant to be called once at startup, before
+     * {@link #connect(String, int)}, so the user sees recent conversations right away.
+     */
+    public void replayHistory() {
+        MessageCache h = history;
+        if (h == null) return;
+        List<String> lines = h.lines();
+        if (lines.isEmpty()) return;
+        dispatcher.execute(() -> {
+            for (String line : lines) handleIncoming(line);
+        });
     }
 
     /**
@@ -44,11 +181,12 @@ public class ChatClient {
      * @return {@code true} if connected, otherwise {@code false}
      */
     public boolean isConnected() {
-        return socket != null && socket.isConnected() && !socket.isClosed();
+        Socket s = socket;
+        return s != null && s.isConnected() && !s.isClosed();
     }
 
     /**
-     * Connects to the server but does not log in.
+     * Connects to the server but does not log in. Starts the listener and writer threads.
      *
      * @param host server hostname or IP
      * @param port server TCP port
@@ -56,35 +194,35 @@ public class ChatClient {
      */
     public void connect(String host, int port) throws IOException {
         if (isConnected()) return;
-        socket = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        this.host = host;
+        this.port = port;
+        closing = false;
+        sendQueue.clear();
+        startListener(open(null));
     }
 
     /**
-     * Attempts to log in with the given nickname.
+     * Starts the login handshake with the given nickname and returns immediately.
+     * <p>
+     * The result is reported asynchronously: {@link ChatView#onConnected(String)} on success,
+     * or {@link ChatView#onLoginFailed(String)} with the server's error (or a client-side
+     * reason) otherwise.
+     * </p>
      *
      * @param nick nickname to reserve; leading/trailing spaces are trimmed
-     * @return {@code null} on success, or a human-readable error message to display
      */
-    public String login(String nick) {
-        if (out == null || in == null) return "Not connected";
-        nick = nick == null ? "" : nick.trim();
-        out.println(Protocol.HANDSHAKE + nick);
-        String resp;
-        try {
-            resp = in.readLine();
-        } catch (IOException e) {
-            return "Connection error during login: " + e.getMessage();
+    public void login(String nick) {
+        if (!isConnected()) {
+            dispatcher.execute(() -> view.onLoginFailed("Not connected"));
+            return;
         }
-        if (resp == null) return "Server closed the connection.";
-        if (Protocol.WELCOME.equals(resp)) {
-            this.nick = nick;
-            SwingUtilities.invokeLater(() -> view.onConnected(this.nick));
-            startListener();
-            return null;
+        String candidate = nick == null ? "" : nick.trim();
+        pendingNick = candidate;
+        resuming = false;
+        if (!sendQueue.offer(Protocol.HANDSHAKE + candidate)) {
+            pendingNick = null;
+            dispatcher.execute(() -> view.onLoginFailed("Send queue full"));
         }
-        return resp;
     }
 
     /**
@@ -93,84 +231,539 @@ public class ChatClient {
      * @param text message text; blank values are ignored
      */
     public void sendPublic(String text) {
-        if (!isConnected() || out == null) {
-            SwingUtilities.invokeLater(() -> view.onSystemMessage("Not connected"));
+        if (!isConnected()) {
+            dispatcher.execute(() -> view.onSystemMessage("Not connected"));
             return;
         }
         if (text == null) return;
         text = text.trim();
         if (text.isEmpty()) return;
-        out.println(Protocol.MSG + text);
+        send(Protocol.MSG + text);
     }
 
     /**
-     * Sends a direct message to a single recipient.
+     * Sends a direct message to one recipient, or to several as a single group message.
      *
-     * @param to recipient nickname; must not be blank
+     * @param to recipient nickname, or comma-separated nicknames; must not be blank
      * @param text message text; blank values are ignored
      */
     public void sendPrivate(String to, String text) {
-        if (!isConnected() || out == null) {
-            SwingUtilities.invokeLater(() -> view.onSystemMessage("Not connected"));
+        if (!isConnected()) {
+            dispatcher.execute(() -> view.onSystemMessage("Not connected"));
             return;
         }
         if (to == null || to.isBlank()) {
-            SwingUtilities.invokeLater(() -> view.onSystemMessage("Usage: DM nick message"));
+            dispatcher.execute(() -> view.onSystemMessage("Usage: DM nick message"));
             return;
         }
         if (text == null || text.isBlank()) return;
-        out.println(Protocol.PRIV + to + " " + text);
+        if (to.indexOf(',') >= 0) {
+            send(Protocol.GROUP_PRIV + to.replace(" ", "") + " " + text);
+            return;
+        }
+        send(Protocol.PRIV + to + " " + text);
+    }
+
+    /**
+     * Searches recent public messages. Results arrive as system messages: a count followed by
+     * one {@code sender: text} line per match.
+     *
+     * @param terms words to look for, optionally with {@code from:<nick>}; blank values are ignored
+     */
+    public void search(String terms) {
+        if (!isConnected()) {
+            dispatcher.execute(() -> view.onSystemMessage("Not connected"));
+            return;
+        }
+        if (terms == null || terms.isBlank()) return;
+        send(Protocol.SEARCH + terms.trim());
+    }
+
+    /**
+     * Sends a file to another user.
+     * <p>
+     * Only the offer goes over the chat connection. Once the server has answered it with an
+     * upload ticket, the file is streamed on a transfer connection of its own, on a background
+     * thread, so chatting goes on meanwhile. The outcome is reported as a system message or an
+     * error.
+     * </p>
+     *
+     * @param to recipient nickname; must not be blank
+     * @param file regular file to send
+     */
+    public void sendFile(String to, Path file) {
+        if (!isConnected()) {
+            dispatcher.execute(() -> view.onSystemMessage("Not connected"));
+            return;
+        }
+        if (to == null || to.isBlank() || to.trim().contains(" ") || to.indexOf(',') >= 0) {
+            dispatcher.execute(() -> view.onSystemMessage("Usage: /send nick path"));
+            return;
+        }
+        long size;
+        try {
+            if (!Files.isRegularFile(file)) throw new FileNotFoundException("not a file");
+            size = Files.size(file);
+        } catch (IOException e) {
+            dispatcher.execute(() -> view.onError("Cannot send " + file + ": " + e.getMessage()));
+            return;
+        }
+        // Line breaks would end the offer line early, and the recipient refuses backslashes.
+        Path fileName = file.getFileName();
+        String name = fileName == null ? "" : fileName.toString().replace('\n', '_').replace('\r', '_').replace('\\', '_');
+        if (!Protocol.isValidFileName(name)) {
+            dispatcher.execute(() -> view.onError("Cannot send " + file + ": unsuitable file name"));
+            return;
+        }
+        PendingUpload upload = new PendingUpload(file, name, size);
+        // An offer the server never answered must not block new ones forever.
+        while (!pendingUploads.offerLast(upload)) pendingUploads.pollFirst();
+        send(Protocol.FILE_OFFER + to.trim() + " " + size + " " + name);
+    }
+
+    /**
+     * Saves a file another user sent, as announced by a system message naming its ticket.
+     * The download runs on a background thread; the outcome is reported as a system message
+     * or an error.
+     *
+     * @param ticket the ticket of the file
+     * @param target file to write, or an existing directory to save it in under its own name
+     */
+    public void saveFile(String ticket, Path target) {
+        FileOffer offer = ticket == null ? null : fileOffers.get(ticket.trim());
+        if (offer == null) {
+            dispatcher.execute(() -> view.onError("No file with ticket " + ticket));
+            return;
+        }
+        Path file = target;
+        if (Files.isDirectory(target)) {
+            // The sender chose the name; keep it from pointing anywhere but into the directory.
+            Path dir = target.toAbsolutePath().normalize();
+            try {
+                file = Protocol.isValidFileName(offer.name()) ? dir.resolve(offer.name()).normalize() : null;
+            } catch (InvalidPathException e) {
+                file = null;
+            }
+            if (file == null || !dir.equals(file.getParent())) {
+                dispatcher.execute(() -> view.onError("Not saving " + offer.name() + ": unsuitable file name; give a file path"));
+                return;
+            }
+        }
+        Path chosen = file;
+        startTransfer("chat/download", () -> download(offer, chosen));
+    }
+
+    /**
+     * Tells other users that this user is composing a message. Meant to be called on every
+     * keystroke: notices are only sent after login and at most once per
+     * {@link Protocol#TYPING_INTERVAL_MS}, and are silently dropped if the send queue is full.
+     */
+    public void typing() {
+        if (nick == null || !isConnected()) return;
+        long now = System.currentTimeMillis();
+        if (now - lastTypingSent < Protocol.TYPING_INTERVAL_MS) return;
+        lastTypingSent = now;
+        sendQueue.offer(Protocol.TYPING);
     }
 
     /**
      * Sends a quit command and closes the connection if open.
-     * Always triggers {@link ChatView#onDisconnected()} on the EDT.
+     * Queued messages are given a short grace period to be flushed first.
+     * Always triggers {@link ChatView#onDisconnected()} through the dispatcher.
      */
     public void disconnect() {
-        try {
-            if (out != null) {
-                out.println(Protocol.QUIT);
-                out.flush();
+        closing = true;
+        Thread writer = writerThread;
+        if (writer != null) {
+            sendQueue.offer(Protocol.QUIT);
+            if (!sendQueue.offer(CLOSE)) writer.interrupt();
+            try {
+                writer.join(DISCONNECT_FLUSH_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (Exception ignored) {
         }
+        closeSocket();
+        stopWriter();
+        pendingNick = null;
+        nick = null;
+        resumeToken = null;
+        if (listenerThread != null) listenerThread.interrupt();
+        dispatcher.execute(view::onDisconnected);
+    }
+
+    /**
+     * Queues a line for the writer thread, reporting an error if the send queue is full.
+     */
+    private void send(String line) {
+        if (!sendQueue.offer(line)) {
+            dispatcher.execute(() -> view.onError("Send queue full, message dropped"));
+        }
+    }
+
+    /**
+     * Opens a new socket to the configured server and starts its writer thread.
+     * <p>
+     * The capability request and, when reconnecting, the handshake line are put at the front of
+     * the send queue so they precede anything queued earlier.
+     * </p>
+     *
+     * @param handshake handshake line to send first, or {@code null} for a fresh connection
+     * @return the input stream of the new socket
+     */
+    private InputStream open(String handshake) throws IOException {
+        Socket s = new Socket(host, port);
+        InputStream r;
+        Writer w;
         try {
-            if (socket != null) socket.close();
+            r = s.getInputStream();
+            w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        if (sendQueue.remainingCapacity() < 2) sendQueue.clear();
+        if (handshake != null) sendQueue.offerFirst(handshake);
+        sendQueue.offerFirst(Protocol.CAPS + Protocol.CAP_RESUME + "," + Protocol.CAP_STAMPS + "," + Protocol.CAP_TYPING);
+        capsPending = true;
+        socket = s;
+        startWriter(w);
+        return r;
+    }
+
+    private void closeSocket() {
+        try {
+            Socket s = socket;
+            if (s != null) s.close();
         } catch (IOException ignored) {
         }
-        out = null;
-        in = null;
         socket = null;
-        if (listenerThread != null) listenerThread.interrupt();
-        SwingUtilities.invokeLater(view::onDisconnected);
+    }
+
+    private void stopWriter() {
+        Thread writer = writerThread;
+        if (writer == null) return;
+        writer.interrupt();
+        try {
+            writer.join(DISCONNECT_FLUSH_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
     }
 
     /**
-     * Starts a background listener thread that reads server lines and dispatches
-     * callbacks to the {@link ChatView} on the EDT.
+     * Returns a randomized delay before reconnect attempt number {@code attempt} (0-based).
+     * <p>
+     * Uses "full jitter": a uniform value between zero and an exponentially growing cap. When a
+     * server restart drops every client at once, this spreads the reconnects over the whole
+     * window instead of having all clients retry in lockstep.
+     * </p>
+     */
+    static long backoffDelay(int attempt) {
+        long cap = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_BASE_DELAY_MS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Re-establishes a lost connection with exponential backoff, then resumes the session with
+     * the last {@link Protocol#TOKEN} (or logs in again with the same nick if none was issued).
+     *
+     * @return the input stream of the new connection, or {@code null} if the client is not
+     * logged in or was closed while waiting
      */
-    private void startListener() {
-        listenerThread = new Thread(() -> {
+    private InputStream reconnect() {
+        String n = nick;
+        closeSocket();
+        stopWriter();
+        if (n == null) return null;
+        for (int attempt = 0; !closing; attempt++) {
+            if (attempt == 0) dispatcher.execute(() -> view.onSystemMessage("Connection lost, reconnecting..."));
+            long delay = backoffDelay(attempt);
             try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    final String ln = line;
-                    SwingUtilities.invokeLater(() -> handleIncoming(ln));
-                }
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            if (closing) return null;
+            String token = resumeToken;
+            pendingNick = n;
+            resuming = true;
+            try {
+                return open(token != null ? Protocol.RESUME + n + " " + token : Protocol.HANDSHAKE + n);
             } catch (IOException ignored) {
-            } finally {
-                SwingUtilities.invokeLater(() -> view.onSystemMessage("Disconnected."));
             }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a background writer thread that drains the send queue. Every line queued by the
+     * time the writer wakes up is written in one batch followed by a single flush, so bursts
+     * of messages turn into as few socket writes as possible.
+     */
+    private void startWriter(Writer w) {
+        Thread t = new Thread(() -> {
+            List<String> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.add(sendQueue.take());
+                    sendQueue.drainTo(batch);
+                    for (String line : batch) {
+                        if (line == CLOSE) {
+                            w.flush();
+                            return;
+                        }
+                        w.write(line);
+                        w.write('\n');
+                    }
+                    w.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException | IOException ignored) {
+            }
+        }, "chat/writer");
+        t.setDaemon(true);
+        writerThread = t;
+        t.start();
+    }
+
+    /**
+     * Starts a background listener thread that reads server lines and dispatches
+     * callbacks to the {@link ChatView} through the dispatcher. When the connection is lost
+     * unexpectedly after login, the same thread reconnects and keeps listening.
+     */
+    private void startListener(InputStream first) {
+        Thread t = new Thread(() -> {
+            InputStream r = first;
+            while (r != null) {
+                try {
+                    readLines(r);
+                } catch (IOException ignored) {
+                }
+                r = closing ? null : reconnect();
+            }
+            dispatcher.execute(() -> view.onSystemMessage("Disconnected."));
         }, "chat/listener");
-        listenerThread.setDaemon(true);
-        listenerThread.start();
+        t.setDaemon(true);
+        listenerThread = t;
+        t.start();
+    }
+
+    /**
+     * Reads server lines until the end of the stream.
+     * <p>
+     * Bytes are read into a heap buffer that the {@link LineDecoder} cuts lines out of. The
+     * buffer only grows while a long line is incomplete, never beyond
+     * {@link Protocol#MAX_SERVER_LINE_BYTES}; a longer line is skipped and reported as an error,
+     * so a broken server cannot make the client buffer without bound.
+     * </p>
+     */
+    private void readLines(InputStream in) throws IOException {
+        LineDecoder decoder = new LineDecoder(Protocol.MAX_SERVER_LINE_BYTES);
+        LineDecoder.Handler handler = new LineDecoder.Handler() {
+            @Override
+            public boolean line(String line) {
+                String ln = unstamp(line);
+                MessageCache h = history;
+                if (h != null) h.append(ln);
+                dispatcher.execute(() -> handleIncoming(ln));
+                return true;
+            }
+
+            @Override
+            public void oversized() {
+                dispatcher.execute(() -> view.onError("Line from server too long, skipped"));
+            }
+        };
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (true) {
+            if (!buf.hasRemaining()) {
+                // A full buffer is one partial line within the limit, so there is room to grow.
+                buf = ByteBuffer.allocate(Math.min(buf.capacity() * 2, decoder.maxLineBytes() + 2)).put(buf.flip());
+            }
+            int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            if (n < 0) {
+                decoder.finish(buf.flip(), handler);
+                return;
+            }
+            buf.position(buf.position() + n);
+            decoder.decode(buf.flip(), handler);
+            buf.compact();
+            if (buf.capacity() > READ_BUFFER_SIZE && buf.position() <= READ_BUFFER_SIZE) {
+                buf = ByteBuffer.allocate(READ_BUFFER_SIZE).put(buf.flip());
+            }
+        }
+    }
+
+    private void startTransfer(String name, Runnable transfer) {
+        Thread t = new Thread(transfer, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Streams an offered file to the server straight from the file system. */
+    private void upload(PendingUpload upload, String ticket, int transferPort) {
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, transferPort));
+             FileChannel fc = FileChannel.open(upload.file(), StandardOpenOption.READ)) {
+            writeLine(ch, Protocol.TRANSFER_PUT + ticket);
+            for (long pos = 0; pos < upload.size(); ) {
+                long n = fc.transferTo(pos, upload.size() - pos, ch);
+                if (n == 0) throw new EOFException("file shrank while sending");
+                pos += n;
+            }
+            String reply = readLine(ch);
+            if (Protocol.TRANSFER_OK.equals(reply)) {
+                dispatcher.execute(() -> view.onSystemMessage("Sent " + upload.name()));
+            } else {
+                dispatcher.execute(() -> view.onError("Sending " + upload.name() + " failed: " + reply));
+            }
+        } catch (IOException e) {
+            dispatcher.execute(() -> view.onError("Sending " + upload.name() + " failed: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Streams an announced file from the server into a temporary file next to {@code file} and
+     * moves it into place once complete, so a failed download neither leaves a partial file
+     * behind nor touches a file that was already there.
+     */
+    private void download(FileOffer offer, Path file) {
+        Path part = null;
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, offer.port()))) {
+            writeLine(ch, Protocol.TRANSFER_GET + offer.ticket());
+            String reply = readLine(ch);
+            if (reply == null || !reply.startsWith(Protocol.TRANSFER_OK + " ")) {
+                dispatcher.execute(() -> view.onError("Saving " + offer.name() + " failed: " + reply));
+                return;
+            }
+            long size = Long.parseLong(reply.substring(Protocol.TRANSFER_OK.length() + 1).trim());
+            // Not Files.createTempFile, whose owner-only permissions the saved file would keep.
+            Path tmp = file.toAbsolutePath().resolveSibling(
+                    "." + file.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                part = tmp;
+                for (long pos = 0; pos < size; ) {
+                    long n = fc.transferFrom(ch, pos, size - pos);
+                    if (n == 0) throw new EOFException("connection closed after " + pos + " of " + size + " bytes");
+                    pos += n;
+                }
+            }
+            moveIntoPlace(part, file);
+            part = null;
+            fileOffers.remove(offer.ticket());
+            dispatcher.execute(() -> view.onSystemMessage("Saved " + offer.name() + " to " + file));
+        } catch (IOException | NumberFormatException e) {
+            dispatcher.execute(() -> view.onError("Saving " + offer.name() + " failed: " + e.getMessage()));
+        } finally {
+            if (part != null) {
+                try {
+                    Files.deleteIfExists(part);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void moveIntoPlace(Path part, Path file) throws IOException {
+        try {
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeLine(SocketChannel ch, String line) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    /**
+     * Reads one reply line from a transfer connection byte by byte, so that a payload following
+     * it stays in the socket for the channel transfer.
+     *
+     * @return the line, or {@code null} if the connection ended first
+     */
+    private static String readLine(SocketChannel ch) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (line.size() < MAX_TRANSFER_REPLY_BYTES) {
+            one.clear();
+            if (ch.read(one) < 0) return null;
+            if (one.get(0) == '\n') return line.toString(StandardCharsets.UTF_8).strip();
+            line.write(one.get(0));
+        }
+        throw new IOException("reply too long");
+    }
+
+    /**
+     * Strips a {@link Protocol#STAMP} prefix from a server line and reports its timing.
+     *
+     * @return the line without the prefix, or the line itself if it carries no valid stamp
+     */
+    private String unstamp(String line) {
+        if (!line.startsWith(Protocol.STAMP)) return line;
+        long receivedMillis = System.currentTimeMillis();
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 4) return line;
+        DeliveryTiming timing;
+        try {
+            timing = new DeliveryTiming(Long.parseLong(parts[1]), Long.parseLong(parts[2]), receivedMillis);
+        } catch (NumberFormatException e) {
+            return line;
+        }
+        Consumer<DeliveryTiming> listener = timingListener;
+        if (listener != null) listener.accept(timing);
+        return parts[3];
+    }
+
+    /**
+     * Completes a pending login handshake if {@code line} is the server's reply to it.
+     *
+     * @return {@code true} if the line was consumed as the handshake reply
+     */
+    private boolean handleLoginReply(String line) {
+        String candidate = pendingNick;
+        if (candidate == null) return false;
+        if (Protocol.WELCOME.equals(line)) {
+            pendingNick = null;
+            nick = candidate;
+            MessageCache h = history;
+            if (h != null) h.setOwner(candidate);
+            if (resuming) {
+                resuming = false;
+                view.onSystemMessage("Reconnected as " + candidate);
+            } else {
+                view.onConnected(candidate);
+            }
+            return true;
+        }
+        if (line.startsWith("ERROR")) {
+            pendingNick = null;
+            if (resuming) {
+                resuming = false;
+                nick = null;
+                resumeToken = null;
+            }
+            view.onLoginFailed(line);
+            return true;
+        }
+        return false;
     }
 
     /**
      * Parses a single server line and forwards it to the appropriate view callback.
      */
     private void handleIncoming(String line) {
-        if (line.startsWith(Protocol.FROM)) {
+        if (capsPending && (line.startsWith(Protocol.CAPS) || line.startsWith("ERROR"))) {
+            // Reply to our capability request; servers that predate it answer with an error.
+            capsPending = false;
+            return;
+        }
+        if (handleLoginReply(line)) return;
+        if (line.startsWith(Protocol.TOKEN)) {
+            resumeToken = line.substring(Protocol.TOKEN.length()).trim();
+        } else if (line.startsWith(Protocol.FROM)) {
             String rest = line.substring(Protocol.FROM.length());
             int sp = rest.indexOf(' ');
             if (sp > 0) {
@@ -201,10 +794,55 @@ public class ChatClient {
                         .toList());
             }
             view.onUsers(users);
+        } else if (line.startsWith(Protocol.TYPING + " ")) {
+            String self = nick;
+            List<String> typing = Arrays.stream(line.substring(Protocol.TYPING.length() + 1).split(","))
+                    .map(String::trim)
+                    .filter(s -> !s.isBlank() && !s.equals(self))
+                    .toList();
+            if (!typing.isEmpty()) view.onTyping(typing);
+        } else if (line.startsWith(Protocol.FOUND)) {
+            String count = line.substring(Protocol.FOUND.length()).trim();
+            view.onSystemMessage("Search: " + count + (count.equals("1") ? " result" : " results"));
+        } else if (line.startsWith(Protocol.HIT)) {
+            String[] parts = line.substring(Protocol.HIT.length()).split(" ", 4); // seq, millis, from, text
+            if (parts.length == 4) view.onSystemMessage(parts[2] + ": " + parts[3]);
+        } else if (line.startsWith(Protocol.FILE_UPLOAD)) {
+            String[] parts = line.substring(Protocol.FILE_UPLOAD.length()).split(" ", 3); // ticket, port, name
+            int transferPort = parts.length < 3 ? -1 : parsePort(parts[1]);
+            if (transferPort < 0) return;
+            for (PendingUpload upload : pendingUploads) {
+                if (!upload.name().equals(parts[2]) || !pendingUploads.remove(upload)) continue;
+                startTransfer("chat/upload", () -> upload(upload, parts[0], transferPort));
+                return;
+            }
+        } else if (line.startsWith(Protocol.FILE_FROM)) {
+            String[] parts = line.substring(Protocol.FILE_FROM.length()).split(" ", 5); // from, port, ticket, size, name
+            int transferPort = parts.length < 5 ? -1 : parsePort(parts[1]);
+            if (transferPort < 0) return;
+            FileOffer offer;
+            try {
+                offer = new FileOffer(parts[0], transferPort, parts[2], Long.parseLong(parts[3]), parts[4]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            fileOffers.put(offer.ticket(), offer);
+            view.onSystemMessage(offer.from() + " sent " + offer.name() + " (" + offer.size() + " bytes), ticket " + offer.ticket());
+        } else if (line.startsWith(Protocol.UNDELIVERED)) {
+            view.onSystemMessage("Not delivered to " + line.substring(Protocol.UNDELIVERED.length()).replace(",", ", "));
         } else if (line.startsWith("ERROR")) {
             view.onError(line);
         } else {
             view.onSystemMessage("? " + line);
         }
     }
+
+    private static int parsePort(String s) {
+        try {
+            int port = Integer.parseInt(s);
+            return port > 0 && port < 65536 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }
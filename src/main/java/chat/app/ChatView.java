@@ -6,8 +6,9 @@ import java.util.List;
  * UI/frontend contract for receiving events from the chat client.
  * <p>
  * This interface contains no Swing-specific types, so it can be reused across different
- * frontends (e.g., CLI, web, or desktop UIs). All callbacks are expected to be invoked
- * on the UI thread of the respective frontend (Swing EDT for the default desktop app).
+ * frontends (e.g., CLI, web, or desktop UIs). Callbacks are invoked through the dispatcher
+ * the {@link ChatClient} was created with: the Swing EDT for the default desktop app, or the
+ * client's own I/O threads for headless frontends such as {@link ConsoleChatView}.
  * </p>
  */
 public interface ChatView {
@@ -18,6 +19,14 @@ public interface ChatView {
      */
     void onConnected(String nick);
 
+    /**
+     * Notifies that a login attempt was rejected or could not be completed.
+     * The connection stays open, so another login may be attempted.
+     *
+     * @param error human-readable reason, usually one of the server's {@code ERROR} lines
+     */
+    void onLoginFailed(String error);
+
     /**
      * Delivers a public message that was broadcast to everyone.
      *
@@ -42,6 +51,14 @@ public interface ChatView {
      */
     void onUsers(List<String> users);
 
+    /**
+     * Reports users who are composing a message. A user stays in this state until their next
+     * message arrives or no notice has refreshed it for twice {@link chat.protocol.Protocol#TYPING_INTERVAL_MS}.
+     *
+     * @param nicks nicknames of the typing users, never empty and never including the local user
+     */
+    void onTyping(List<String> nicks);
+
     /**
      * Shows an informational/system message that does not originate from a user.
      *
@@ -0,0 +1,158 @@
+package chat.app;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain-text {@link ChatView} that prints every event as a single line.
+ * <p>
+ * The view has no UI thread of its own, so it is meant to be used with
+ * {@link ChatClient#SAME_THREAD}: callbacks print directly from the client's I/O threads.
+ * Printing is synchronized on the target stream, which keeps lines from different threads
+ * intact. Besides serving as a terminal client, it is a minimal template for bots and
+ * integration drivers.
+ * </p>
+ */
+public class ConsoleChatView implements ChatView {
+    /** How often {@link #main} checks that the connection is still open while awaiting a login reply. */
+    private static final long LOGIN_POLL_MS = 250;
+
+    private final PrintStream out;
+    private volatile String nick;
+    private final BlockingQueue<Boolean> loginResults = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a view that prints to the given stream.
+     *
+     * @param out destination for rendered events; must not be {@code null}
+     */
+    public ConsoleChatView(PrintStream out) {
+        this.out = Objects.requireNonNull(out, "out");
+    }
+
+    /**
+     * Runs an interactive terminal client.
+     * <p>
+     * The first line read from standard input is used as the nickname (and subsequent lines
+     * while the login is being rejected). After login, {@code DM <nick> <message>} sends a
+     * direct message ({@code DM <nick1,nick2> <message>} to a group), {@code /search <terms>} searches recent messages,
+     * {@code /send <nick> <path>} sends a file, {@code /get <ticket> [path]} saves a received
+     * one (to the current directory by default), {@code /quit} disconnects, and any other line
+     * is sent to the room. If the connection closes before a login reply arrives, the client exits.
+     * </p>
+     *
+     * @param args optional host (default {@code 127.0.0.1}) and port (default 5000)
+     * @throws IOException if the connection cannot be opened or standard input fails
+     * @throws InterruptedException if interrupted while waiting for a login reply
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        ConsoleChatView view = new ConsoleChatView(System.out);
+        ChatClient client = new ChatClient(view, ChatClient.SAME_THREAD);
+        client.connect(host, port);
+        view.print("* Connected to " + host + ":" + port + ". Enter your nick:");
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = stdin.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (view.nick == null) {
+                client.login(line);
+                // The server may close the connection instead of replying; stop waiting then.
+                while (view.loginResults.poll(LOGIN_POLL_MS, TimeUnit.MILLISECONDS) == null && client.isConnected()) {
+                }
+                if (!client.isConnected()) break;
+            } else if (line.equals("/quit")) {
+                break;
+            } else if (line.toLowerCase().startsWith("/search ")) {
+                client.search(line.substring("/search ".length()));
+            } else if (line.toLowerCase().startsWith("/send ")) {
+                String[] parts = line.substring("/send ".length()).trim().split(" ", 2);
+                if (parts.length < 2) {
+                    view.print("* Usage: /send nick path");
+                } else {
+                    client.sendFile(parts[0], Path.of(parts[1].trim()));
+                }
+            } else if (line.toLowerCase().startsWith("/get ")) {
+                String[] parts = line.substring("/get ".length()).trim().split(" ", 2);
+                client.saveFile(parts[0], Path.of(parts.length < 2 ? "." : parts[1].trim()));
+            } else if (line.toLowerCase().startsWith("dm ")) {
+                String rest = line.substring("dm ".length()).trim();
+                int sp = rest.indexOf(' ');
+                if (sp <= 0) {
+                    view.print("* Usage: DM nick message");
+                } else {
+                    client.sendPrivate(rest.substring(0, sp), rest.substring(sp + 1));
+                }
+            } else {
+                client.sendPublic(line);
+            }
+        }
+        client.disconnect();
+    }
+
+    private void print(String line) {
+        out.println(line);
+    }
+
+    @Override
+    public void onConnected(String nick) {
+        this.nick = nick;
+        print("* Logged in as " + nick);
+        loginResults.offer(true);
+    }
+
+    @Override
+    public void onLoginFailed(String error) {
+        print("! " + error + " - enter another nick:");
+        loginResults.offer(false);
+    }
+
+    @Override
+    public void onPublicMessage(String from, String text) {
+        print("[" + from + "] " + text);
+    }
+
+    @Override
+    public void onPrivateMessage(String from, String to, String text) {
+        print("[" + from + " -> " + to + "] " + text);
+    }
+
+    @Override
+    public void onUsers(List<String> users) {
+        print("* Users: " + String.join(", ", users));
+    }
+
+    @Override
+    public void onTyping(List<String> nicks) {
+        // A scrolling console has no status line that could show and hide the indicator.
+    }
+
+    @Override
+    public void onSystemMessage(String text) {
+        print("* " + text);
+    }
+
+    @Override
+    public void onError(String error) {
+        print("! " + error);
+    }
+
+    @Override
+    public void onDisconnected() {
+        print("* Disconnected.");
+        loginResults.offer(false);
+    }
+}
@@ -0,0 +1,25 @@
+package chat.app;
+
+/**
+ * Timing of a single message as seen by {@link ChatClient}.
+ * <p>
+ * The sequence number and server time come from the {@code SEQ} prefix the server adds when
+ * the {@code stamps} capability is enabled; the receive time is taken when the listener thread
+ * reads the line, before any dispatching to the frontend. Latency is computed from two
+ * different clocks and is therefore only as accurate as their synchronization (e.g. NTP).
+ * </p>
+ *
+ * @param seq server-assigned sequence number of the message
+ * @param serverMillis server receive time of the message, in epoch milliseconds
+ * @param receivedMillis client receive time of the line, in epoch milliseconds
+ */
+public record DeliveryTiming(long seq, long serverMillis, long receivedMillis) {
+    /**
+     * Returns the end-to-end delivery latency from server ingest to client receipt.
+     *
+     * @return latency in milliseconds; may be slightly negative if the clocks are skewed
+     */
+    public long latencyMillis() {
+        return receivedMillis - serverMillis;
+    }
+}
@@ -0,0 +1,290 @@
+package chat.app;
+
+import chat.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Local history of received messages in a memory-mapped file of fixed size.
+ * <p>
+ * The file holds a small header and a ring of records, each a length followed by the UTF-8 bytes
+ * of a {@link Protocol#FROM} or {@link Protocol#PRIV_FROM} line as the server sent it (without a
+ * {@link Protocol#STAMP} prefix). Appending copies the record into the mapping and updates two
+ * positions in the header, with no system call and no flush; the operating system writes the
+ * pages back on its own. Once the ring is full, each append overwrites the oldest records, so the
+ * file never grows.
+ * </p>
+ * <p>
+ * {@link #lines()} returns the retained lines oldest first, keeping at most a fixed number per
+ * conversation: one for public messages and one per pair of users exchanging private messages.
+ * That number is a cap, not a guarantee: all conversations share one ring, so a busy room can
+ * push every message of a quiet conversation out of the file.
+ * </p>
+ * <p>
+ * The cache holds the messages of one user at a time. {@link #setOwner(String)} with a different
+ * nickname wipes the ring, so nobody is shown another user's private messages. The file is
+ * created readable by its owner only where the file system supports POSIX permissions, and is
+ * locked while open, so a second client on the same machine gets an {@link IOException} from
+ * {@link #open} instead of corrupting it. A file that is not a cache of the requested size is
+ * started afresh. Instances are thread-safe.
+ * </p>
+ */
+public final class MessageCache implements Closeable {
+    /** First bytes of the file: {@code "CHH"} followed by the format version. */
+    private static final int MAGIC = 0x43484801;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int START_OFFSET = 8;
+    private static final int END_OFFSET = 16;
+    private static final int OWNER_OFFSET = 24;
+    private static final int HEADER_SIZE = 64;
+    /** Record length marking unused space up to the end of the ring. */
+    private static final int WRAP = -1;
+    /** Permissions of a new cache file, which holds private messages. */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    /** Default size of the record ring in bytes. */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    /** Default maximum number of messages kept per conversation. */
+    public static final int DEFAULT_PER_CONVERSATION = 200;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int perConversation;
+    /** Positions count bytes ever written; a record at position p is at ring offset p % capacity. */
+    private long start;
+    private long end;
+
+    private MessageCache(FileChannel channel, FileLock lock, MappedByteBuffer map, int capacity, int perConversation) {
+        this.channel = channel;
+        this.lock = lock;
+        this.map = map;
+        this.capacity = capacity;
+        this.perConversation = perConversation;
+    }
+
+    /**
+     * Opens or creates a cache file.
+     *
+     * @param file path of the cache file; parent directories are created as needed
+     * @param capacity size of the record ring in bytes
+     * @param perConversation maximum number of messages {@link #lines()} returns per conversation;
+     *                        fewer are returned once the ring has dropped the older ones
+     * @return the open cache
+     * @throws IOException if the file cannot be opened or mapped, or another process holds it
+     */
+    public static MessageCache open(Path file, int capacity, int perConversation) throws IOException {
+        if (capacity < 1024) throw new IllegalArgumentException("capacity too small: " + capacity);
+        if (perConversation < 1) throw new IllegalArgumentException("perConversation must be positive: " + perConversation);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        FileAttribute<?>[] attributes = file.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(OWNER_ONLY)}
+                : new FileAttribute<?>[0];
+        FileChannel channel = FileChannel.open(file,
+                Set.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), attributes);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null; // held by this JVM
+            }
+            if (lock == null) throw new IOException("Message cache is in use: " + file);
+            long size = HEADER_SIZE + (long) capacity;
+            boolean fresh = channel.size() != size;
+            if (fresh) channel.truncate(0);
+            MessageCache cache = new MessageCache(channel, lock, channel.map(FileChannel.MapMode.READ_WRITE, 0, size),
+                    capacity, perConversation);
+            cache.load(fresh);
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load(boolean fresh) {
+        if (!fresh && map.getInt(0) == MAGIC && map.getInt(CAPACITY_OFFSET) == capacity) {
+            start = map.getLong(START_OFFSET);
+            end = map.getLong(END_OFFSET);
+            if (start >= 0 && start <= end && end - start <= capacity) return;
+        }
+        start = 0;
+        end = 0;
+        map.putInt(0, MAGIC);
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.putLong(START_OFFSET, 0);
+        map.putLong(END_OFFSET, 0);
+        map.putShort(OWNER_OFFSET, (short) 0);
+    }
+
+    /**
+     * Appends a received message line, overwriting the oldest records if the ring is full.
+     * Lines that are not messages, and messages too long to share the ring with others, are ignored.
+     *
+     * @param line a {@link Protocol#FROM} or {@link Protocol#PRIV_FROM} line without stamp
+     */
+    public synchronized void append(String line) {
+        if (conversation(line) == null) return;
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + bytes.length;
+        if (size > capacity / 4) return;
+        int offset = (int) (end % capacity);
+        // Records never wrap; one that does not fit before the end of the ring starts over at 0.
+        long next = offset + size > capacity ? end + capacity - offset : end;
+        long newStart = start;
+        while (newStart < end && next + size - newStart > capacity) newStart = skip(newStart);
+        if (newStart >= end) newStart = next;
+        // Give up the records about to be overwritten before overwriting them.
+        if (newStart != start) {
+            start = newStart;
+            map.putLong(START_OFFSET, start);
+        }
+        if (next != end) {
+            if (capacity - offset >= 4) map.putInt(HEADER_SIZE + offset, WRAP);
+            offset = 0;
+        }
+        map.putInt(HEADER_SIZE + offset, bytes.length);
+        map.put(HEADER_SIZE + offset + 4, bytes);
+        end = next + size;
+        map.putLong(END_OFFSET, end);
+    }
+
+    /** Returns the position of the record after the one at {@code pos}. */
+    private long skip(long pos) {
+        int offset = (int) (pos % capacity);
+        if (capacity - offset < 4) return pos + capacity - offset;
+        int length = map.getInt(HEADER_SIZE + offset);
+        return length == WRAP ? pos + capacity - offset : pos + 4 + length;
+    }
+
+    /**
+     * Returns the retained message lines, oldest first, with at most the configured number of
+     * lines per conversation. A conversation gets fewer if the ring has already overwritten its
+     * older messages.
+     *
+     * @return lines in the order they were appended
+     */
+    public synchronized List<String> lines() {
+        List<String> all = new ArrayList<>();
+        for (long pos = start; pos < end; ) {
+            int offset = (int) (pos % capacity);
+            int length = capacity - offset < 4 ? WRAP : map.getInt(HEADER_SIZE + offset);
+            if (length < WRAP || length > capacity - offset - 4) break; // damaged; keep what was read
+            if (length != WRAP) {
+                byte[] bytes = new byte[length];
+                map.get(HEADER_SIZE + offset + 4, bytes);
+                all.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            pos = skip(pos);
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        Deque<String> kept = new ArrayDeque<>();
+        for (int i = all.size() - 1; i >= 0; i--) {
+            String line = all.get(i);
+            if (counts.merge(conversation(line), 1, Integer::sum) <= perConversation) kept.addFirst(line);
+        }
+        return new ArrayList<>(kept);
+    }
+
+    /**
+     * Returns the nickname stored with {@link #setOwner(String)}.
+     *
+     * @return the nickname of the user the cached messages were received as, or {@code null}
+     */
+    public synchronized String owner() {
+        int length = map.getShort(OWNER_OFFSET);
+        if (length <= 0 || length > HEADER_SIZE - OWNER_OFFSET - 2) return null;
+        byte[] bytes = new byte[length];
+        map.get(OWNER_OFFSET + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records which user the following messages are received as, so that a frontend can tell the
+     * user's own messages apart when it shows the history before logging in again. If the
+     * nickname differs from the stored one, the cached messages are erased first.
+     *
+     * @param nick the logged-in nickname; if it does not fit the header, the messages are erased
+     *             and no owner is stored
+     */
+    public synchronized void setOwner(String nick) {
+        if (nick.equals(owner())) return;
+        clear();
+        byte[] bytes = nick.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > HEADER_SIZE - OWNER_OFFSET - 2) return;
+        map.put(OWNER_OFFSET + 2, bytes);
+        map.putShort(OWNER_OFFSET, (short) bytes.length);
+    }
+
+    /** Drops every record and the owner, overwriting the records so they do not linger in the file. */
+    private void clear() {
+        map.putShort(OWNER_OFFSET, (short) 0);
+        start = 0;
+        end = 0;
+        map.putLong(START_OFFSET, 0);
+        map.putLong(END_OFFSET, 0);
+        map.put(HEADER_SIZE, new byte[capacity]);
+    }
+
+    /**
+     * Writes the mapped pages back to the file and closes it.
+     *
+     * @throws IOException if closing the file fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) return;
+        map.force();
+        lock.release();
+        channel.close();
+    }
+
+    /**
+     * Returns the conversation a message line belongs to: the empty string for public messages
+     * and the sorted nicknames of sender and recipients for private ones, so that a group
+     * conversation is one conversation whoever writes in it.
+     *
+     * @return the conversation key, or {@code null} if the line is not a message
+     */
+    static String conversation(String line) {
+        if (line.startsWith(Protocol.FROM)) return "";
+        if (!line.startsWith(Protocol.PRIV_FROM)) return null;
+        int to = line.indexOf(Protocol.PRIV_TO, Protocol.PRIV_FROM.length());
+        if (to < 0) return null;
+        int afterTo = to + Protocol.PRIV_TO.length();
+        int sp = line.indexOf(' ', afterTo);
+        if (sp < 0) return null;
+        String from = line.substring(Protocol.PRIV_FROM.length(), to);
+        String recipients = line.substring(afterTo, sp);
+        if (recipients.indexOf(',') < 0) {
+            return from.compareTo(recipients) <= 0 ? from + " " + recipients : recipients + " " + from;
+        }
+        TreeSet<String> nicks = new TreeSet<>(Arrays.asList(recipients.split(",")));
+        nicks.add(from);
+        return String.join(" ", nicks);
+    }
+}
@@ -0,0 +1,83 @@
+package chat.app;
+
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity {@link ListModel} that keeps only the most recent elements.
+ * <p>
+ * Elements are stored in a ring buffer, so appending is O(1) and memory use is bounded by
+ * the capacity. When the model is full, appending evicts the oldest element and fires the
+ * matching removal event before the addition event. Like other Swing models, instances
+ * must only be used from the Event Dispatch Thread.
+ * </p>
+ *
+ * @param <E> element type
+ */
+class MessageListModel<E> extends AbstractListModel<E> {
+    private final Object[] items;
+    private int head;
+    private int size;
+
+    /**
+     * Creates an empty model.
+     *
+     * @param capacity maximum number of retained elements; must be positive
+     */
+    MessageListModel(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.items = new Object[capacity];
+    }
+
+    /**
+     * Appends an element, evicting the oldest one if the model is full.
+     *
+     * @param element element to append
+     */
+    void add(E element) {
+        if (size == items.length) {
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+            fireIntervalRemoved(this, 0, 0);
+        }
+        items[(head + size) % items.length] = element;
+        size++;
+        fireIntervalAdded(this, size - 1, size - 1);
+    }
+
+    /**
+     * Removes every element.
+     */
+    void clear() {
+        if (size == 0) return;
+        int last = size - 1;
+        Arrays.fill(items, null);
+        head = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, last);
+    }
+
+    /**
+     * Returns the maximum number of retained elements.
+     *
+     * @return the capacity given at construction time
+     */
+    int capacity() {
+        return items.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E getElementAt(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return (E) items[(head + index) % items.length];
+    }
+}
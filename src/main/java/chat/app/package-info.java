@@ -1,10 +1,12 @@
 /**
- * Swing UI for the chat application.
+ * Client side of the chat application.
  * <p>
- * This package contains the desktop client implementation:
- * <em>ChatApp</em> builds the user interface, <em>ChatClient</em> handles the
+ * This package contains the client implementations:
+ * <em>ChatApp</em> builds the Swing user interface, <em>ChatClient</em> handles the
  * networking and protocol I/O, and <em>ChatView</em> defines the callbacks used
- * by the client to update the UI.
+ * by the client to update the UI. <em>ChatClient</em> does not depend on Swing;
+ * <em>ConsoleChatView</em> is a headless frontend that doubles as a template for bots, and
+ * <em>MessageCache</em> keeps recent messages on disk between runs.
  * </p>
  */
 package chat.app;
\ No newline at end of file
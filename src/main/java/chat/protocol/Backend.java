@@ -1,5 +1,7 @@
 package chat.protocol;
 
+import java.util.List;
+
 /**
  * Abstraction over the server-side storage and delivery of chat messages.
  * <p>
@@ -10,6 +12,19 @@ package chat.protocol;
  * </p>
  */
 public interface Backend {
+    /**
+     * A logged-in user as resolved by {@link #sender(String)}. Callers hold on to it and pass it
+     * back instead of the nickname; only the backend that issued it knows what it contains.
+     */
+    interface Sender {
+        /**
+         * Returns the nickname this sender was resolved for.
+         *
+         * @return the nickname
+         */
+        String nick();
+    }
+
     /**
      * Attempts to reserve a nickname for a connecting client.
      *
@@ -25,6 +40,24 @@ public interface Backend {
      */
     void releaseNick(String nick);
 
+    /**
+     * Attempts to reclaim a nickname that is still reserved for a previous connection,
+     * typically one that dropped without quitting.
+     *
+     * @param nick the nickname to reclaim
+     * @param token the resume token previously issued for it by {@link #issueResumeToken(String)}
+     * @return true if the reservation exists and the token matches; the token is consumed
+     */
+    boolean resumeNick(String nick, String token);
+
+    /**
+     * Issues a new single-use resume token for a reserved nickname, replacing any previous one.
+     *
+     * @param nick a nickname reserved by the caller
+     * @return the token, or {@code null} if the nickname is not reserved
+     */
+    String issueResumeToken(String nick);
+
     /**
      * Broadcasts a public message to all connected clients.
      *
@@ -39,10 +72,97 @@ public interface Backend {
      * @param fromNick sender nickname
      * @param toNick recipient nickname
      * @param text message text
-     * @return true if the receiver exists and the message was queued for delivery; false otherwise
+     * @return false if the receiver does not exist; true if the message was queued for delivery
+     * or the sender was told why it was not
      */
     boolean sendPrivate(String fromNick, String toNick, String text);
 
+    /**
+     * Resolves a reserved nickname once, so that messages sent on its behalf need not look the
+     * sender up again. The handle stays valid while the caller holds the reservation.
+     *
+     * @param nick a nickname reserved by the caller
+     * @return a handle for the {@code Sender}-taking send methods, or {@code null} if the
+     * nickname is not reserved or the backend gains nothing from resolving it
+     */
+    default Sender sender(String nick) {
+        return null;
+    }
+
+    /**
+     * Sends a private message on behalf of a resolved sender; otherwise like
+     * {@link #sendPrivate(String, String, String)}.
+     *
+     * @param from sender returned by {@link #sender(String)}
+     * @param toNick recipient nickname
+     * @param text message text
+     * @return false if the receiver does not exist; true otherwise
+     */
+    default boolean sendPrivate(Sender from, String toNick, String text) {
+        return sendPrivate(from.nick(), toNick, text);
+    }
+
+    /**
+     * Sends one private message to several recipients. Each recipient receives the same line,
+     * which names all recipients that were online, and the sender gets a single copy of it.
+     *
+     * @param fromNick sender nickname
+     * @param toNicks distinct recipient nicknames
+     * @param text message text
+     * @return one flag per entry of {@code toNicks}, in the same order: false if that recipient
+     * does not exist; true if the message was queued for it or the sender was told why it was not
+     */
+    boolean[] sendGroupPrivate(String fromNick, List<String> toNicks, String text);
+
+    /**
+     * Sends one private message to several recipients on behalf of a resolved sender; otherwise
+     * like {@link #sendGroupPrivate(String, List, String)}.
+     *
+     * @param from sender returned by {@link #sender(String)}
+     * @param toNicks distinct recipient nicknames
+     * @param text message text
+     * @return one flag per entry of {@code toNicks}, as for the nickname variant
+     */
+    default boolean[] sendGroupPrivate(Sender from, List<String> toNicks, String text) {
+        return sendGroupPrivate(from.nick(), toNicks, text);
+    }
+
+    /**
+     * Offers a file to another user. The payload is not part of the call: if the server takes
+     * the offer, it sends the sender a {@link Protocol#FILE_UPLOAD} line saying where to upload
+     * it, and announces the file to the recipient with {@link Protocol#FILE_FROM} once it is
+     * complete.
+     *
+     * @param fromNick sender nickname
+     * @param toNick recipient nickname
+     * @param name file name to show the recipient
+     * @param size payload size in bytes
+     * @return false if the receiver does not exist; true if the sender was sent an upload
+     * ticket or told why not
+     */
+    boolean offerFile(String fromNick, String toNick, String name, long size);
+
+    /**
+     * Searches recent public messages and sends the results to the requesting user as a
+     * {@link Protocol#FOUND} line followed by one {@link Protocol#HIT} line per match.
+     *
+     * @param nick requesting user
+     * @param query search terms
+     * @return false if this backend does not support search; true otherwise
+     */
+    boolean search(String nick, String query);
+
+    /**
+     * Tells the other users that {@code nick} is composing a message.
+     * <p>
+     * Typing notices are ephemeral: implementations may rate-limit, merge or drop them, but must
+     * never let them delay a message.
+     * </p>
+     *
+     * @param nick the typing user
+     */
+    void typing(String nick);
+
     /**
      * Returns the list of reserved nicknames as a comma-separated string.
      *
@@ -52,6 +172,10 @@ public interface Backend {
 
     /**
      * Broadcasts the current users list to all connected clients.
+     * <p>
+     * Implementations may coalesce calls made in quick succession into a single update
+     * per client, as long as every client eventually receives the latest list.
+     * </p>
      */
     void broadcastUsersList();
 }
@@ -1,5 +1,9 @@
 package chat.protocol;
 
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Stateful protocol handler for a single client connection.
  * <p>
@@ -9,8 +13,17 @@ package chat.protocol;
  * </p>
  */
 public class ClientSession {
+    /** Capabilities this implementation can enable, in the order they are acknowledged. */
+    private static final List<String> SUPPORTED_CAPS = List.of(Protocol.CAP_RESUME, Protocol.CAP_STAMPS, Protocol.CAP_TYPING);
+
     private final Backend backend;
+    /** Enabled capabilities, one bit per index into {@link #SUPPORTED_CAPS}. */
+    private int caps;
     private String nick;
+    /** The backend's handle for {@link #nick}; {@code null} if it offers none. */
+    private Backend.Sender sender;
+    private boolean resumed;
+    private String resumeToken;
 
     /**
      * Creates a new session bound to a backend implementation.
@@ -32,15 +45,27 @@ public class ClientSession {
     public String process(String line) {
         if (line == null) return null;
 
+        if (line.startsWith(Protocol.CAPS)) {
+            return negotiate(line.substring(Protocol.CAPS.length()));
+        }
+
         if (nick == null) {
+            if (line.startsWith(Protocol.RESUME)) {
+                String[] parts = line.substring(Protocol.RESUME.length()).trim().split(" ", 2);
+                String candidate = parts[0];
+                if (parts.length < 2 || !isValidNick(candidate)) return Protocol.ERR_INVALID_NICK;
+                if (backend.resumeNick(candidate, parts[1].trim())) {
+                    return welcome(candidate, true);
+                }
+                return backend.reserveNick(candidate) ? welcome(candidate, false) : Protocol.ERR_NICK_TAKEN;
+            }
             if (!line.startsWith(Protocol.HANDSHAKE)) return Protocol.ERR_NOT_LOGGED_IN;
             String candidate = line.substring(Protocol.HANDSHAKE.length()).trim();
-            if (candidate.isEmpty() || candidate.contains(" ") || candidate.length() > Protocol.MAX_NICK_LENGTH) {
+            if (!isValidNick(candidate)) {
                 return Protocol.ERR_INVALID_NICK;
             }
             if (backend.reserveNick(candidate)) {
-                nick = candidate;
-                return Protocol.WELCOME;
+                return welcome(candidate, false);
             } else {
                 return Protocol.ERR_NICK_TAKEN;
             }
@@ -60,7 +85,7 @@ public class ClientSession {
             }
             String target = parts[0].trim();
             String text = parts[1].trim();
-            boolean ok = backend.sendPrivate(nick, target, text);
+            boolean ok = sender != null ? backend.sendPrivate(sender, target, text) : backend.sendPrivate(nick, target, text);
             if (ok) {
                 return null;
             } else {
@@ -68,19 +93,133 @@ public class ClientSession {
             }
         }
 
+        if (line.startsWith(Protocol.GROUP_PRIV)) {
+            String[] parts = line.substring(Protocol.GROUP_PRIV.length()).trim().split(" ", 2);
+            if (parts.length < 2) return Protocol.ERR_INVALID_MSG;
+            Set<String> unique = new LinkedHashSet<>();
+            for (String target : parts[0].split(",")) {
+                if (!target.isBlank()) unique.add(target.trim());
+            }
+            if (unique.isEmpty() || unique.size() > Protocol.MAX_GROUP_RECIPIENTS) return Protocol.ERR_INVALID_MSG;
+            List<String> targets = List.copyOf(unique);
+            String text = parts[1].trim();
+            boolean[] delivered = sender != null ? backend.sendGroupPrivate(sender, targets, text) : backend.sendGroupPrivate(nick, targets, text);
+            StringBuilder missing = new StringBuilder();
+            for (int i = 0; i < delivered.length; i++) {
+                if (delivered[i]) continue;
+                if (missing.length() > 0) missing.append(',');
+                missing.append(targets.get(i));
+            }
+            return missing.length() == 0 ? null : Protocol.UNDELIVERED + missing;
+        }
+
+        if (line.startsWith(Protocol.FILE_OFFER)) {
+            String[] parts = line.substring(Protocol.FILE_OFFER.length()).trim().split(" ", 3);
+            if (parts.length < 3 || !Protocol.isValidFileName(parts[2].trim())) return Protocol.ERR_INVALID_MSG;
+            long size;
+            try {
+                size = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                return Protocol.ERR_INVALID_MSG;
+            }
+            if (size < 0) return Protocol.ERR_INVALID_MSG;
+            return backend.offerFile(nick, parts[0], parts[2].trim(), size) ? null : Protocol.ERR_USER_NOT_FOUND;
+        }
+
         if (line.startsWith(Protocol.LIST_USERS)) {
             return Protocol.LIST_USERS + backend.usersCsv();
         }
 
+        if (line.startsWith(Protocol.SEARCH)) {
+            String query = line.substring(Protocol.SEARCH.length()).trim();
+            if (query.isEmpty()) return Protocol.ERR_INVALID_MSG;
+            return backend.search(nick, query) ? null : Protocol.ERROR_UNKNOWN;
+        }
+
+        if (line.equals(Protocol.TYPING)) {
+            backend.typing(nick);
+            return null;
+        }
+
         if (line.startsWith(Protocol.QUIT)) {
             backend.releaseNick(nick);
             nick = null;
+            sender = null;
+            resumed = false;
+            resumeToken = null;
             return null;
         }
 
         return Protocol.ERROR_UNKNOWN;
     }
 
+    private static boolean isValidNick(String candidate) {
+        // Nicks are joined with ',' in USERS, GPRIV, TYPING and UNDELIVERED, so one containing it could not be addressed.
+        return !candidate.isEmpty() && !candidate.contains(" ") && candidate.indexOf(',') < 0
+                && candidate.length() <= Protocol.MAX_NICK_LENGTH;
+    }
+
+    private String welcome(String candidate, boolean resumedSession) {
+        nick = candidate;
+        sender = backend.sender(candidate);
+        resumed = resumedSession;
+        resumeToken = hasCapability(Protocol.CAP_RESUME) ? backend.issueResumeToken(candidate) : null;
+        return Protocol.WELCOME;
+    }
+
+    /**
+     * Enables the requested capabilities this implementation supports and acknowledges them.
+     * Takes effect at once: enabling {@link Protocol#CAP_RESUME} after login issues the token
+     * that {@link #welcome} would have.
+     */
+    private String negotiate(String requested) {
+        for (String cap : requested.split(",")) {
+            int i = SUPPORTED_CAPS.indexOf(cap.trim());
+            if (i >= 0) caps |= 1 << i;
+        }
+        if (nick != null && resumeToken == null && hasCapability(Protocol.CAP_RESUME)) {
+            resumeToken = backend.issueResumeToken(nick);
+        }
+        StringBuilder ack = new StringBuilder(Protocol.CAPS);
+        for (int i = 0; i < SUPPORTED_CAPS.size(); i++) {
+            if ((caps & 1 << i) == 0) continue;
+            if (ack.length() > Protocol.CAPS.length()) ack.append(',');
+            ack.append(SUPPORTED_CAPS.get(i));
+        }
+        return ack.toString();
+    }
+
+    /**
+     * Returns whether the client enabled the given capability via {@link Protocol#CAPS}.
+     *
+     * @param cap capability name, e.g. {@link Protocol#CAP_RESUME}
+     * @return {@code true} if the capability is enabled for this session
+     */
+    public boolean hasCapability(String cap) {
+        int i = SUPPORTED_CAPS.indexOf(cap);
+        return i >= 0 && (caps & 1 << i) != 0;
+    }
+
+    /**
+     * Returns whether the current login reclaimed an existing reservation via {@link Protocol#RESUME}
+     * rather than creating a new one.
+     *
+     * @return {@code true} for a resumed session
+     */
+    public boolean resumed() {
+        return resumed;
+    }
+
+    /**
+     * Returns the resume token issued at the last successful login, if the client enabled
+     * {@link Protocol#CAP_RESUME}.
+     *
+     * @return the token to send in a {@link Protocol#TOKEN} line, or {@code null}
+     */
+    public String resumeToken() {
+        return resumeToken;
+    }
+
     /**
      * Returns the currently authenticated nickname for this session.
      *
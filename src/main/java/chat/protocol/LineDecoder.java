@@ -0,0 +1,157 @@
+package chat.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a UTF-8 byte stream into protocol lines, with a bound on the length of a line.
+ * <p>
+ * The decoder works on the caller's {@link ByteBuffer} and keeps no bytes of its own: complete
+ * lines are decoded and consumed, and a trailing partial line is left in the buffer for the
+ * caller to keep until more bytes arrive. Since a newline byte never occurs inside a multi-byte
+ * UTF-8 sequence, lines can be cut on bytes and decoded one by one, wherever the reads happened
+ * to split the stream. A trailing {@code '\r'} is dropped, so both {@code \n} and {@code \r\n}
+ * terminate a line.
+ * </p>
+ * <p>
+ * A line longer than the limit is reported through {@link Handler#oversized()} as soon as its
+ * size is known, and its bytes are discarded up to and including the next newline, however much
+ * more of them arrives. The caller therefore never has to hold more than the limit plus two bytes
+ * of a line, for {@code \r\n}.
+ * </p>
+ * <p>
+ * Instances hold the state of one stream and are not thread-safe.
+ * </p>
+ */
+public final class LineDecoder {
+    /** Receives what {@link #decode} finds. */
+    public interface Handler {
+        /**
+         * Handles one complete line.
+         *
+         * @param line the line without terminator
+         * @return {@code true} to go on with the next line, {@code false} to stop decoding and
+         * leave the rest in the buffer
+         */
+        boolean line(String line);
+
+        /** A line exceeded the limit; it is skipped. */
+        void oversized();
+    }
+
+    /** Heap copy of direct buffers, so the scan runs over an array. */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private final int maxLineBytes;
+    /** Set while the bytes up to the next newline belong to an oversized line. */
+    private boolean skipping;
+
+    /**
+     * Creates a decoder for one stream.
+     *
+     * @param maxLineBytes largest accepted line in bytes, without terminator
+     */
+    public LineDecoder(int maxLineBytes) {
+        if (maxLineBytes < 1) throw new IllegalArgumentException("maxLineBytes must be positive: " + maxLineBytes);
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    /**
+     * Returns the largest accepted line.
+     *
+     * @return limit in bytes, without terminator
+     */
+    public int maxLineBytes() {
+        return maxLineBytes;
+    }
+
+    /**
+     * Decodes the complete lines in {@code buf}, from its position to its limit.
+     * <p>
+     * On return the position is at the first byte not consumed: the start of a partial line,
+     * the line after the one the handler stopped at, or the limit. Bytes of an oversized line
+     * are consumed without being decoded.
+     * </p>
+     *
+     * @param buf bytes in read mode
+     * @param handler receiver of lines
+     */
+    public void decode(ByteBuffer buf, Handler handler) {
+        int base = buf.position();
+        int n = buf.remaining();
+        byte[] bytes;
+        int offset;
+        if (buf.hasArray()) {
+            bytes = buf.array();
+            offset = buf.arrayOffset() + base;
+        } else {
+            // One bulk copy to the heap is much cheaper than per-byte access to direct memory.
+            bytes = scratch(n);
+            buf.get(base, bytes, 0, n);
+            offset = 0;
+        }
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (bytes[offset + i] != '\n') continue;
+            int from = start;
+            start = i + 1;
+            if (!accept(bytes, offset + from, offset + i, handler)) {
+                buf.position(base + start);
+                return;
+            }
+        }
+        // One byte of slack for a '\r' whose '\n' has not arrived yet.
+        if (start == n || !skipping && n - start <= maxLineBytes + 1) {
+            buf.position(base + start);
+            return;
+        }
+        if (!skipping) {
+            skipping = true;
+            handler.oversized();
+        }
+        buf.position(buf.limit());
+    }
+
+    /**
+     * Handles the end of the stream: decodes all lines left in {@code buf}, whatever the
+     * handler returns, and treats a partial line at the end as a last line without terminator,
+     * as {@link java.io.BufferedReader#readLine()} does.
+     *
+     * @param buf remaining bytes in read mode; consumed entirely
+     * @param handler receiver of the lines
+     */
+    public void finish(ByteBuffer buf, Handler handler) {
+        for (int before = -1; buf.position() != before; ) {
+            before = buf.position();
+            decode(buf, handler);
+        }
+        int n = buf.remaining();
+        if (n == 0) return;
+        byte[] bytes = scratch(n);
+        buf.get(bytes, 0, n);
+        accept(bytes, 0, n, handler);
+    }
+
+    /** Passes on the line {@code bytes[from, to)} unless it is too long or the rest of one. */
+    private boolean accept(byte[] bytes, int from, int to, Handler handler) {
+        if (skipping) {
+            skipping = false;
+            return true;
+        }
+        if (to > from && bytes[to - 1] == '\r') to--;
+        if (to - from > maxLineBytes) {
+            handler.oversized();
+            return true;
+        }
+        return handler.line(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] scratch(int size) {
+        byte[] bytes = SCRATCH.get();
+        if (bytes.length < size) {
+            bytes = new byte[Math.max(size, bytes.length * 2)];
+            SCRATCH.set(bytes);
+        }
+        return bytes;
+    }
+}
@@ -7,6 +7,11 @@ package chat.protocol;
  * commands defined by the constants in this interface. Implementations should treat
  * values as case-sensitive.
  * </p>
+ * <p>
+ * Lines are bounded: a client may send lines of up to {@link #MAX_LINE_BYTES} and must accept
+ * lines of up to {@link #MAX_SERVER_LINE_BYTES}. The server answers a longer line with
+ * {@link #ERR_LINE_TOO_LONG}, discards it and goes on with the next one.
+ * </p>
  * Typical flow:
  * <ol>
  *   <li>Client connects and sends {@link #HANDSHAKE} + nick.</li>
@@ -16,9 +21,55 @@ package chat.protocol;
  *   <li>Users list can be requested via {@link #LIST_USERS}.</li>
  *   <li>Either side closes session by sending {@link #QUIT} or closing the socket.</li>
  * </ol>
+ * Optional features are negotiated per connection: the client sends {@link #CAPS} with the
+ * capabilities it understands and the server answers with the subset it enables. Clients
+ * that never send {@link #CAPS} see exactly the lines described above.
+ * <p>
+ * With the {@link #CAP_RESUME} capability, the server follows {@link #WELCOME} with a
+ * {@link #TOKEN} line, or the {@link #CAPS} reply if the capability is enabled after login. If the connection drops without {@link #QUIT}, the nickname stays
+ * reserved for a grace period and a new connection may reclaim it with {@link #RESUME}
+ * instead of {@link #HANDSHAKE}.
+ * </p>
+ * <p>
+ * With the {@link #CAP_STAMPS} capability, every {@link #FROM} and {@link #PRIV_FROM} line is
+ * prefixed with {@link #STAMP}, the server-assigned sequence number of the message and the
+ * server's receive time in epoch milliseconds, e.g. {@code SEQ 42 1700000000000 FROM: alice hi}.
+ * Sequence numbers increase monotonically across all messages of one server instance.
+ * </p>
+ * <p>
+ * {@link #GROUP_PRIV} sends one direct message to several users. Every recipient that is online
+ * gets a single {@link #PRIV_FROM} line whose recipient field lists all of them, comma-separated,
+ * and the sender gets one copy of it. If some recipients are not online, the server answers
+ * with {@link #UNDELIVERED} naming them.
+ * </p>
+ * <p>
+ * {@link #FILE_OFFER} offers a file to another user. The payload does not travel over the chat
+ * connection, where it would hold up every line behind it, but over a transfer connection to a
+ * separate port. The server answers the offer with {@link #FILE_UPLOAD}, naming a ticket and
+ * that port; the sender connects there, sends {@link #TRANSFER_PUT} with the ticket followed by
+ * exactly the offered number of bytes, and gets {@link #TRANSFER_OK} once they are stored. Then
+ * the recipient gets a {@link #FILE_FROM} line and fetches the file on its own transfer
+ * connection with {@link #TRANSFER_GET}, answered by {@code OK <size>} and the bytes. Failures
+ * on a transfer connection are answered with an {@code ERROR} line, after which the server
+ * closes it.
+ * </p>
+ * <p>
+ * {@link #SEARCH} looks up recent public messages. The answer is a {@link #FOUND} line with the
+ * number of results, followed by that many {@link #HIT} lines, best match first.
+ * </p>
+ * <p>
+ * With the {@link #CAP_TYPING} capability, a client may send {@link #TYPING} while its user
+ * composes a message, and receives {@code TYPING <nick1,nick2,...>} lines naming the users who
+ * started or kept typing recently. Typing notices are ephemeral: the server forwards at most one
+ * per sender every {@link #TYPING_INTERVAL_MS}, merges them into one line per recipient per
+ * tick, and drops them for recipients that still have messages waiting to be written.
+ * </p>
  */
 public interface Protocol {
-    /** Error: provided nickname is invalid (empty, contains spaces, or exceeds {@link #MAX_NICK_LENGTH}). */
+    /**
+     * Error: provided nickname is invalid (empty, contains spaces or commas, or exceeds
+     * {@link #MAX_NICK_LENGTH}). Commas separate nicknames in lists such as {@link #LIST_USERS}.
+     */
     String ERR_INVALID_NICK = "ERROR Invalid nick";
     /** Error: message format is invalid. */
     String ERR_INVALID_MSG = "ERROR Invalid message";
@@ -30,6 +81,18 @@ public interface Protocol {
     String ERROR_UNKNOWN = "ERROR Unknown command";
     /** Error: target user for a private message was not found. */
     String ERR_USER_NOT_FOUND = "ERROR User not found";
+    /** Error: the line exceeded the server's maximum line size and was discarded. */
+    String ERR_LINE_TOO_LONG = "ERROR Line too long";
+    /** Error: the server's content filter refused to deliver the message. */
+    String ERR_MESSAGE_REJECTED = "ERROR Message rejected";
+    /** Error: the server does not accept {@link #FILE_OFFER}. */
+    String ERR_NO_FILE_TRANSFER = "ERROR File transfer not available";
+    /** Error: an offered file exceeds the server's size limit. */
+    String ERR_FILE_TOO_LARGE = "ERROR File too large";
+    /** Error: a transfer named a ticket that does not exist, has expired or is not ready for it. */
+    String ERR_UNKNOWN_TICKET = "ERROR Unknown ticket";
+    /** Error: the server runs as many transfers as it allows; try again later. */
+    String ERR_TRANSFER_BUSY = "ERROR Too many transfers";
 
     /** Server broadcast line prefix: {@code FROM: <nick> <text>} */
     String FROM = "FROM: ";
@@ -39,6 +102,12 @@ public interface Protocol {
     String MSG = "MSG ";
     /** Direct message prefix: {@code PRIV <nick> <text>} */
     String PRIV = "PRIV ";
+    /** Group direct message prefix: {@code GPRIV <nick1,nick2,...> <text>} */
+    String GROUP_PRIV = "GPRIV ";
+    /** Reply to {@link #GROUP_PRIV} naming the recipients that were not online: {@code UNDELIVERED <nick1,nick2,...>} */
+    String UNDELIVERED = "UNDELIVERED ";
+    /** Maximum number of distinct recipients of one {@link #GROUP_PRIV}. */
+    int MAX_GROUP_RECIPIENTS = 50;
     /** Direct message server broadcast prefix: {@code PRIV FROM: <from> TO: <to> <text>} */
     String PRIV_FROM = "PRIV FROM: ";
     /** Part of {@link #PRIV_FROM} line separating recipient: {@code TO: } */
@@ -49,8 +118,75 @@ public interface Protocol {
     String QUIT = "QUIT";
     /** Server welcome response confirming successful login: {@code WELCOME} */
     String WELCOME = "WELCOME";
+    /** Capability negotiation command and response prefix: {@code CAPS <cap1,cap2,...>} */
+    String CAPS = "CAPS ";
+    /** Capability: session can be resumed after a dropped connection. */
+    String CAP_RESUME = "resume";
+    /** Capability: message lines carry a {@link #STAMP} prefix. */
+    String CAP_STAMPS = "stamps";
+    /** Message line prefix with sequence number and server receive time: {@code SEQ <seq> <millis> <line>} */
+    String STAMP = "SEQ ";
+    /** Server line carrying a single-use resume token after {@link #WELCOME} or {@link #CAPS}: {@code TOKEN <token>} */
+    String TOKEN = "TOKEN ";
+    /** Client handshake reclaiming a dropped session: {@code RESUME <nick> <token>} */
+    String RESUME = "RESUME ";
+    /** Typing notice: the client sends {@code TYPING}; the server sends {@code TYPING <nick1,nick2,...>} */
+    String TYPING = "TYPING";
+    /** Capability: session sends and receives {@link #TYPING} notices. */
+    String CAP_TYPING = "typing";
+    /**
+     * Minimum time between two {@link #TYPING} notices of one sender, in milliseconds. Clients
+     * need not send them more often; recipients should hide an indicator that has not been
+     * refreshed for twice this long.
+     */
+    long TYPING_INTERVAL_MS = 3000;
+    /** Search command over recent public messages: {@code SEARCH <terms>}, where a term may be {@code from:<nick>} */
+    String SEARCH = "SEARCH ";
+    /** Search response header with the number of {@link #HIT} lines that follow: {@code FOUND <count>} */
+    String FOUND = "FOUND ";
+    /** One search result: {@code HIT <seq> <millis> <from> <text>} */
+    String HIT = "HIT ";
+    /** Maximum number of {@link #HIT} lines returned for one {@link #SEARCH}. */
+    int SEARCH_LIMIT = 10;
+    /** File offer: {@code FILE <nick> <size> <name>}, where the name is the rest of the line; see {@link #isValidFileName} */
+    String FILE_OFFER = "FILE ";
+    /** Reply to {@link #FILE_OFFER}: {@code UPLOAD <ticket> <port> <name>} */
+    String FILE_UPLOAD = "UPLOAD ";
+    /** Server line announcing an uploaded file to its recipient: {@code FILE FROM: <nick> <port> <ticket> <size> <name>} */
+    String FILE_FROM = "FILE FROM: ";
+    /** First line of an upload on the transfer port, followed by the payload: {@code PUT <ticket>} */
+    String TRANSFER_PUT = "PUT ";
+    /** First line of a download on the transfer port: {@code GET <ticket>} */
+    String TRANSFER_GET = "GET ";
+    /** Transfer port reply: {@code OK} after an upload, {@code OK <size>} before a download's payload */
+    String TRANSFER_OK = "OK";
+
+    /** Default maximum size of a line sent by a client, in UTF-8 bytes without the line terminator. */
+    int MAX_LINE_BYTES = 16 * 1024;
+    /**
+     * Default maximum size of a line sent by the server, in UTF-8 bytes without the line
+     * terminator; large enough for the users list of a server with a hundred thousand users.
+     */
+    int MAX_SERVER_LINE_BYTES = 4 * 1024 * 1024;
 
     /** Maximum allowed nickname length in characters. */
     int MAX_NICK_LENGTH = 20;
 
+    /**
+     * Tells whether a {@link #FILE_OFFER} name can be taken as a file name in the recipient's
+     * directory: a single path element, so neither blank, {@code .} nor {@code ..}, and free of
+     * {@code /}, {@code \} and control characters.
+     *
+     * @param name the offered name
+     * @return {@code true} if the name is acceptable
+     */
+    static boolean isValidFileName(String name) {
+        if (name.isBlank() || name.equals(".") || name.equals("..")) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < ' ' || c == '/' || c == '\\') return false;
+        }
+        return true;
+    }
+
 }
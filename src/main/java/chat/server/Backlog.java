@@ -0,0 +1,96 @@
+package chat.server;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Flow-control account of one sender: the number of lines it caused that are still queued for
+ * delivery to other clients.
+ * <p>
+ * Outboxes charge the sender's account when they accept one of its lines and release it once the
+ * line has left the queue. When the count reaches the high-water mark the account pauses, and
+ * when it falls back to the low-water mark it resumes; the server stops reading from a paused
+ * sender's socket, so TCP pushes back on the producer instead of queues growing. The callbacks
+ * may run on any thread and only signal that the state changed; use {@link #paused()} for the
+ * current state, since signals from different threads can arrive out of order.
+ * </p>
+ */
+public final class Backlog {
+    /** Account that is never charged, for lines that have no sender to slow down. */
+    public static final Backlog NONE = new Backlog(Long.MAX_VALUE, 0, () -> {});
+
+    // Every connection has an account, so the counters are plain fields updated in place.
+    private static final AtomicLongFieldUpdater<Backlog> QUEUED = AtomicLongFieldUpdater.newUpdater(Backlog.class, "queued");
+    private static final AtomicIntegerFieldUpdater<Backlog> PAUSED = AtomicIntegerFieldUpdater.newUpdater(Backlog.class, "paused");
+
+    private volatile long queued;
+    /** 1 while paused, 0 otherwise. */
+    private volatile int paused;
+    private final long high;
+    private final long low;
+    private final Runnable onChange;
+
+    /**
+     * Creates an account.
+     *
+     * @param high queued line count at which the sender is paused
+     * @param low queued line count at which a paused sender resumes; must be below {@code high}
+     * @param onChange called after the account was paused or resumed
+     */
+    public Backlog(long high, long low, Runnable onChange) {
+        if (low < 0 || low >= high) throw new IllegalArgumentException("need 0 <= low < high: " + low + ", " + high);
+        this.high = high;
+        this.low = low;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Records lines queued on behalf of this sender.
+     *
+     * @param lines number of lines
+     */
+    public void charge(long lines) {
+        if (this == NONE) return;
+        if (QUEUED.addAndGet(this, lines) >= high) update();
+    }
+
+    /**
+     * Records lines of this sender that were written or discarded.
+     *
+     * @param lines number of lines
+     */
+    public void release(long lines) {
+        if (this == NONE) return;
+        if (QUEUED.addAndGet(this, -lines) <= low) update();
+    }
+
+    private void update() {
+        // Re-check after every transition: a concurrent charge or release may have crossed the
+        // opposite mark while this thread was switching the state.
+        while (true) {
+            boolean p = paused != 0;
+            long q = queued;
+            boolean shouldPause = p ? q > low : q >= high;
+            if (shouldPause == p) return;
+            if (PAUSED.compareAndSet(this, p ? 1 : 0, shouldPause ? 1 : 0)) onChange.run();
+        }
+    }
+
+    /**
+     * Tells whether the sender should currently be paused.
+     *
+     * @return true between reaching the high-water mark and falling back to the low-water mark
+     */
+    public boolean paused() {
+        return paused != 0;
+    }
+
+    /**
+     * Returns the number of this sender's lines that are still queued.
+     *
+     * @return queued line count
+     */
+    public long queued() {
+        return queued;
+    }
+}
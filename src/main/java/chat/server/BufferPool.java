@@ -0,0 +1,202 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of direct {@link ByteBuffer}s shared by all connections of a server.
+ * <p>
+ * Buffers come in a few fixed size classes. Each class carves its buffers out of large direct
+ * slabs that are allocated on demand and never returned to the operating system, so steady-state
+ * I/O allocates nothing, neither on the heap nor off it. A buffer is leased with
+ * {@link #acquire(int)} for as long as a connection has data in flight and handed back with
+ * {@link #release(ByteBuffer)}; idle connections hold no buffers at all.
+ * </p>
+ * <p>
+ * Occupancy is exposed through {@link #leasedBuffers()}, {@link #leasedBytes()} and
+ * {@link #allocatedBytes()}. A pool created with leak tracking records where every outstanding
+ * buffer was acquired, so tests can report buffers that were never released with
+ * {@link #leaks()}; tracking costs a stack trace per lease and is meant for tests only.
+ * </p>
+ */
+public final class BufferPool {
+    /** Buffer sizes, smallest first. Requests are served by the smallest class that fits. */
+    static final int[] SIZE_CLASSES = {1024, 8 * 1024, 64 * 1024};
+    /** Size of the direct allocations the buffers of one class are sliced from. */
+    static final int SLAB_SIZE = 256 * 1024;
+
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+    private final Map<ByteBuffer, Throwable> leases;
+
+    /** Creates a pool without leak tracking. */
+    public BufferPool() {
+        this(false);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param trackLeaks whether to record the acquisition site of every leased buffer
+     */
+    public BufferPool(boolean trackLeaks) {
+        for (int i = 0; i < classes.length; i++) classes[i] = new SizeClass(SIZE_CLASSES[i]);
+        this.leases = trackLeaks ? new IdentityHashMap<>() : null;
+    }
+
+    /**
+     * Returns the capacity of the largest buffer this pool can lease.
+     *
+     * @return largest size class in bytes
+     */
+    public static int maxBufferSize() {
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    /**
+     * Leases a cleared buffer with at least the requested capacity.
+     *
+     * @param minCapacity required capacity in bytes
+     * @return a buffer whose capacity is the smallest size class that fits
+     * @throws IllegalArgumentException if the request exceeds {@link #maxBufferSize()}
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        ByteBuffer b = classFor(minCapacity).take();
+        if (leases != null) {
+            synchronized (leases) {
+                leases.put(b, new Throwable("Buffer of " + b.capacity() + " bytes acquired here"));
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. The caller must not touch
+     * the buffer afterwards.
+     *
+     * @param buffer buffer to return
+     * @throws IllegalArgumentException if the buffer does not belong to this pool
+     * @throws IllegalStateException if leak tracking is on and the buffer is not currently leased
+     */
+    public void release(ByteBuffer buffer) {
+        if (leases != null) {
+            synchronized (leases) {
+                if (leases.remove(buffer) == null) throw new IllegalStateException("Buffer is not leased: " + buffer);
+            }
+        }
+        for (SizeClass c : classes) {
+            if (c.size == buffer.capacity()) {
+                c.give(buffer);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Buffer does not belong to this pool: " + buffer);
+    }
+
+    /**
+     * Returns the number of buffers currently leased.
+     *
+     * @return outstanding buffers across all size classes
+     */
+    public int leasedBuffers() {
+        int n = 0;
+        for (SizeClass c : classes) n += c.leased();
+        return n;
+    }
+
+    /**
+     * Returns the capacity of all buffers currently leased.
+     *
+     * @return outstanding bytes across all size classes
+     */
+    public long leasedBytes() {
+        long n = 0;
+        for (SizeClass c : classes) n += (long) c.leased() * c.size;
+        return n;
+    }
+
+    /**
+     * Returns the amount of direct memory allocated by this pool so far.
+     *
+     * @return total size of all slabs in bytes
+     */
+    public long allocatedBytes() {
+        long n = 0;
+        for (SizeClass c : classes) n += (long) c.slabs() * SLAB_SIZE;
+        return n;
+    }
+
+    /**
+     * Returns where each outstanding buffer was acquired.
+     *
+     * @return one throwable per leased buffer; empty if none are leased or tracking is off
+     */
+    public List<Throwable> leaks() {
+        if (leases == null) return List.of();
+        synchronized (leases) {
+            return new ArrayList<>(leases.values());
+        }
+    }
+
+    /** Returns a one-line summary of the pool occupancy, e.g. for logging. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BufferPool[");
+        for (SizeClass c : classes) {
+            sb.append(c.size).append("B: ").append(c.leased()).append('/').append(c.capacity()).append(", ");
+        }
+        return sb.append("direct=").append(allocatedBytes() / 1024).append("KiB]").toString();
+    }
+
+    private SizeClass classFor(int minCapacity) {
+        for (SizeClass c : classes) {
+            if (c.size >= minCapacity) return c;
+        }
+        throw new IllegalArgumentException("No buffer class holds " + minCapacity + " bytes");
+    }
+
+    private static final class SizeClass {
+        final int size;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private int slabs;
+        private int leased;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        synchronized ByteBuffer take() {
+            if (free.isEmpty()) carveSlab();
+            leased++;
+            return free.pop().clear();
+        }
+
+        synchronized void give(ByteBuffer b) {
+            leased--;
+            free.push(b);
+        }
+
+        synchronized int leased() {
+            return leased;
+        }
+
+        synchronized int slabs() {
+            return slabs;
+        }
+
+        synchronized int capacity() {
+            return slabs * (SLAB_SIZE / size);
+        }
+
+        private void carveSlab() {
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int off = 0; off + size <= SLAB_SIZE; off += size) {
+                free.add(slab.limit(off + size).position(off).slice());
+            }
+            slabs++;
+        }
+    }
+}
@@ -1,38 +1,167 @@
 package chat.server;
 
 import chat.protocol.ClientSession;
+import chat.protocol.LineDecoder;
 import chat.protocol.Protocol;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.*;
 
 /**
  * Minimal multi-client TCP chat server.
  * <p>
  * The server accepts plain-text connections, delegates per-connection protocol parsing
  * to {@link ClientSession}, and uses an in-memory backend for message routing.
- * Each client is handled on a dedicated thread. This implementation is intended for
- * demos and tests and is not optimized for production use.
+ * Accepted connections are spread over a few non-blocking {@link EventLoop}s, one per core by
+ * default (override with {@code -Dchat.server.loops}), which read, process and write for all
+ * of their clients. Outgoing lines are queued in a per-connection {@link Outbox}. Socket data
+ * only ever passes through direct buffers leased from a shared {@link BufferPool} while it is
+ * in flight. This implementation is intended for demos and tests and is not optimized for
+ * production use.
+ * </p>
+ * <p>
+ * With {@link #enableSnapshots(Path, long)} the backend state is saved periodically and on
+ * {@link #stop()}, and restored when the server starts, so a restarted server still honours
+ * the resume tokens of the clients that were connected to its predecessor.
+ * </p>
+ * <p>
+ * With {@link #enableCapture(Path)} every line received from a client is recorded to a
+ * {@link TrafficCapture}, which the replay tool in {@code src/perf} can play back against
+ * another server.
+ * </p>
+ * <p>
+ * With {@link #enableFilter(Path, long)} messages are screened against a {@link TermFilter}
+ * loaded from a file, which is reloaded whenever it changes.
+ * </p>
+ * <p>
+ * With {@link #enableFileTransfer(int, Path, long, long)} users can send each other files. The
+ * payloads go over {@link FileTransfers} connections to a port of their own, never through the
+ * event loops.
  * </p>
  */
 public class ChatServer {
+    /** Command names recorded in flight recorder events are cut to this length. */
+    private static final int MAX_COMMAND_NAME = 16;
+    /** Size of the buffer leased when a connection becomes readable. */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** Pause after a failed accept, e.g. when the process is out of file descriptors. */
+    static final long ACCEPT_RETRY_MS = 100;
+    /** Default number of queued line copies at which the server stops reading from their sender. */
+    public static final long DEFAULT_BACKLOG_LIMIT = 64 * 1024;
+
     private final int port;
-    private final InMemoryBackend backend = new InMemoryBackend();
+    private final InMemoryBackend backend;
+    private final BufferPool pool;
     private volatile boolean running = true;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops = new EventLoop[0];
+    private volatile long backlogLimit = DEFAULT_BACKLOG_LIMIT;
+    private volatile int maxLineBytes = Protocol.MAX_LINE_BYTES;
     private final CountDownLatch ready = new CountDownLatch(1);
+    private Path snapshotFile;
+    private long snapshotIntervalMillis;
+    private ScheduledExecutorService snapshots;
+    private Path captureFile;
+    private volatile TrafficCapture capture;
+    private Path filterFile;
+    private long filterCheckMillis;
+    private ScheduledExecutorService filterWatcher;
+    /** Modification time of the term file the current filter was loaded from. */
+    private FileTime filterLoaded;
+    private int transferPort = -1;
+    private Path transferSpoolDir;
+    private long transferMaxFileBytes;
+    private long transferBytesPerSecond;
+    private volatile FileTransfers transfers;
 
     /**
-     * Creates a server that will listen on the given TCP port.
+     * Creates a server that will listen on the given TCP port, with a backend that delivers
+     * messages through one partition per core (overridden by the {@code chat.server.partitions}
+     * system property) and, if the {@code chat.server.ordered} system property is true, in one
+     * global order.
      *
      * @param port TCP port to bind to
      */
     public ChatServer(int port) {
+        this(port, defaultBackend());
+    }
+
+    private static InMemoryBackend defaultBackend() {
+        InMemoryBackend backend = new InMemoryBackend(Integer.getInteger("chat.server.partitions",
+                Runtime.getRuntime().availableProcessors()));
+        if (Boolean.getBoolean("chat.server.ordered")) backend.enableOrderedDelivery();
+        return backend;
+    }
+
+    /**
+     * Creates a server that will listen on the given TCP port and route messages through
+     * a preconfigured backend.
+     *
+     * @param port TCP port to bind to
+     * @param backend backend used for nickname reservation and message delivery
+     */
+    public ChatServer(int port, InMemoryBackend backend) {
+        this(port, backend, new BufferPool());
+    }
+
+    /**
+     * Creates a server that will listen on the given TCP port, route messages through a
+     * preconfigured backend and lease its I/O buffers from the given pool.
+     *
+     * @param port TCP port to bind to
+     * @param backend backend used for nickname reservation and message delivery
+     * @param pool pool for socket read and write buffers
+     */
+    public ChatServer(int port, InMemoryBackend backend, BufferPool pool) {
         this.port = port;
+        this.backend = backend;
+        this.pool = pool;
+    }
+
+    /**
+     * Sets how many copies of a client's messages may wait in other clients' outboxes before the
+     * server stops reading from that client. Reading resumes once half of them have been written.
+     * Applies to connections accepted afterwards.
+     *
+     * @param lines high-water mark in queued lines; at least 2
+     */
+    public void setBacklogLimit(long lines) {
+        if (lines < 2) throw new IllegalArgumentException("backlog limit must be at least 2: " + lines);
+        this.backlogLimit = lines;
+    }
+
+    /**
+     * Sets the largest line a client may send, in UTF-8 bytes without the line terminator.
+     * Longer lines are answered with {@link Protocol#ERR_LINE_TOO_LONG} and skipped without
+     * being buffered. Applies to connections accepted afterwards.
+     *
+     * @param bytes line limit; at least 1 and less than the largest pooled buffer
+     */
+    public void setMaxLineBytes(int bytes) {
+        if (bytes < 1 || bytes > BufferPool.maxBufferSize() - 2) {
+            throw new IllegalArgumentException("max line bytes must be between 1 and " + (BufferPool.maxBufferSize() - 2) + ": " + bytes);
+        }
+        this.maxLineBytes = bytes;
+    }
+
+    /**
+     * Returns the pool the server leases its I/O buffers from, e.g. to report its occupancy.
+     *
+     * @return the buffer pool
+     */
+    public BufferPool bufferPool() {
+        return pool;
     }
 
     /**
@@ -42,13 +171,46 @@ public class ChatServer {
      */
     public Thread startAsync() {
         running = true;
+        if (snapshotFile != null) startSnapshots();
+        if (captureFile != null) startCapture();
+        if (filterFile != null) startFilter();
+        if (transferPort >= 0) startFileTransfer();
         Thread t = new Thread(() -> {
-            try (ServerSocket ss = new ServerSocket(port)) {
-                serverSocket = ss;
+            try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+                ss.bind(new InetSocketAddress(port));
+                serverChannel = ss;
+                EventLoop[] started = new EventLoop[Integer.getInteger("chat.server.loops",
+                        Runtime.getRuntime().availableProcessors())];
+                for (int i = 0; i < started.length; i++) started[i] = new EventLoop("chat/loop-" + i);
+                loops = started;
                 ready.countDown();
-                while (running) {
-                    Socket s = ss.accept();
-                    new Thread(() -> handle(s), "client-" + s.getPort()).start();
+                boolean failing = false;
+                for (int id = 0; running; id++) {
+                    SocketChannel ch;
+                    try {
+                        ch = ss.accept();
+                    } catch (ClosedChannelException e) {
+                        break; // stop() closed the channel
+                    } catch (IOException e) {
+                        // Usually too many open files; keep accepting once connections have closed.
+                        if (!failing) System.err.println("Accept failed, retrying: " + e);
+                        failing = true;
+                        if (!pause(ACCEPT_RETRY_MS)) break;
+                        continue;
+                    }
+                    failing = false;
+                    try {
+                        ch.configureBlocking(false);
+                    } catch (IOException e) {
+                        try {
+                            ch.close();
+                        } catch (IOException ignored) {
+                        }
+                        continue;
+                    }
+                    EventLoop loop = started[id % started.length];
+                    int connectionId = id;
+                    loop.execute(() -> register(ch, loop, connectionId));
                 }
             } catch (IOException e) {
                 ready.countDown();
@@ -60,6 +222,38 @@ public class ChatServer {
         return t;
     }
 
+    /**
+     * Sleeps for the given time.
+     *
+     * @return {@code false} if the thread was interrupted
+     */
+    static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void register(SocketChannel ch, EventLoop loop, int id) {
+        try {
+            new Connection(ch, loop, id);
+            ServerEvents.ConnectionAccepted event = new ServerEvents.ConnectionAccepted();
+            if (event.shouldCommit()) {
+                event.connectionId = id;
+                event.remoteAddress = String.valueOf(ch.getRemoteAddress());
+                event.commit();
+            }
+        } catch (IOException e) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Waits until the server has successfully bound the port.
      *
@@ -72,58 +266,455 @@ public class ChatServer {
     }
 
     /**
-     * Requests the server to stop and closes the server socket if open.
-     * The accept loop thread will exit shortly after.
+     * Requests the server to stop, closes the server socket if open, disconnects all clients
+     * and {@link InMemoryBackend#close() closes} the backend. The accept loop thread will exit
+     * shortly after.
      */
     public void stop() {
         running = false;
         try {
-            if (serverSocket != null) serverSocket.close();
+            if (serverChannel != null) serverChannel.close();
         } catch (IOException ignored) {
         }
+        for (EventLoop loop : loops) {
+            try {
+                loop.shutdown(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+            saveSnapshot();
+        }
+        if (filterWatcher != null) {
+            filterWatcher.shutdownNow();
+            filterWatcher = null;
+        }
+        if (transfers != null) {
+            backend.setFileTransfers(null);
+            transfers.close();
+            transfers = null;
+        }
+        backend.close();
+        TrafficCapture c = capture;
+        if (c != null) {
+            capture = null;
+            try {
+                c.close();
+            } catch (IOException e) {
+                System.err.println("Could not complete capture " + captureFile + ": " + e);
+            }
+        }
     }
 
     /**
-     * Handles a single connected client until the socket is closed.
-     */
-    private void handle(Socket socket) {
-        try (socket;
-             BufferedReader in = new BufferedReader(
-                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)
-             );
-             PrintWriter out = new PrintWriter(
-                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
-                     true)
-        ) {
-            ClientSession session = new ClientSession(backend);
-            String line;
-            while ((line = in.readLine()) != null) {
-                String resp = session.process(line);
-                if (resp != null) {
-                    out.println(resp);
-                    if (Protocol.WELCOME.equals(resp) && session.nick() != null) {
-                        backend.attachWriter(session.nick(), out);
-                        backend.broadcastUsersList();
-                    }
+     * Enables snapshots of the backend state. Must be called before {@link #startAsync()}.
+     * <p>
+     * On start the server restores the file if it exists, before accepting connections. While
+     * running it rewrites the file every {@code intervalMillis} and once more on {@link #stop()}.
+     * Each write goes to a temporary file that is then moved over the previous snapshot, so a
+     * crash mid-write leaves the last complete snapshot in place.
+     * </p>
+     *
+     * @param file snapshot file
+     * @param intervalMillis time between periodic snapshots; {@code 0} saves only on stop
+     */
+    public void enableSnapshots(Path file, long intervalMillis) {
+        if (intervalMillis < 0) throw new IllegalArgumentException("intervalMillis must not be negative: " + intervalMillis);
+        this.snapshotFile = file;
+        this.snapshotIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Enables recording of all inbound client lines to a file, replacing any previous content.
+     * Must be called before {@link #startAsync()}; the capture is completed by {@link #stop()}.
+     *
+     * @param file capture file
+     */
+    public void enableCapture(Path file) {
+        this.captureFile = file;
+    }
+
+    /**
+     * Enables screening of public and private messages against the terms in a file. Must be
+     * called before {@link #startAsync()}.
+     * <p>
+     * The file is loaded with {@link TermFilter#load(Path)} when the server starts and again
+     * whenever its modification time changes. A file that cannot be loaded is reported and
+     * leaves the previous filter, if any, in place.
+     * </p>
+     *
+     * @param file term file
+     * @param checkIntervalMillis time between checks for a changed file; {@code 0} loads it only once
+     */
+    public void enableFilter(Path file, long checkIntervalMillis) {
+        if (checkIntervalMillis < 0) throw new IllegalArgumentException("checkIntervalMillis must not be negative: " + checkIntervalMillis);
+        this.filterFile = file;
+        this.filterCheckMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Enables file transfers between users. Must be called before {@link #startAsync()}.
+     *
+     * @param port port for transfer connections, or 0 for any free one (see {@link #fileTransferPort()})
+     * @param spoolDir directory for payloads in transit, or {@code null} for the system temp directory
+     * @param maxFileBytes largest file a user may offer
+     * @param bytesPerSecond bandwidth budget of one user, shared by all of their transfers
+     */
+    public void enableFileTransfer(int port, Path spoolDir, long maxFileBytes, long bytesPerSecond) {
+        if (port < 0) throw new IllegalArgumentException("port must not be negative: " + port);
+        if (maxFileBytes < 0) throw new IllegalArgumentException("maxFileBytes must not be negative: " + maxFileBytes);
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+        this.transferPort = port;
+        this.transferSpoolDir = spoolDir;
+        this.transferMaxFileBytes = maxFileBytes;
+        this.transferBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Returns the port file transfers are accepted on.
+     *
+     * @return the bound port, or -1 if file transfer is not running
+     */
+    public int fileTransferPort() {
+        FileTransfers t = transfers;
+        return t == null ? -1 : t.port();
+    }
+
+    private void startFileTransfer() {
+        FileTransfers t = new FileTransfers(transferSpoolDir, transferMaxFileBytes, transferBytesPerSecond,
+                FileTransfers.DEFAULT_TICKET_TTL_MS);
+        try {
+            t.start(transferPort);
+        } catch (IOException e) {
+            System.err.println("File transfer disabled, cannot bind port " + transferPort + ": " + e);
+            t.close();
+            return;
+        }
+        transfers = t;
+        backend.setFileTransfers(t);
+    }
+
+    private void startFilter() {
+        filterLoaded = null;
+        reloadFilter();
+        if (filterCheckMillis == 0) return;
+        filterWatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat/filter");
+            t.setDaemon(true);
+            return t;
+        });
+        filterWatcher.scheduleWithFixedDelay(this::reloadFilter, filterCheckMillis, filterCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reloadFilter() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(filterFile);
+            if (modified.equals(filterLoaded)) return;
+            filterLoaded = modified;
+            long start = System.nanoTime();
+            TermFilter filter = TermFilter.load(filterFile);
+            backend.setMessageFilter(filter);
+            System.out.printf("Loaded %d filter terms from %s in %d ms%n",
+                    filter.size(), filterFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            System.err.println("Could not load filter " + filterFile + ": " + e);
+        }
+    }
+
+    private void startCapture() {
+        try {
+            capture = new TrafficCapture(Files.newOutputStream(captureFile));
+        } catch (IOException e) {
+            System.err.println("Not capturing traffic to " + captureFile + ": " + e);
+        }
+    }
+
+    private void startSnapshots() {
+        long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(snapshotFile)) {
+            int restored = backend.restoreSnapshot(in);
+            System.out.printf("Restored %d reservations from %s in %d ms%n",
+                    restored, snapshotFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable snapshot " + snapshotFile + ": " + e);
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat/snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        if (snapshotIntervalMillis > 0) {
+            snapshots.scheduleWithFixedDelay(this::saveSnapshot,
+                    snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void saveSnapshot() {
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                backend.writeSnapshot(out);
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write snapshot " + snapshotFile + ": " + e);
+        }
+    }
+
+    /**
+     * One client connection, owned by a single event loop. All methods run on that loop's thread.
+     * <p>
+     * Incoming bytes are read into a buffer leased from the pool only while the connection has
+     * data in flight: once every complete line has been processed the buffer goes back to the
+     * pool, and a trailing partial line is kept in the smallest buffer that holds it. The
+     * {@link LineDecoder} cuts lines straight out of that buffer and skips lines over the limit,
+     * so a partial line never needs more than the limit plus two bytes.
+     * </p>
+     * <p>
+     * While the connection's {@link Backlog} is paused, it neither processes buffered lines nor
+     * reads from the socket, so the client's own TCP send window fills up and slows it down.
+     * </p>
+     */
+    private final class Connection implements EventLoop.Handler, LineDecoder.Handler {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final int id;
+        private final SelectionKey key;
+        private final ClientSession session = new ClientSession(backend);
+        private final Outbox out;
+        private final Backlog backlog;
+        private final LineDecoder decoder = new LineDecoder(maxLineBytes);
+        private ByteBuffer in;
+        private boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop, int id) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.id = id;
+            this.key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            this.out = new Outbox(channel, pool, loop, () -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }, () -> loop.execute(() -> close("output overflow")));
+            long limit = backlogLimit;
+            this.backlog = new Backlog(limit, limit / 2, () -> loop.execute(this::updateReadInterest));
+        }
+
+        @Override
+        public void readable() {
+            if (backlog.paused()) return;
+            try {
+                if (in == null) {
+                    in = pool.acquire(READ_BUFFER_SIZE);
+                } else if (in.capacity() < READ_BUFFER_SIZE) {
+                    in = moveTo(READ_BUFFER_SIZE); // a parked partial line must not shrink the next read
+                } else if (!in.hasRemaining()) {
+                    // A full buffer holds at most the limit plus two bytes, so the next size class still fits.
+                    in = moveTo(in.capacity() + 1);
+                }
+                int n = channel.read(in);
+                if (n < 0) {
+                    decoder.finish(in.flip(), this);
+                    close("end of stream");
+                    return;
+                }
+                processLines();
+            } catch (IOException e) {
+                close("read failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void writable() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            out.writable();
+        }
+
+        @Override
+        public void close() {
+            close("server stopped");
+        }
+
+        @Override
+        public void failed(RuntimeException e) {
+            close("internal error: " + e);
+        }
+
+        private void close(String reason) {
+            if (closed) return;
+            closed = true;
+            ServerEvents.ConnectionClosed event = new ServerEvents.ConnectionClosed();
+            if (event.shouldCommit()) {
+                event.connectionId = id;
+                event.nick = session.nick();
+                event.reason = reason;
+                event.commit();
+            }
+            TrafficCapture c = capture;
+            if (c != null) c.closed(id);
+            if (in != null) {
+                pool.release(in);
+                in = null;
+            }
+            if (session.nick() != null) {
+                backend.connectionLost(session.nick(), out, session.hasCapability(Protocol.CAP_RESUME));
+            }
+            out.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void updateReadInterest() {
+            if (closed) return;
+            if (!backlog.paused() && in != null) processLines();
+            if (closed) return;
+            int ops = key.interestOps();
+            key.interestOps(backlog.paused() ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+
+        private void processLines() {
+            decoder.decode(in.flip(), this);
+            if (closed) return;
+            if (!in.hasRemaining()) {
+                pool.release(in);
+                in = null;
+            } else if (in.remaining() <= BufferPool.SIZE_CLASSES[0] && in.capacity() > BufferPool.SIZE_CLASSES[0]) {
+                // An idle connection with half a line should not pin a large buffer.
+                in.compact();
+                in = moveTo(in.position());
+            } else {
+                in.compact();
+            }
+        }
+
+        /** Moves the buffered bytes into a buffer of the given size class, in write mode. */
+        private ByteBuffer moveTo(int size) {
+            ByteBuffer target = pool.acquire(size);
+            target.put(in.flip());
+            pool.release(in);
+            return target;
+        }
+
+        @Override
+        public boolean line(String line) {
+            onLine(line);
+            return !closed && !backlog.paused();
+        }
+
+        @Override
+        public void oversized() {
+            out.send(Protocol.ERR_LINE_TOO_LONG);
+        }
+
+        private void onLine(String line) {
+            TrafficCapture c = capture;
+            if (c != null) c.line(id, line);
+            ServerEvents.Command event = new ServerEvents.Command();
+            event.begin();
+            boolean loggedIn = session.nick() != null;
+            String token = session.resumeToken();
+            String resp = session.process(line);
+            if (!loggedIn && (line.startsWith(Protocol.HANDSHAKE) || line.startsWith(Protocol.RESUME))) {
+                loginEvent(line, resp);
+            }
+            respond(resp, token);
+            if (event.shouldCommit()) {
+                int space = line.indexOf(' ');
+                event.connectionId = id;
+                event.command = line.substring(0, Math.min(space < 0 ? line.length() : space, MAX_COMMAND_NAME));
+                event.nick = session.nick();
+                event.response = resp;
+                event.commit();
+            }
+        }
+
+        private void loginEvent(String line, String resp) {
+            ServerEvents.Login event = new ServerEvents.Login();
+            if (!event.shouldCommit()) return;
+            event.connectionId = id;
+            event.succeeded = Protocol.WELCOME.equals(resp);
+            event.nick = event.succeeded ? session.nick() : line.substring(line.indexOf(' ') + 1).split(" ", 2)[0];
+            event.resumed = session.resumed();
+            event.response = resp;
+            event.commit();
+        }
+
+        /**
+         * Sends the session's reply and applies what it changed.
+         *
+         * @param previousToken the session's resume token before the line was processed
+         */
+        private void respond(String resp, String previousToken) {
+            if (resp == null) return;
+            out.send(resp);
+            if (session.nick() == null) return;
+            if (Protocol.WELCOME.equals(resp)) {
+                attach();
+                if (session.resumeToken() != null) out.send(Protocol.TOKEN + session.resumeToken());
+                if (session.resumed()) {
+                    // The reservation never left the users list; only the resuming client needs it.
+                    out.sendPresence(Protocol.LIST_USERS + backend.usersCsv());
                 } else {
-                    if (session.nick() != null) {
-                        backend.attachWriter(session.nick(), out);
-                    }
+                    backend.broadcastUsersList();
                 }
+            } else if (resp.startsWith(Protocol.CAPS)) {
+                attach();
+                String token = session.resumeToken();
+                if (token != null && !token.equals(previousToken)) out.send(Protocol.TOKEN + token);
             }
-        } catch (IOException ignored) {
         }
+
+        /** Hands the backend this connection's sink and options; done at login and whenever CAPS changes them. */
+        private void attach() {
+            backend.attach(session.nick(), out, session.hasCapability(Protocol.CAP_STAMPS), backlog);
+            backend.setTypingNotices(session.nick(), session.hasCapability(Protocol.CAP_TYPING));
+        }
+
     }
 
     /**
      * Starts the server from the command line.
      *
+     * <p>
+     * Setting the {@code chat.snapshot.file} system property enables snapshots to that file;
+     * {@code chat.snapshot.intervalMs} overrides the default interval of ten seconds.
+     * Setting {@code chat.capture.file} records all inbound client traffic to that file.
+     * Setting {@code chat.filter.file} screens messages against the terms in that file, which is
+     * checked for changes every five seconds ({@code chat.filter.checkMs}).
+     * {@code chat.server.maxLineBytes} changes the longest line a client may send.
+     * Setting {@code chat.transfer.port} enables file transfers on that port, spooled to
+     * {@code chat.transfer.dir} (default: the temp directory), with a size limit of
+     * {@code chat.transfer.maxBytes} and a per-user budget of {@code chat.transfer.bytesPerSecond}.
+     * </p>
+     *
      * @param args first argument may specify the port (default 5000)
      * @throws Exception if the server thread is interrupted
      */
     public static void main(String[] args) throws Exception {
         int port = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
         ChatServer server = new ChatServer(port);
+        server.setMaxLineBytes(Integer.getInteger("chat.server.maxLineBytes", Protocol.MAX_LINE_BYTES));
+        String snapshot = System.getProperty("chat.snapshot.file");
+        if (snapshot != null) {
+            server.enableSnapshots(Path.of(snapshot), Long.getLong("chat.snapshot.intervalMs", 10_000));
+        }
+        String capture = System.getProperty("chat.capture.file");
+        if (capture != null) server.enableCapture(Path.of(capture));
+        String filter = System.getProperty("chat.filter.file");
+        if (filter != null) server.enableFilter(Path.of(filter), Long.getLong("chat.filter.checkMs", 5_000));
+        Integer transferPort = Integer.getInteger("chat.transfer.port");
+        if (transferPort != null) {
+            String dir = System.getProperty("chat.transfer.dir");
+            server.enableFileTransfer(transferPort, dir == null ? null : Path.of(dir),
+                    Long.getLong("chat.transfer.maxBytes", FileTransfers.DEFAULT_MAX_FILE_BYTES),
+                    Long.getLong("chat.transfer.bytesPerSecond", FileTransfers.DEFAULT_BYTES_PER_SECOND));
+        }
         Thread t = server.startAsync();
         if (server.isReady(5000)) {
             System.err.println("Server did not start within 5s.");
@@ -0,0 +1,167 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-threaded selector loop serving many non-blocking connections.
+ * <p>
+ * Each registered channel carries a {@link Handler} as its key attachment, which is called on
+ * the loop thread when the channel becomes readable or writable. The loop is also an
+ * {@link Executor}: tasks submitted from any thread run on the loop thread between selects,
+ * which is how other threads hand work to the connections it owns without locking them.
+ * </p>
+ */
+final class EventLoop implements Executor {
+    /** Callbacks for one registered channel; all run on the loop thread. */
+    interface Handler {
+        /** The channel has data to read. */
+        void readable();
+
+        /** The channel can accept more output. */
+        void writable();
+
+        /** The loop is shutting down; release the channel and its resources. */
+        void close();
+
+        /**
+         * A callback threw; release the channel and its resources. The loop keeps serving its
+         * other channels.
+         *
+         * @param e what the callback threw
+         */
+        default void failed(RuntimeException e) {
+            close();
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the loop thread.
+     *
+     * @param name thread name
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the selector channels must be registered with. Registration must happen on the
+     * loop thread, e.g. from a task passed to {@link #execute(Runnable)}.
+     *
+     * @return this loop's selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Tells whether the caller runs on this loop's thread.
+     *
+     * @return {@code true} on the loop thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        // One wakeup per batch of tasks; the loop re-arms the flag before draining the queue.
+        if (!inLoop() && wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    /**
+     * Stops the loop, closing every registered handler on the loop thread, and waits for the
+     * thread to exit.
+     *
+     * @param millis maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void shutdown(long millis) throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join(millis);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                // Tasks queued by the loop itself do not wake the selector, so never block while any are pending.
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler h = (Handler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) h.readable();
+                        if (key.isValid() && key.isWritable()) h.writable();
+                    } catch (RuntimeException e) {
+                        // A bug hit by one connection must not close every other one on this loop.
+                        e.printStackTrace();
+                        fail(key, h, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            runTasks();
+            for (SelectionKey key : List.copyOf(selector.keys())) {
+                if (key.attachment() instanceof Handler h) h.close();
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Lets a failed handler clean up, then makes sure its channel is closed even if that threw too. */
+    private static void fail(SelectionKey key, Handler h, RuntimeException e) {
+        try {
+            h.failed(e);
+        } catch (RuntimeException again) {
+            again.printStackTrace();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable r; (r = tasks.poll()) != null; ) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
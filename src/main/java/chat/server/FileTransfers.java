@@ -0,0 +1,523 @@
+package chat.server;
+
+import chat.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Side channel that carries file payloads between users, away from the chat connections.
+ * <p>
+ * A file offered with {@link Protocol#FILE_OFFER} gets a {@link Ticket} here, and the sender
+ * uploads the payload on a connection to this service's own port with {@link Protocol#TRANSFER_PUT}.
+ * The payload is spooled to a temporary file; once it is complete the ticket's listener
+ * announces it to the recipient, who downloads it with {@link Protocol#TRANSFER_GET}. Tickets are
+ * 128-bit random values, so only the two users they were issued to can use them, and they expire
+ * together with the spooled file after a while.
+ * </p>
+ * <p>
+ * Payload bytes never enter the Java heap: uploads go to the spool file with
+ * {@link FileChannel#transferFrom} and downloads leave it with {@link FileChannel#transferTo},
+ * which the operating system can serve without copying to user space at all. Each transfer
+ * runs with blocking I/O on a thread of its own, at most {@link #MAX_TRANSFERS} at a time, so
+ * the event loops never see a transfer and chat lines keep their latency however large the
+ * files are.
+ * </p>
+ * <p>
+ * Every user has a bandwidth budget shared by all of their uploads and downloads. Transfers
+ * move in chunks of {@link #CHUNK_BYTES}, and each chunk waits until the user's budget allows
+ * it. A transfer connection that makes no progress for {@link #IDLE_TIMEOUT_MS} is closed.
+ * </p>
+ */
+public final class FileTransfers implements Closeable {
+    /** Default largest file a user may offer. */
+    public static final long DEFAULT_MAX_FILE_BYTES = 256L * 1024 * 1024;
+    /** Default bandwidth budget of one user, shared by all of their transfers. */
+    public static final long DEFAULT_BYTES_PER_SECOND = 4L * 1024 * 1024;
+    /** Default time a ticket stays valid after the offer. */
+    public static final long DEFAULT_TICKET_TTL_MS = 10 * 60_000;
+    /** Number of transfers that may run at once; more are refused with {@link Protocol#ERR_TRANSFER_BUSY}. */
+    static final int MAX_TRANSFERS = 64;
+    /** Bytes moved per system call, and the unit the bandwidth budget is paced in. */
+    static final int CHUNK_BYTES = 64 * 1024;
+    /** Time without progress after which a transfer connection is closed. */
+    static final long IDLE_TIMEOUT_MS = 30_000;
+    /** Longest first line accepted on a transfer connection. */
+    private static final int MAX_HEADER_BYTES = 128;
+
+    /** Receives tickets whose upload has completed. */
+    public interface UploadListener {
+        /**
+         * Announces a complete upload to its recipient.
+         *
+         * @param ticket the ticket, now ready for download
+         * @return {@code false} if the recipient is gone, which discards the file
+         */
+        boolean uploaded(Ticket ticket);
+    }
+
+    /** A file offered by one user to another, from the offer until it expires. */
+    public static final class Ticket {
+        private final String id;
+        private final String from;
+        private final String to;
+        private final String name;
+        private final long size;
+        private final long expiresNanos;
+        private final UploadListener listener;
+        // Guarded by the ticket's monitor.
+        private boolean uploading;
+        private Path file;
+
+        Ticket(String id, String from, String to, String name, long size, long expiresNanos, UploadListener listener) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.name = name;
+            this.size = size;
+            this.expiresNanos = expiresNanos;
+            this.listener = listener;
+        }
+
+        /** The ticket as sent in {@link Protocol#TRANSFER_PUT} and {@link Protocol#TRANSFER_GET}. */
+        public String id() {
+            return id;
+        }
+
+        /** Sender nickname. */
+        public String from() {
+            return from;
+        }
+
+        /** Recipient nickname. */
+        public String to() {
+            return to;
+        }
+
+        /** File name given by the sender. */
+        public String name() {
+            return name;
+        }
+
+        /** Payload size in bytes. */
+        public long size() {
+            return size;
+        }
+
+        /** Lets exactly one connection upload the payload. */
+        synchronized boolean startUpload() {
+            if (uploading || file != null) return false;
+            uploading = true;
+            return true;
+        }
+
+        synchronized void finishUpload(Path spooled) {
+            uploading = false;
+            file = spooled;
+        }
+
+        /** The spooled payload, or {@code null} while the upload has not completed. */
+        synchronized Path file() {
+            return file;
+        }
+
+        /** Whether the sweeper may discard the ticket; an upload in progress cleans up after itself. */
+        synchronized boolean expired(long now) {
+            return !uploading && now - expiresNanos > 0;
+        }
+    }
+
+    /** Paces the transfers of one user to its bandwidth budget. */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        // Guarded by the throttle's monitor.
+        private long nextNanos;
+        /** Transfers using this throttle; guarded by the throttles map. */
+        int transfers;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /** Books {@code bytes} of the budget and returns how long to wait before moving them. */
+        synchronized long reserve(long bytes) {
+            long now = System.nanoTime();
+            // Unused budget is not saved up, so an idle user cannot burst later.
+            long start = nextNanos - now > 0 ? nextNanos : now;
+            nextNanos = start + bytes * 1_000_000_000L / bytesPerSecond;
+            return start - now;
+        }
+    }
+
+    private final Path spoolDir;
+    private final long maxFileBytes;
+    private final long bytesPerSecond;
+    private final long ticketTtlNanos;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(0, MAX_TRANSFERS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+        Thread t = new Thread(r, "chat/transfer-" + threadIds.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat/transfer-sweep");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+
+    /**
+     * Creates the service with the default limits. Call {@link #start(int)} to accept transfers.
+     *
+     * @param spoolDir directory for payloads in transit, or {@code null} for the system temp directory
+     */
+    public FileTransfers(Path spoolDir) {
+        this(spoolDir, DEFAULT_MAX_FILE_BYTES, DEFAULT_BYTES_PER_SECOND, DEFAULT_TICKET_TTL_MS);
+    }
+
+    /**
+     * Creates the service. Call {@link #start(int)} to accept transfers.
+     *
+     * @param spoolDir directory for payloads in transit, or {@code null} for the system temp directory
+     * @param maxFileBytes largest file a user may offer
+     * @param bytesPerSecond bandwidth budget of one user, shared by all of their transfers
+     * @param ticketTtlMillis time a ticket and its file stay valid after the offer
+     */
+    public FileTransfers(Path spoolDir, long maxFileBytes, long bytesPerSecond, long ticketTtlMillis) {
+        if (maxFileBytes < 0) throw new IllegalArgumentException("maxFileBytes must not be negative: " + maxFileBytes);
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+        if (ticketTtlMillis <= 0) throw new IllegalArgumentException("ticketTtlMillis must be positive: " + ticketTtlMillis);
+        this.spoolDir = spoolDir;
+        this.maxFileBytes = maxFileBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.ticketTtlNanos = TimeUnit.MILLISECONDS.toNanos(ticketTtlMillis);
+    }
+
+    /**
+     * Binds the transfer port and starts accepting transfer connections on a daemon thread.
+     *
+     * @param port TCP port, or 0 for any free one
+     * @throws IOException if the port cannot be bound
+     */
+    public void start(int port) throws IOException {
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        try {
+            ss.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            ss.close();
+            throw e;
+        }
+        serverChannel = ss;
+        Thread t = new Thread(() -> acceptLoop(ss), "chat/transfer-accept");
+        t.setDaemon(true);
+        t.start();
+        long sweepMillis = Math.min(IDLE_TIMEOUT_MS, TimeUnit.NANOSECONDS.toMillis(ticketTtlNanos)) / 2 + 1;
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the port transfer connections go to.
+     *
+     * @return the bound port, or -1 before {@link #start(int)}
+     */
+    public int port() {
+        ServerSocketChannel ss = serverChannel;
+        return ss == null ? -1 : ss.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the largest file a user may offer.
+     *
+     * @return limit in bytes
+     */
+    public long maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    /**
+     * Issues a ticket for a file that {@code from} wants to send to {@code to}.
+     *
+     * @param from sender nickname
+     * @param to recipient nickname
+     * @param name file name to show the recipient
+     * @param size payload size in bytes, at most {@link #maxFileBytes()}
+     * @param listener told once the payload has been uploaded
+     * @return the ticket
+     */
+    public Ticket offer(String from, String to, String name, long size, UploadListener listener) {
+        if (size < 0 || size > maxFileBytes) throw new IllegalArgumentException("size out of range: " + size);
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        Ticket t = new Ticket(HexFormat.of().formatHex(bytes), from, to, name, size, System.nanoTime() + ticketTtlNanos, listener);
+        tickets.put(t.id, t);
+        return t;
+    }
+
+    /**
+     * Returns the number of tickets that have not expired yet.
+     *
+     * @return ticket count
+     */
+    public int tickets() {
+        return tickets.size();
+    }
+
+    /**
+     * Stops accepting transfers, aborts the running ones and deletes all spooled files.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ServerSocketChannel ss = serverChannel;
+        if (ss != null) {
+            try {
+                ss.close();
+            } catch (IOException ignored) {
+            }
+        }
+        sweeper.shutdownNow();
+        workers.shutdownNow();
+        for (Transfer t : active) t.abort();
+        for (Ticket t : tickets.values()) discard(t);
+    }
+
+    private void acceptLoop(ServerSocketChannel ss) {
+        boolean failing = false;
+        while (!closed) {
+            SocketChannel ch;
+            try {
+                ch = ss.accept();
+            } catch (ClosedChannelException e) {
+                return; // closed by close()
+            } catch (IOException e) {
+                // Usually too many open files; keep accepting once connections have closed.
+                if (!failing) System.err.println("Transfer accept failed, retrying: " + e);
+                failing = true;
+                if (!ChatServer.pause(ChatServer.ACCEPT_RETRY_MS)) return;
+                continue;
+            }
+            failing = false;
+            try {
+                workers.execute(new Transfer(ch));
+            } catch (RejectedExecutionException e) {
+                try (ch) {
+                    reply(ch, Protocol.ERR_TRANSFER_BUSY);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Closes stalled transfers and discards expired tickets with their files. */
+    private void sweep() {
+        long now = System.nanoTime();
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        for (Transfer t : active) {
+            if (now - t.lastProgressNanos > idle) t.abort();
+        }
+        for (Ticket t : tickets.values()) {
+            if (t.expired(now)) discard(t);
+        }
+    }
+
+    private void discard(Ticket t) {
+        tickets.remove(t.id, t);
+        Path file = t.file();
+        if (file == null) return;
+        try {
+            // A download still running keeps reading from its open channel.
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete spooled file " + file + ": " + e);
+        }
+    }
+
+    private Throttle acquireThrottle(String nick) {
+        return throttles.compute(nick, (k, t) -> {
+            if (t == null) t = new Throttle(bytesPerSecond);
+            t.transfers++;
+            return t;
+        });
+    }
+
+    private void releaseThrottle(String nick) {
+        throttles.computeIfPresent(nick, (k, t) -> --t.transfers == 0 ? null : t);
+    }
+
+    /** One transfer connection, from its first line to its last byte. */
+    private final class Transfer implements Runnable {
+        private final SocketChannel channel;
+        volatile long lastProgressNanos = System.nanoTime();
+
+        Transfer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            active.add(this);
+            try (channel) {
+                if (closed) return;
+                String header = readHeader();
+                if (header == null) return;
+                if (header.startsWith(Protocol.TRANSFER_PUT)) {
+                    upload(header.substring(Protocol.TRANSFER_PUT.length()).trim());
+                } else if (header.startsWith(Protocol.TRANSFER_GET)) {
+                    download(header.substring(Protocol.TRANSFER_GET.length()).trim());
+                } else {
+                    reply(channel, Protocol.ERROR_UNKNOWN);
+                }
+            } catch (IOException ignored) {
+                // The peer went away or was closed for stalling; nothing to tell it.
+            } finally {
+                active.remove(this);
+            }
+        }
+
+        void abort() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Reads the first line byte by byte, so the payload behind it stays in the socket for
+         * the channel transfer. Returns {@code null} on a missing or overlong line.
+         */
+        private String readHeader() throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            byte[] line = new byte[MAX_HEADER_BYTES];
+            for (int n = 0; n < line.length; n++) {
+                one.clear();
+                if (channel.read(one) < 0) return null;
+                byte b = one.get(0);
+                if (b == '\n') {
+                    if (n > 0 && line[n - 1] == '\r') n--;
+                    return new String(line, 0, n, StandardCharsets.UTF_8);
+                }
+                line[n] = b;
+            }
+            reply(channel, Protocol.ERR_LINE_TOO_LONG);
+            return null;
+        }
+
+        private void upload(String id) throws IOException {
+            Ticket t = tickets.get(id);
+            if (t == null || !t.startUpload()) {
+                reply(channel, Protocol.ERR_UNKNOWN_TICKET);
+                return;
+            }
+            ServerEvents.FileTransfer event = new ServerEvents.FileTransfer();
+            event.begin();
+            Path file = null;
+            boolean announced = false;
+            Throttle throttle = acquireThrottle(t.from);
+            try {
+                file = spoolDir == null ? Files.createTempFile("chat-upload", ".part") : Files.createTempFile(spoolDir, "chat-upload", ".part");
+                try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    for (long pos = 0; pos < t.size; ) {
+                        long n = fc.transferFrom(channel, pos, pace(throttle, Math.min(CHUNK_BYTES, t.size - pos)));
+                        // A blocking socket only comes up empty at its end.
+                        if (n == 0) throw new EOFException("upload ended after " + pos + " of " + t.size + " bytes");
+                        pos += n;
+                        lastProgressNanos = System.nanoTime();
+                    }
+                }
+                t.finishUpload(file);
+                announced = !closed && t.listener.uploaded(t);
+            } finally {
+                releaseThrottle(t.from);
+                if (!announced) {
+                    t.finishUpload(file);
+                    discard(t);
+                }
+                record(event, t, true, announced);
+            }
+            reply(channel, announced ? Protocol.TRANSFER_OK : Protocol.ERR_USER_NOT_FOUND);
+        }
+
+        private void download(String id) throws IOException {
+            Ticket t = tickets.get(id);
+            Path file = t == null ? null : t.file();
+            if (file == null) {
+                reply(channel, Protocol.ERR_UNKNOWN_TICKET);
+                return;
+            }
+            ServerEvents.FileTransfer event = new ServerEvents.FileTransfer();
+            event.begin();
+            boolean completed = false;
+            Throttle throttle = acquireThrottle(t.to);
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                reply(channel, Protocol.TRANSFER_OK + " " + t.size);
+                for (long pos = 0; pos < t.size; ) {
+                    pos += fc.transferTo(pos, pace(throttle, Math.min(CHUNK_BYTES, t.size - pos)), channel);
+                    lastProgressNanos = System.nanoTime();
+                }
+                completed = true;
+            } finally {
+                releaseThrottle(t.to);
+                record(event, t, false, completed);
+            }
+        }
+
+        /** Waits until the budget allows {@code bytes} more and returns them. */
+        private long pace(Throttle throttle, long bytes) throws IOException {
+            long wait = throttle.reserve(bytes);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("transfer aborted");
+                }
+            }
+            lastProgressNanos = System.nanoTime();
+            return bytes;
+        }
+    }
+
+    private static void reply(SocketChannel ch, String line) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    private static void record(ServerEvents.FileTransfer event, Ticket t, boolean upload, boolean completed) {
+        if (!event.shouldCommit()) return;
+        event.sender = t.from;
+        event.recipient = t.to;
+        event.upload = upload;
+        event.bytes = t.size;
+        event.completed = completed;
+        event.commit();
+    }
+}
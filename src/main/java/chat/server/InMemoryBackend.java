@@ -3,37 +3,454 @@ package chat.server;
 import chat.protocol.Backend;
 import chat.protocol.Protocol;
 
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple in-memory {@link Backend} implementation backed by concurrent maps.
  * <p>
- * This backend stores the set of reserved nicknames and the latest {@link PrintWriter}
+ * This backend stores the set of reserved nicknames and the latest {@link LineSink}
  * associated with each connected client. It is intended for testing and local demos.
  * </p>
+ * <p>
+ * A reservation whose connection drops without quitting can be kept for a grace period
+ * (see {@link #connectionLost(String, LineSink, boolean)}); during that time it stays in the
+ * users list and can be reclaimed with its resume token, so a reconnecting client does not
+ * cause presence updates at all.
+ * </p>
+ * <p>
+ * Every public and private message is assigned a sequence number from a single counter and
+ * stamped with the time the backend received it. Writers attached with stamping enabled get
+ * both in a {@link Protocol#STAMP} prefix; all other writers get the plain line.
+ * </p>
+ * <p>
+ * Presence changes are coalesced: {@link #broadcastUsersList()} only marks the users list
+ * dirty, and a timer sends one snapshot to everyone per presence tick. Login and logout storms
+ * therefore cost one users-list line per client per tick instead of one per change. Typing
+ * notices are collected the same way, after dropping those that repeat a user's previous notice
+ * within {@link Protocol#TYPING_INTERVAL_MS}.
+ * </p>
+ * <p>
+ * Every reservation gets a compact integer id, released ids being handed out again first, and
+ * the backend keeps a table from ids back to sessions. A backend created with delivery
+ * partitions spreads the connected users over that many partitions by id, each owned by a
+ * {@link PartitionLoop} thread that keeps its members in an array indexed by id. A message is
+ * handed to the partitions through their lock-free mailboxes, and each partition thread writes
+ * it to its own members, so senders never iterate the users map and delivery work spreads over
+ * all partitions. The reservations themselves stay in one concurrent map keyed by nickname,
+ * since logins are rare compared to messages.
+ * </p>
+ * <p>
+ * Optionally, all messages pass through a ring buffer with a single router thread first (see
+ * {@link #enableOrderedDelivery()}), which gives public messages one global order.
+ * </p>
+ * <p>
+ * The durable part of the state can be saved with {@link #writeSnapshot(OutputStream)} and
+ * loaded into a fresh backend with {@link #restoreSnapshot(InputStream)}, which lets a restarted
+ * server honour the resume tokens of clients reconnecting to it.
+ * </p>
  */
-public class InMemoryBackend implements Backend {
-    private static final class Session {
-        volatile PrintWriter out;
+public class InMemoryBackend implements Backend, Closeable {
+    /** Default time a dropped, resumable reservation is kept before it is released. */
+    public static final long DEFAULT_RESUME_GRACE_MS = 30_000;
+
+    /** Default audience size from which broadcasts are delivered in parallel. */
+    public static final int DEFAULT_PARALLEL_FANOUT_THRESHOLD = 4096;
+    /** Number of recipients a single fan-out task delivers to before splitting further. */
+    static final int FANOUT_SHARD_SIZE = 1024;
+    /** Default interval at which coalesced presence changes are sent. */
+    public static final long DEFAULT_PRESENCE_TICK_MS = 50;
+    /** Ring size of the sequencer once ordered delivery is enabled; more waiting messages overflow. */
+    static final int SEQUENCER_CAPACITY = 16 * 1024;
+    /** First bytes of a snapshot: {@code "CHS"} followed by the format version. */
+    private static final int SNAPSHOT_MAGIC = 0x43485301;
+
+    /** Shared by every user whose broadcasts have all been delivered. */
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private static final class Session implements Backend.Sender {
+        /** Compact id, unique among current reservations and reused once released. */
+        final int id;
+        final String nick;
+        volatile LineSink out;
+        volatile boolean stamped;
+        /** Flow-control account charged for lines this user's messages queue for others. */
+        volatile Backlog backlog = Backlog.NONE;
+        /** Completes when this user's last parallel broadcast has reached every recipient. */
+        volatile CompletableFuture<Void> fanout = DONE;
+        /** Whether this user's connection negotiated {@link Protocol#CAP_TYPING}. */
+        volatile boolean typingNotices;
+        /** When this user's last typing notice was accepted, in {@link System#nanoTime()} units. */
+        volatile long lastTypingNanos;
+        /** Line prefixes naming this user as sender, built when the user first sends. */
+        String fromHeader;
+        String privHeader;
+        /** Whether the session was removed from its partition; touched only on the partition thread. */
+        boolean left;
+        // Guarded by the session's monitor.
+        String resumeToken;
+        boolean detached;
+        ScheduledFuture<?> expiry;
+        boolean joined;
+
+        Session(int id, String nick) {
+            this.id = id;
+            this.nick = nick;
+        }
+
+        @Override
+        public String nick() {
+            return nick;
+        }
+
+        String fromHeader() {
+            String h = fromHeader;
+            if (h == null) fromHeader = h = Protocol.FROM + nick + " ";
+            return h;
+        }
+
+        String privHeader() {
+            String h = privHeader;
+            if (h == null) privHeader = h = Protocol.PRIV_FROM + nick + Protocol.PRIV_TO;
+            return h;
+        }
+    }
+
+    /** Users whose ids fall to one partition thread. */
+    private static final class Partition {
+        final PartitionLoop loop;
+        /** Divisor turning a member's id into its index in {@link #members}. */
+        final int stride;
+        // The fields below are touched only on the loop's thread.
+        /** Member with id {@code i * stride + k} at index {@code i}, for this partition's {@code k}. */
+        Session[] members = new Session[16];
+        /** Indexes from here on are empty. */
+        int end;
+        int size;
+
+        Partition(PartitionLoop loop, int stride) {
+            this.loop = loop;
+            this.stride = stride;
+        }
+
+        void join(Session s) {
+            int i = s.id / stride;
+            if (i >= members.length) members = Arrays.copyOf(members, Math.max(i + 1, members.length * 2));
+            members[i] = s;
+            size++;
+            end = Math.max(end, i + 1);
+        }
+
+        void leave(Session s) {
+            int i = s.id / stride;
+            if (i >= end || members[i] != s) return;
+            members[i] = null;
+            size--;
+            while (end > 0 && members[end - 1] == null) end--;
+        }
     }
 
     private final Map<String, Session> clients = new ConcurrentHashMap<>();
+    private final Object idLock = new Object();
+    // Guarded by idLock.
+    private Session[] byId = new Session[64];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private final AtomicLong sequence = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat/backend-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long resumeGraceMillis = DEFAULT_RESUME_GRACE_MS;
+    private volatile int parallelFanoutThreshold = DEFAULT_PARALLEL_FANOUT_THRESHOLD;
+    private volatile ForkJoinPool fanoutPool;
+    private volatile long presenceTickMillis = DEFAULT_PRESENCE_TICK_MS;
+    private final AtomicBoolean presenceFlushScheduled = new AtomicBoolean();
+    private final AtomicLong presenceVersion = new AtomicLong();
+    private volatile long typingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Protocol.TYPING_INTERVAL_MS);
+    private final Set<String> typingNicks = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean typingFlushScheduled = new AtomicBoolean();
+    private volatile SearchIndex searchIndex = new SearchIndex();
+    private volatile MessageFilter messageFilter;
+    private volatile FileTransfers fileTransfers;
+    /** Empty when messages are delivered on the sender's thread. */
+    private final Partition[] partitions;
+    private volatile Sequencer sequencer;
+
+    /**
+     * Creates a backend that delivers messages on the sending thread.
+     */
+    public InMemoryBackend() {
+        this(0);
+    }
+
+    /**
+     * Creates a backend that delivers messages through the given number of partition threads.
+     * The threads are daemons and run until {@link #close()}.
+     *
+     * @param partitions number of delivery partitions; {@code 0} delivers on the sending thread
+     */
+    public InMemoryBackend(int partitions) {
+        if (partitions < 0) throw new IllegalArgumentException("negative partition count: " + partitions);
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) this.partitions[i] = new Partition(new PartitionLoop("chat/partition-" + i), partitions);
+    }
+
+    /**
+     * Sets how long a dropped, resumable reservation is kept before it is released.
+     *
+     * @param millis grace period in milliseconds; {@code 0} releases immediately
+     */
+    public void setResumeGraceMillis(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("negative grace period: " + millis);
+        this.resumeGraceMillis = millis;
+    }
+
+    /**
+     * Sets the audience size from which broadcasts are delivered in parallel.
+     * <p>
+     * Below the threshold a broadcast is written to every recipient on the caller's thread.
+     * From the threshold on, the recipients are split into shards of {@value #FANOUT_SHARD_SIZE}
+     * that are delivered on a work-stealing pool, and {@link #broadcast} returns without waiting.
+     * A sender's parallel broadcasts are chained, and its private messages wait behind a pending
+     * one, so every recipient still sees each sender's messages in the order they were sent. A backend with delivery partitions ignores the
+     * threshold, since every broadcast is spread over the partitions anyway.
+     * </p>
+     *
+     * @param threshold minimum number of connected users for parallel delivery;
+     *                  {@link Integer#MAX_VALUE} disables it
+     */
+    public void setParallelFanoutThreshold(int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        this.parallelFanoutThreshold = threshold;
+    }
+
+    /**
+     * Routes all public and private messages through a {@link Sequencer}, so that every client
+     * sees public messages in one global order and sequence numbers increase in that order.
+     * <p>
+     * Without it, messages from different senders are numbered and delivered by the sending
+     * threads concurrently, and two recipients may see them in different orders; each sender's
+     * own messages are in order either way. The sequencer adds one hand-off per message and does
+     * all numbering, indexing and fan-out (or hand-off to the delivery partitions) on a single
+     * router thread. Call this before clients connect; it cannot be turned off again.
+     * </p>
+     */
+    public synchronized void enableOrderedDelivery() {
+        if (sequencer == null) sequencer = new Sequencer(SEQUENCER_CAPACITY, this::route, "chat/router");
+    }
+
+    /**
+     * Tells whether messages are routed through the sequencer.
+     *
+     * @return true after {@link #enableOrderedDelivery()}
+     */
+    public boolean orderedDelivery() {
+        return sequencer != null;
+    }
+
+    /**
+     * Sets the interval at which coalesced presence changes are sent to clients.
+     *
+     * @param millis tick length in milliseconds; {@code 0} sends every change immediately
+     */
+    public void setPresenceTickMillis(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("negative presence tick: " + millis);
+        this.presenceTickMillis = millis;
+    }
+
+    /**
+     * Sets the minimum time between two typing notices of one user that are passed on.
+     *
+     * @param millis interval in milliseconds; {@code 0} passes on every notice
+     */
+    public void setTypingIntervalMillis(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("negative typing interval: " + millis);
+        this.typingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets the filter that every public and private message passes before it is numbered or
+     * delivered. A message the filter rejects reaches nobody; its sender gets
+     * {@link Protocol#ERR_MESSAGE_REJECTED} instead.
+     *
+     * @param filter the filter to use; {@code null} delivers messages as sent
+     */
+    public void setMessageFilter(MessageFilter filter) {
+        this.messageFilter = filter;
+    }
+
+    /**
+     * Sets the service that carries the payloads of {@link #offerFile offered files}.
+     *
+     * @param transfers the started service; {@code null} refuses offers with
+     *                  {@link Protocol#ERR_NO_FILE_TRANSFER}
+     */
+    public void setFileTransfers(FileTransfers transfers) {
+        this.fileTransfers = transfers;
+    }
+
+    /**
+     * Stops every thread the backend started: the delivery partitions, the router, the timer,
+     * the search indexer and the fan-out pool. Messages and presence changes still waiting for
+     * them are dropped, so close the connections first. The backend must not deliver anything
+     * afterwards; snapshots can still be written.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        SearchIndex index = searchIndex;
+        if (index != null) index.close();
+        try {
+            // The router posts to the partitions, so it goes first.
+            Sequencer q = sequencer;
+            if (q != null) q.shutdown(1000);
+            for (Partition p : partitions) p.loop.shutdown(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ForkJoinPool pool = fanoutPool;
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /**
+     * Replaces the index that public messages are fed into and {@link #search} queries.
+     *
+     * @param index the index to use; {@code null} disables search
+     */
+    public void setSearchIndex(SearchIndex index) {
+        this.searchIndex = index;
+    }
+
+    /**
+     * Returns the presence version, which is incremented on every users-list change.
+     *
+     * @return number of presence changes seen by this backend
+     */
+    public long presenceVersion() {
+        return presenceVersion.get();
+    }
 
     /** {@inheritDoc} */
     @Override
     public boolean reserveNick(String nick) {
-        return clients.putIfAbsent(nick, new Session()) == null;
+        Session s = newSession(nick);
+        if (clients.putIfAbsent(nick, s) == null) return true;
+        freeId(s);
+        return false;
     }
 
     /** {@inheritDoc} */
     @Override
     public void releaseNick(String nick) {
-        clients.remove(nick);
+        Session s = clients.remove(nick);
+        if (s != null) leave(s);
         broadcastUsersList();
     }
 
+    /**
+     * Returns the compact id of a reserved nickname.
+     * <p>
+     * Ids are small non-negative integers handed out at reservation; an id is reused for a later
+     * reservation once its nickname has been released.
+     * </p>
+     *
+     * @param nick the nickname
+     * @return its id, or {@code -1} if the nickname is not reserved
+     */
+    public int idOf(String nick) {
+        Session s = clients.get(nick);
+        return s == null ? -1 : s.id;
+    }
+
+    /**
+     * Returns the nickname currently holding an id.
+     *
+     * @param id an id returned by {@link #idOf(String)}
+     * @return the nickname, or {@code null} if no reservation holds the id
+     */
+    public String nickOf(int id) {
+        synchronized (idLock) {
+            Session s = id >= 0 && id < byId.length ? byId[id] : null;
+            return s == null ? null : s.nick;
+        }
+    }
+
+    /** Creates a session under a released id if there is one, else under the next unused id. */
+    private Session newSession(String nick) {
+        synchronized (idLock) {
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id == byId.length) byId = Arrays.copyOf(byId, id * 2);
+            Session s = new Session(id, nick);
+            byId[id] = s;
+            return s;
+        }
+    }
+
+    private void freeId(Session s) {
+        synchronized (idLock) {
+            byId[s.id] = null;
+            if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            freeIds[freeCount++] = s.id;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean resumeNick(String nick, String token) {
+        Session s = clients.get(nick);
+        if (s == null || token == null) return false;
+        synchronized (s) {
+            if (s.resumeToken == null || clients.get(nick) != s) return false;
+            if (!MessageDigest.isEqual(s.resumeToken.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            s.resumeToken = null;
+            s.detached = false;
+            if (s.expiry != null) s.expiry.cancel(false);
+            s.expiry = null;
+            return true;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String issueResumeToken(String nick) {
+        Session s = clients.get(nick);
+        if (s == null) return null;
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        synchronized (s) {
+            s.resumeToken = token;
+        }
+        return token;
+    }
+
     /**
      * Associates the given writer with the specified nickname so future messages can be delivered.
      *
@@ -41,46 +458,762 @@ public class InMemoryBackend implements Backend {
      * @param out a live {@link PrintWriter} connected to the client's socket
      */
     public void attachWriter(String nick, PrintWriter out) {
+        attach(nick, out::println, false);
+    }
+
+    /**
+     * Associates the given writer with the specified nickname so future messages can be delivered.
+     *
+     * @param nick the nickname for which to attach the writer
+     * @param out a live {@link PrintWriter} connected to the client's socket
+     * @param stamped whether messages to this writer carry the {@link Protocol#STAMP} prefix
+     */
+    public void attachWriter(String nick, PrintWriter out, boolean stamped) {
+        attach(nick, out::println, stamped);
+    }
+
+    /**
+     * Associates the given sink with the specified nickname so future messages can be delivered.
+     *
+     * @param nick the nickname for which to attach the sink
+     * @param out the connection's outgoing line sink
+     * @param stamped whether messages to this sink carry the {@link Protocol#STAMP} prefix
+     */
+    public void attach(String nick, LineSink out, boolean stamped) {
+        attach(nick, out, stamped, Backlog.NONE);
+    }
+
+    /**
+     * Associates the given sink with the specified nickname so future messages can be delivered,
+     * and charges the lines this user's messages queue for other users to {@code backlog}.
+     *
+     * @param nick the nickname for which to attach the sink
+     * @param out the connection's outgoing line sink
+     * @param stamped whether messages to this sink carry the {@link Protocol#STAMP} prefix
+     * @param backlog the connection's flow-control account
+     */
+    public void attach(String nick, LineSink out, boolean stamped, Backlog backlog) {
         Session s = clients.get(nick);
-        if (s != null) s.out = out;
+        if (s == null) return;
+        boolean join;
+        synchronized (s) {
+            s.stamped = stamped;
+            s.out = out;
+            s.backlog = backlog;
+            join = !s.joined;
+            s.joined = true;
+        }
+        if (join && partitions.length > 0) {
+            Partition p = partitionOf(s);
+            p.loop.execute(() -> {
+                // A release posted before this join has already run; do not add the session back.
+                if (!s.left) p.join(s);
+            });
+        }
+    }
+
+    /**
+     * Removes a session that was just taken out of the users map from its partition and frees
+     * its id. The removal is posted before the id can be reused, so a later session with the
+     * same id, which lands in the same partition, always joins after it.
+     */
+    private void leave(Session s) {
+        if (partitions.length > 0) {
+            Partition p = partitionOf(s);
+            p.loop.execute(() -> {
+                p.leave(s);
+                s.left = true;
+            });
+        }
+        freeId(s);
+    }
+
+    private Partition partitionOf(Session s) {
+        return partitions[s.id % partitions.length];
+    }
+
+    /**
+     * Runs a delivery on a partition thread, charging {@code origin} for it until it has run.
+     */
+    private static void post(Partition p, Backlog origin, Runnable delivery) {
+        origin.charge(1);
+        p.loop.execute(() -> {
+            try {
+                delivery.run();
+            } finally {
+                origin.release(1);
+            }
+        });
+    }
+
+    /**
+     * Sets whether the user receives {@link Protocol#TYPING} notices of other users.
+     *
+     * @param nick the nickname whose connection negotiated capabilities
+     * @param enabled whether the connection negotiated {@link Protocol#CAP_TYPING}
+     */
+    public void setTypingNotices(String nick, boolean enabled) {
+        Session s = clients.get(nick);
+        if (s != null) s.typingNotices = enabled;
+    }
+
+    /**
+     * Handles a connection that ended without {@link Protocol#QUIT}.
+     * <p>
+     * Nothing happens if another connection has already taken over the nickname. Otherwise a
+     * resumable reservation is detached from its writer and kept for the configured grace period,
+     * after which it is released; a non-resumable one is released right away.
+     * </p>
+     *
+     * @param nick the nickname the connection was logged in as
+     * @param out the sink the connection had attached
+     * @param resumable whether the client negotiated {@link Protocol#CAP_RESUME}
+     */
+    public void connectionLost(String nick, LineSink out, boolean resumable) {
+        Session s = clients.get(nick);
+        if (s == null) return;
+        long grace = resumeGraceMillis;
+        synchronized (s) {
+            if (s.out != out) return;
+            s.out = null;
+            if (resumable && grace > 0) {
+                s.detached = true;
+                s.expiry = timer.schedule(() -> expire(nick, s), grace, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        if (clients.remove(nick, s)) {
+            leave(s);
+            broadcastUsersList();
+        }
+    }
+
+    private void expire(String nick, Session s) {
+        boolean removed;
+        synchronized (s) {
+            if (!s.detached) return;
+            removed = clients.remove(nick, s);
+        }
+        if (removed) {
+            leave(s);
+            broadcastUsersList();
+        }
+    }
+
+    /**
+     * Writes a compact binary snapshot of the durable state: the message sequence counter, the
+     * presence version and every reservation that holds a resume token (reservations without one
+     * could not be reclaimed after a restart anyway). Live connections are not part of it.
+     *
+     * @param os destination stream; flushed but not closed
+     * @return number of reservations written
+     * @throws IOException if writing fails
+     */
+    public int writeSnapshot(OutputStream os) throws IOException {
+        List<String> nicks = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        clients.forEach((nick, s) -> {
+            String token;
+            synchronized (s) {
+                token = s.resumeToken;
+            }
+            if (token != null) {
+                nicks.add(nick);
+                tokens.add(token);
+            }
+        });
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(sequence.get());
+        out.writeLong(presenceVersion.get());
+        out.writeInt(nicks.size());
+        for (int i = 0; i < nicks.size(); i++) {
+            out.writeUTF(nicks.get(i));
+            out.writeUTF(tokens.get(i));
+        }
+        out.flush();
+        return nicks.size();
+    }
+
+    /**
+     * Loads a snapshot written by {@link #writeSnapshot(OutputStream)}.
+     * <p>
+     * Restored reservations behave like dropped resumable connections: they appear in the users
+     * list, can be reclaimed with their resume token and are released if nobody resumes them
+     * within the resume grace period. Nicknames that are already reserved are left untouched,
+     * and the sequence counter and presence version never move backwards.
+     * </p>
+     *
+     * @param is source stream; not closed
+     * @return number of reservations restored
+     * @throws IOException if reading fails or the stream is not a complete snapshot, in which
+     *                     case nothing is restored
+     */
+    public int restoreSnapshot(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+        if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a chat snapshot");
+        long seq = in.readLong();
+        long version = in.readLong();
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Corrupt snapshot: negative reservation count " + count);
+
+        // Read every record before touching any state, so a truncated snapshot restores nothing.
+        List<String> nicks = new ArrayList<>(Math.min(count, 1024));
+        List<String> tokens = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            nicks.add(in.readUTF());
+            tokens.add(in.readUTF());
+        }
+
+        List<Session> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Session s = newSession(nicks.get(i));
+            s.resumeToken = tokens.get(i);
+            s.detached = true;
+            if (clients.putIfAbsent(s.nick, s) == null) {
+                sessions.add(s);
+            } else {
+                freeId(s);
+            }
+        }
+        sequence.accumulateAndGet(seq, Math::max);
+        presenceVersion.accumulateAndGet(version, Math::max);
+
+        if (!sessions.isEmpty()) {
+            // All restored reservations share one deadline, so a single sweep replaces per-session timers.
+            timer.schedule(() -> {
+                for (Session s : sessions) expire(s.nick, s);
+            }, Math.max(resumeGraceMillis, 1), TimeUnit.MILLISECONDS);
+            broadcastUsersList();
+        }
+        return sessions.size();
     }
 
     /** {@inheritDoc} */
     @Override
     public void broadcast(String fromNick, String text) {
-        String line = Protocol.FROM + fromNick + " " + text;
-        clients.values().forEach(s -> {
-            PrintWriter w = s.out;
-            if (w != null) w.println(line);
+        text = screen(fromNick, text);
+        if (text == null) return;
+        Sequencer q = sequencer;
+        if (q != null) {
+            publish(q, Sequencer.PUBLIC, clients.get(fromNick), fromNick, null, text);
+            return;
+        }
+        deliverBroadcast(fromNick, text, false);
+    }
+
+    /**
+     * Passes a message through the {@link #setMessageFilter filter}, telling the sender if it
+     * was rejected.
+     *
+     * @return the text to deliver, or {@code null} if the message was rejected
+     */
+    private String screen(String fromNick, String text) {
+        MessageFilter filter = messageFilter;
+        if (filter == null) return text;
+        String screened = filter.screen(fromNick, text);
+        if (screened == null) {
+            Session src = clients.get(fromNick);
+            LineSink w = src == null ? null : src.out;
+            if (w != null) w.send(Protocol.ERR_MESSAGE_REJECTED);
+        }
+        return screened;
+    }
+
+    private void publish(Sequencer q, int kind, Session src, String fromNick, String toNick, String text) {
+        Backlog origin = src == null ? Backlog.NONE : src.backlog;
+        // Entries waiting in the ring count against the sender like queued lines.
+        origin.charge(1);
+        q.publish(kind, fromNick, src, toNick, text, origin);
+    }
+
+    /** Delivers sequenced messages on the router thread, in the order they were published. */
+    private void route(Sequencer.Entry e) {
+        try {
+            if (e.kind == Sequencer.PUBLIC) {
+                deliverBroadcast(e.from, e.text, true);
+            } else if (e.kind == Sequencer.GROUP) {
+                deliverGroupPrivate((Session) e.sender, e.from, Arrays.asList(e.to.split(",")), e.text, null);
+            } else {
+                deliverPrivate((Session) e.sender, e.from, e.to, e.text);
+            }
+        } finally {
+            e.origin.release(1);
+        }
+    }
+
+    /**
+     * Numbers a public message and writes it to every recipient.
+     *
+     * @param ordered whether the caller is the router thread, which must not hand delivery to the
+     *                work-stealing pool since that would let later messages overtake this one
+     */
+    private void deliverBroadcast(String fromNick, String text, boolean ordered) {
+        Session src = clients.get(fromNick);
+        String line = src != null ? src.fromHeader() + text : Protocol.FROM + fromNick + " " + text;
+        long seq = sequence.incrementAndGet();
+        long now = System.currentTimeMillis();
+        String stamped = stamp(seq, now, line);
+        SearchIndex index = searchIndex;
+        if (index != null) index.offer(seq, now, fromNick, text);
+        Backlog origin = src == null ? Backlog.NONE : src.backlog;
+        if (partitions.length > 0) {
+            for (Partition p : partitions) {
+                post(p, origin, () -> {
+                    ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+                    event.begin();
+                    Session[] members = p.members;
+                    for (int i = 0, n = p.end; i < n; i++) {
+                        Session s = members[i];
+                        if (s != null) deliver(s, line, stamped, origin);
+                    }
+                    commitBroadcast(event, fromNick, seq, p.size, true);
+                });
+            }
+            return;
+        }
+        if (ordered || clients.size() < parallelFanoutThreshold && (src == null || src.fanout.isDone())) {
+            ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+            event.begin();
+            clients.values().forEach(s -> deliver(s, line, stamped, origin));
+            commitBroadcast(event, fromNick, seq, clients.size(), false);
+            return;
+        }
+
+        Session[] targets = clients.values().toArray(new Session[0]);
+        FanoutTask task = new FanoutTask(targets, 0, targets.length, line, stamped, origin);
+        if (src == null) {
+            ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+            event.begin();
+            fanoutPool().invoke(task);
+            commitBroadcast(event, fromNick, seq, targets.length, true);
+            return;
+        }
+        // Copies still waiting for the pool count against the sender as if they were queued.
+        origin.charge(targets.length);
+        // Start only after this sender's previous broadcast is fully delivered.
+        chainFanout(src, () -> {
+            ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+            event.begin();
+            try {
+                task.invoke();
+            } finally {
+                origin.release(targets.length);
+            }
+            commitBroadcast(event, fromNick, seq, targets.length, true);
         });
     }
 
+    /**
+     * Appends a stage to the sender's chain of parallel deliveries. The stage runs once the
+     * previous one has finished, whether or not that one failed, so a throwing sink cannot leave
+     * later stages, and the lines they charged, stuck behind it.
+     */
+    private void chainFanout(Session src, Runnable stage) {
+        synchronized (src) {
+            src.fanout = src.fanout.handleAsync((done, failure) -> {
+                stage.run();
+                return null;
+            }, this::executeFanout);
+        }
+    }
+
+    private void executeFanout(Runnable task) {
+        try {
+            fanoutPool().execute(task);
+        } catch (RejectedExecutionException e) {
+            // The backend was closed; run the stage here so its charges are still released.
+            task.run();
+        }
+    }
+
+    private static void commitBroadcast(ServerEvents.Broadcast event, String sender, long seq, int recipients, boolean parallel) {
+        if (!event.shouldCommit()) return;
+        event.sender = sender;
+        event.seq = seq;
+        event.recipients = recipients;
+        event.parallel = parallel;
+        event.commit();
+    }
+
+    private ForkJoinPool fanoutPool() {
+        ForkJoinPool pool = fanoutPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = fanoutPool;
+                if (pool == null) fanoutPool = pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Delivers one message to a range of recipients, splitting the range until each shard has
+     * at most {@link #FANOUT_SHARD_SIZE} recipients so idle pool workers can steal shards.
+     */
+    private static final class FanoutTask extends RecursiveAction {
+        private final Session[] targets;
+        private final int from;
+        private final int to;
+        private final String line;
+        private final String stamped;
+        private final Backlog origin;
+
+        FanoutTask(Session[] targets, int from, int to, String line, String stamped, Backlog origin) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.line = line;
+            this.stamped = stamped;
+            this.origin = origin;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FANOUT_SHARD_SIZE) {
+                for (int i = from; i < to; i++) deliver(targets[i], line, stamped, origin);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FanoutTask(targets, from, mid, line, stamped, origin),
+                    new FanoutTask(targets, mid, to, line, stamped, origin));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The handle is the sender's reservation itself, so sending through it skips the lookup.
+     * </p>
+     */
+    @Override
+    public Backend.Sender sender(String nick) {
+        return clients.get(nick);
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean sendPrivate(String fromNick, String toNick, String text) {
+        return sendPrivate(clients.get(fromNick), fromNick, toNick, text);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean sendPrivate(Backend.Sender from, String toNick, String text) {
+        return from instanceof Session s ? sendPrivate(s, s.nick, toNick, text) : sendPrivate(from.nick(), toNick, text);
+    }
+
+    /** Sends a private message; {@code src} is {@code null} if the sender holds no reservation. */
+    private boolean sendPrivate(Session src, String fromNick, String toNick, String text) {
+        text = screen(fromNick, text);
+        if (text == null) return true;
+        ServerEvents.PrivateMessage event = new ServerEvents.PrivateMessage();
+        event.begin();
+        boolean delivered;
+        Sequencer q = sequencer;
+        if (q != null) {
+            // Checked again when the message is routed; the answer only reflects the moment of sending.
+            Session dst = clients.get(toNick);
+            delivered = dst != null && dst.out != null;
+            if (delivered) publish(q, Sequencer.PRIVATE, src, fromNick, toNick, text);
+        } else {
+            delivered = deliverPrivate(src, fromNick, toNick, text);
+        }
+        if (event.shouldCommit()) {
+            event.sender = fromNick;
+            event.recipient = toNick;
+            event.delivered = delivered;
+            event.commit();
+        }
+        return delivered;
+    }
+
+    private boolean deliverPrivate(Session src, String fromNick, String toNick, String text) {
         Session dst = clients.get(toNick);
         if (dst == null || dst.out == null) return false;
-        String line = Protocol.PRIV_FROM + fromNick + Protocol.PRIV_TO + toNick + " " + text;
-        dst.out.println(line);
+        String line = (src != null ? src.privHeader() : Protocol.PRIV_FROM + fromNick + Protocol.PRIV_TO)
+                + dst.nick + " " + text;
+        String stamped = stamp(sequence.incrementAndGet(), System.currentTimeMillis(), line);
+        Backlog origin = src == null ? Backlog.NONE : src.backlog;
+        if (partitions.length > 0) {
+            // The sender's copy goes through its own partition, behind its earlier broadcasts.
+            post(partitionOf(dst), origin, () -> deliver(dst, line, stamped, origin));
+            if (src != null) post(partitionOf(src), origin, () -> deliver(src, line, stamped, origin));
+            return true;
+        }
+        afterFanout(src, origin, src != null ? 2 : 1, () -> {
+            deliver(dst, line, stamped, origin);
+            if (src != null) deliver(src, line, stamped, origin);
+        });
+        return true;
+    }
 
+    /**
+     * Runs a delivery once the sender's pending parallel broadcasts have reached every
+     * recipient, so a private message cannot overtake a broadcast sent before it. Runs it at
+     * once when nothing is pending, which is the common case.
+     *
+     * @param lines number of lines the delivery writes, charged to the sender while it waits
+     */
+    private void afterFanout(Session src, Backlog origin, int lines, Runnable delivery) {
+        if (src == null || src.fanout.isDone()) {
+            delivery.run();
+            return;
+        }
+        origin.charge(lines);
+        chainFanout(src, () -> {
+            try {
+                delivery.run();
+            } finally {
+                origin.release(lines);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean[] sendGroupPrivate(String fromNick, List<String> toNicks, String text) {
+        return sendGroupPrivate(clients.get(fromNick), fromNick, toNicks, text);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean[] sendGroupPrivate(Backend.Sender from, List<String> toNicks, String text) {
+        return from instanceof Session s ? sendGroupPrivate(s, s.nick, toNicks, text) : sendGroupPrivate(from.nick(), toNicks, text);
+    }
+
+    /** Sends a group message; {@code src} is {@code null} if the sender holds no reservation. */
+    private boolean[] sendGroupPrivate(Session src, String fromNick, List<String> toNicks, String text) {
+        boolean[] delivered = new boolean[toNicks.size()];
+        text = screen(fromNick, text);
+        if (text == null) {
+            Arrays.fill(delivered, true);
+            return delivered;
+        }
+        ServerEvents.PrivateMessage event = new ServerEvents.PrivateMessage();
+        event.begin();
+        Sequencer q = sequencer;
+        if (q != null) {
+            // Checked again when the message is routed; the answer only reflects the moment of sending.
+            StringBuilder online = new StringBuilder();
+            for (int i = 0; i < delivered.length; i++) {
+                Session dst = clients.get(toNicks.get(i));
+                if (dst == null || dst.out == null) continue;
+                delivered[i] = true;
+                if (online.length() > 0) online.append(',');
+                online.append(dst.nick);
+            }
+            if (online.length() > 0) publish(q, Sequencer.GROUP, src, fromNick, online.toString(), text);
+        } else {
+            deliverGroupPrivate(src, fromNick, toNicks, text, delivered);
+        }
+        if (event.shouldCommit()) {
+            event.sender = fromNick;
+            event.recipient = String.join(",", toNicks);
+            event.delivered = anyTrue(delivered);
+            event.commit();
+        }
+        return delivered;
+    }
+
+    private static boolean anyTrue(boolean[] flags) {
+        for (boolean f : flags) {
+            if (f) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes one private message to every online recipient and a single copy to the sender. The
+     * line is built and stamped once and names all online recipients; with partitions, each
+     * partition gets one task for all of its recipients.
+     *
+     * @param delivered set for each recipient that is online; {@code null} if not needed
+     */
+    private void deliverGroupPrivate(Session src, String fromNick, List<String> toNicks, String text, boolean[] delivered) {
+        Session[] targets = new Session[toNicks.size() + 1];
+        StringBuilder to = new StringBuilder();
+        int count = 0;
+        boolean echo = src != null;
+        for (int i = 0; i < toNicks.size(); i++) {
+            Session dst = clients.get(toNicks.get(i));
+            if (dst == null || dst.out == null) continue;
+            if (delivered != null) delivered[i] = true;
+            if (count > 0) to.append(',');
+            to.append(dst.nick);
+            targets[count++] = dst;
+            if (dst == src) echo = false;
+        }
+        if (count == 0) return;
+        String line = (src != null ? src.privHeader() : Protocol.PRIV_FROM + fromNick + Protocol.PRIV_TO)
+                + to + " " + text;
+        String stamped = stamp(sequence.incrementAndGet(), System.currentTimeMillis(), line);
+        Backlog origin = src == null ? Backlog.NONE : src.backlog;
+        // The sender's copy goes through its own partition, behind its earlier broadcasts.
+        if (echo) targets[count++] = src;
+        if (partitions.length == 0) {
+            int size = count;
+            afterFanout(src, origin, size, () -> {
+                for (int i = 0; i < size; i++) deliver(targets[i], line, stamped, origin);
+            });
+            return;
+        }
+        for (int p = 0; p < partitions.length; p++) {
+            Session[] mine = new Session[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (partitionOf(targets[i]) == partitions[p]) mine[n++] = targets[i];
+            }
+            if (n == 0) continue;
+            int size = n;
+            post(partitions[p], origin, () -> {
+                for (int i = 0; i < size; i++) deliver(mine[i], line, stamped, origin);
+            });
+        }
+    }
+
+    /**
+     * Returns the stamped variant of a message line.
+     */
+    private static String stamp(long seq, long millis, String line) {
+        return Protocol.STAMP + seq + " " + millis + " " + line;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only public messages are searched. They are indexed asynchronously, so a message may take
+     * a moment to become searchable after it was broadcast.
+     * </p>
+     */
+    @Override
+    public boolean search(String nick, String query) {
+        SearchIndex index = searchIndex;
+        if (index == null) return false;
+        Session s = clients.get(nick);
+        LineSink w = s == null ? null : s.out;
+        if (w == null) return true;
+        List<SearchIndex.Hit> hits = index.search(query, Protocol.SEARCH_LIMIT);
+        w.send(Protocol.FOUND + hits.size());
+        for (SearchIndex.Hit h : hits) {
+            w.send(Protocol.HIT + h.seq() + " " + h.millis() + " " + h.from() + " " + h.text());
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The offer only issues a ticket on the {@link #setFileTransfers transfer service}; the
+     * recipient hears of the file once its upload has completed, and not at all if it has gone
+     * offline by then.
+     * </p>
+     */
+    @Override
+    public boolean offerFile(String fromNick, String toNick, String name, long size) {
+        Session dst = clients.get(toNick);
+        if (dst == null || dst.out == null) return false;
         Session src = clients.get(fromNick);
-        if (src != null && src.out != null) src.out.println(line);
+        LineSink w = src == null ? null : src.out;
+        if (w == null) return true;
+        FileTransfers transfers = fileTransfers;
+        if (transfers == null) {
+            w.send(Protocol.ERR_NO_FILE_TRANSFER);
+        } else if (size > transfers.maxFileBytes()) {
+            w.send(Protocol.ERR_FILE_TOO_LARGE);
+        } else {
+            FileTransfers.Ticket t = transfers.offer(fromNick, dst.nick, name, size, ticket -> announceFile(transfers, ticket));
+            w.send(Protocol.FILE_UPLOAD + t.id() + " " + transfers.port() + " " + name);
+        }
+        return true;
+    }
+
+    private boolean announceFile(FileTransfers transfers, FileTransfers.Ticket t) {
+        Session dst = clients.get(t.to());
+        LineSink w = dst == null ? null : dst.out;
+        if (w == null) return false;
+        w.send(Protocol.FILE_FROM + t.from() + " " + transfers.port() + " " + t.id() + " " + t.size() + " " + t.name());
         return true;
     }
 
+    private static void deliver(Session s, String line, String stamped, Backlog origin) {
+        LineSink w = s.out;
+        if (w != null) w.send(s.stamped ? stamped : line, origin);
+    }
+
     /** {@inheritDoc} */
     @Override
     public String usersCsv() {
         return String.join(",", clients.keySet());
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The change is sent at the end of the current presence tick together with any other
+     * changes made in the meantime.
+     * </p>
+     */
     @Override
     public void broadcastUsersList() {
+        presenceVersion.incrementAndGet();
+        long tick = presenceTickMillis;
+        if (tick == 0) {
+            flushPresence();
+        } else if (presenceFlushScheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flushPresence, tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPresence() {
+        // Clear the flag before taking the snapshot so later changes schedule another flush.
+        presenceFlushScheduled.set(false);
         String line = Protocol.LIST_USERS + usersCsv();
         clients.values().forEach(s -> {
-            PrintWriter w = s.out;
-            if (w != null) w.println(line);
+            LineSink w = s.out;
+            if (w != null) w.sendPresence(line);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A notice is ignored if the same user's previous one was accepted less than the typing
+     * interval ago. Accepted notices are collected for one presence tick and sent as a single
+     * line naming every typing user, through {@link LineSink#sendEphemeral(String)} so that busy
+     * recipients drop it. Notices are never stamped, indexed or kept in snapshots.
+     * </p>
+     */
+    @Override
+    public void typing(String nick) {
+        Session s = clients.get(nick);
+        if (s == null) return;
+        long now = System.nanoTime();
+        if (s.lastTypingNanos != 0 && now - s.lastTypingNanos < typingIntervalNanos) return;
+        s.lastTypingNanos = now;
+        typingNicks.add(nick);
+        long tick = presenceTickMillis;
+        if (tick == 0) {
+            flushTyping();
+        } else if (typingFlushScheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flushTyping, tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushTyping() {
+        typingFlushScheduled.set(false);
+        List<String> nicks = new ArrayList<>();
+        for (Iterator<String> it = typingNicks.iterator(); it.hasNext(); ) {
+            nicks.add(it.next());
+            it.remove();
+        }
+        if (nicks.isEmpty()) return;
+        String line = Protocol.TYPING + " " + String.join(",", nicks);
+        clients.forEach((nick, s) -> {
+            LineSink w = s.out;
+            // Nobody needs to hear that they are typing themselves.
+            if (w != null && s.typingNotices && !(nicks.size() == 1 && nicks.get(0).equals(nick))) w.sendEphemeral(line);
         });
     }
 }
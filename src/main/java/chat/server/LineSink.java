@@ -0,0 +1,66 @@
+package chat.server;
+
+/**
+ * Destination for protocol lines sent to one connected client.
+ * <p>
+ * {@link InMemoryBackend} delivers messages through this interface so it does not depend on how
+ * a connection writes to its socket. Implementations must be safe to call from any thread.
+ * </p>
+ */
+@FunctionalInterface
+public interface LineSink {
+    /**
+     * Sends a single line (without line terminator) to the client.
+     * <p>
+     * Used for control traffic such as replies to the client's own commands. Implementations that
+     * queue output may write it ahead of lines queued with {@link #send(String, Backlog)}.
+     * </p>
+     *
+     * @param line protocol line to send
+     */
+    void send(String line);
+
+    /**
+     * Sends a line caused by another client's message.
+     * <p>
+     * Implementations that queue output charge {@code origin} for the line while it is queued, so
+     * the sender can be slowed down when its messages pile up, and keep such lines in the order
+     * they were sent. The default implementation does not queue and simply calls
+     * {@link #send(String)}.
+     * </p>
+     *
+     * @param line protocol line to send
+     * @param origin flow-control account of the client that caused the line
+     */
+    default void send(String line, Backlog origin) {
+        send(line);
+    }
+
+    /**
+     * Sends a users-list snapshot to the client.
+     * <p>
+     * Presence lines supersede each other, so implementations that buffer output may replace a
+     * presence line that has not been written yet instead of queueing another one. The default
+     * implementation simply calls {@link #send(String)}.
+     * </p>
+     *
+     * @param line a {@link chat.protocol.Protocol#LIST_USERS} line
+     */
+    default void sendPresence(String line) {
+        send(line);
+    }
+
+    /**
+     * Sends a line that is only worth delivering right away, such as a typing notice.
+     * <p>
+     * Implementations that buffer output may drop the line instead of queueing it behind output
+     * that has not been written yet, so it never delays a message. The default implementation
+     * simply calls {@link #send(String)}.
+     * </p>
+     *
+     * @param line protocol line to send
+     */
+    default void sendEphemeral(String line) {
+        send(line);
+    }
+}
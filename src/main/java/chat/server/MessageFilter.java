@@ -0,0 +1,22 @@
+package chat.server;
+
+/**
+ * Inbound stage that screens public and private messages before they are numbered, indexed or
+ * delivered to anyone.
+ * <p>
+ * {@link InMemoryBackend} calls it on the sender's connection thread, so implementations must be
+ * thread-safe and should take time linear in the length of the message.
+ * </p>
+ */
+@FunctionalInterface
+public interface MessageFilter {
+    /**
+     * Screens one message.
+     *
+     * @param from sender nickname
+     * @param text message text
+     * @return the text to deliver, which may differ from {@code text}, or {@code null} to reject
+     * the message
+     */
+    String screen(String from, String text);
+}
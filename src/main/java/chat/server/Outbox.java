@@ -0,0 +1,400 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Buffered, asynchronous {@link LineSink} for a single client channel.
+ * <p>
+ * Lines are queued in memory and written by a task on the given executor, which is only
+ * scheduled while the outbox has pending output. Each run encodes as many queued lines as fit
+ * into a buffer leased from the {@link BufferPool} and writes it with a single call, so callers
+ * never block on the socket and bursts cost few writes. The buffer goes back to the pool as soon
+ * as everything queued has been written. The queues themselves only exist while lines are
+ * waiting: they are created by the first line of a burst, handed over whole to the drain task
+ * and dropped when it finishes, so an idle outbox holds no buffer and no queue.
+ * </p>
+ * <p>
+ * Output travels in two lanes. The control lane carries the client's own responses and the users
+ * list ({@link #send(String)} and {@link #sendPresence(String)}); the chat lane carries lines sent
+ * on behalf of other clients ({@link #send(String, Backlog)}). Before encoding each chat line the
+ * drain task checks the control lane, so a reply overtakes chat that is already queued or taken
+ * for writing; only the line being encoded and the bytes already in the buffer go first. Each lane
+ * is written in order, so chat from one sender keeps its order.
+ * At most one presence line is pending at any time: a newer one replaces an older one that has
+ * not been written yet, and it is written after the other control lines pending with it.
+ * Ephemeral lines are only queued while nothing else is pending and are dropped otherwise.
+ * </p>
+ * <p>
+ * If a non-blocking channel does not take the whole buffer, the outbox keeps it, calls the
+ * {@code awaitWritable} callback and resumes when {@link #writable()} is called. The executor
+ * must not run two drain tasks of one outbox concurrently, which holds for an {@link EventLoop}.
+ * </p>
+ * <p>
+ * Lines sent on behalf of another client charge that client's {@link Backlog} until they have
+ * been encoded or discarded. A client that lets more than {@link #MAX_PENDING_CHARS} pile up is
+ * too slow to keep: the outbox drops its queue and reports the overflow, so one stalled reader
+ * neither grows memory without bound nor holds every sender paused.
+ * </p>
+ */
+final class Outbox implements LineSink {
+    /** Size of the buffer leased while output is pending. */
+    static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    /** Queued text beyond this many chars marks the client as too slow to keep. */
+    static final long MAX_PENDING_CHARS = 1 << 20;
+    // Lanes a line is queued in.
+    private static final int CONTROL = 0;
+    private static final int CHAT = 1;
+    private static final int PRESENCE = 2;
+    /** Initial capacity of a queue; most bursts are a line or two. */
+    private static final int QUEUE_CAPACITY = 4;
+    /** Lines are encoded into a heap buffer first and copied in bulk, which beats per-byte puts into direct memory. */
+    private static final ThreadLocal<ByteBuffer> STAGING = ThreadLocal.withInitial(() -> ByteBuffer.allocate(WRITE_BUFFER_SIZE));
+
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+    private final Executor executor;
+    private final Runnable awaitWritable;
+    private final Runnable onOverflow;
+    // Lanes; null while empty.
+    private ArrayDeque<String> control;
+    private ArrayDeque<String> pending;
+    private ArrayDeque<Backlog> pendingOrigins;
+    private long pendingChars;
+    private String presence;
+    /** Set while the control lane holds lines; lets the drain task check it without locking. */
+    private volatile boolean urgent;
+    private boolean draining;
+    private boolean stalled;
+    private ServerEvents.WriteStall stall;
+    private boolean closed;
+
+    // Touched only by the drain task, or by close() while the drain is stalled. The batches are
+    // the lanes' queues taken over by the drain task; null while empty.
+    private ArrayDeque<String> controlBatch;
+    private ArrayDeque<String> batch;
+    private ArrayDeque<Backlog> batchOrigins;
+    private ByteBuffer buf;
+    private String current;
+    private Backlog currentOrigin;
+    private int currentPos;
+
+    /**
+     * Creates an outbox writing to the given channel.
+     *
+     * @param channel the client channel
+     * @param pool pool the write buffer is leased from
+     * @param executor executor running the drain tasks
+     * @param awaitWritable called by a drain task when the channel is full
+     * @param onOverflow called once, after the outbox closed itself, when more than
+     *                   {@link #MAX_PENDING_CHARS} were queued
+     */
+    Outbox(WritableByteChannel channel, BufferPool pool, Executor executor, Runnable awaitWritable, Runnable onOverflow) {
+        this.channel = channel;
+        this.pool = pool;
+        this.executor = executor;
+        this.awaitWritable = awaitWritable;
+        this.onOverflow = onOverflow;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The line goes to the control lane and overtakes queued chat.
+     * </p>
+     */
+    @Override
+    public void send(String line) {
+        enqueue(line, Backlog.NONE, CONTROL);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void send(String line, Backlog origin) {
+        enqueue(line, origin, CHAT);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void sendPresence(String line) {
+        enqueue(line, Backlog.NONE, PRESENCE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The line is dropped while anything is still being written, so it only ever goes out on an
+     * idle connection.
+     * </p>
+     */
+    @Override
+    public void sendEphemeral(String line) {
+        synchronized (this) {
+            if (draining) return;
+        }
+        enqueue(line, Backlog.NONE, CHAT);
+    }
+
+    /**
+     * Resumes writing after the outbox reported a full channel.
+     */
+    void writable() {
+        synchronized (this) {
+            if (!stalled) return;
+            stalled = false;
+            endStall();
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Discards pending output and stops accepting new lines. Does not close the channel.
+     */
+    synchronized void close() {
+        closed = true;
+        control = null;
+        urgent = false;
+        pending = null;
+        pendingChars = 0;
+        releaseAll(pendingOrigins);
+        pendingOrigins = null;
+        presence = null;
+        if (stalled) {
+            // No drain task is running or scheduled, so its state can be discarded right here.
+            stalled = false;
+            endStall();
+            finishDrain();
+        }
+    }
+
+    private void beginStall() {
+        ServerEvents.WriteStall event = new ServerEvents.WriteStall();
+        if (!event.isEnabled()) return;
+        event.begin();
+        event.unwrittenBytes = buf.remaining();
+        event.queuedChars = pendingChars;
+        stall = event;
+    }
+
+    private void endStall() {
+        if (stall == null) return;
+        stall.end();
+        if (stall.shouldCommit()) stall.commit();
+        stall = null;
+    }
+
+    private void enqueue(String line, Backlog origin, int lane) {
+        boolean overflow = false;
+        synchronized (this) {
+            if (closed) return;
+            if (lane == PRESENCE) {
+                presence = line;
+                urgent = true;
+            } else if (pendingChars + line.length() > MAX_PENDING_CHARS) {
+                close();
+                overflow = true;
+            } else if (lane == CONTROL) {
+                pendingChars += line.length();
+                if (control == null) control = new ArrayDeque<>(QUEUE_CAPACITY);
+                control.add(line);
+                urgent = true;
+            } else {
+                pendingChars += line.length();
+                origin.charge(1);
+                if (pending == null) {
+                    pending = new ArrayDeque<>(QUEUE_CAPACITY);
+                    pendingOrigins = new ArrayDeque<>(QUEUE_CAPACITY);
+                }
+                pending.add(line);
+                pendingOrigins.add(origin);
+            }
+            if (!overflow) {
+                if (draining) return;
+                draining = true;
+            }
+        }
+        if (overflow) {
+            onOverflow.run();
+        } else {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                if (buf != null && buf.hasRemaining()) {
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        synchronized (this) {
+                            if (!closed) {
+                                stalled = true;
+                                beginStall();
+                                awaitWritable.run();
+                                return;
+                            }
+                        }
+                    }
+                }
+                if (!fill()) return;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                close();
+                finishDrain();
+            }
+        }
+    }
+
+    /**
+     * Encodes queued lines into the buffer. Returns {@code false}, with the buffer released and
+     * the drain finished, when there is nothing left to write.
+     */
+    private boolean fill() {
+        synchronized (this) {
+            if (closed) {
+                finishDrain();
+                return false;
+            }
+        }
+        if (buf == null) buf = pool.acquire(WRITE_BUFFER_SIZE);
+        ByteBuffer stage = STAGING.get().clear();
+        while (stage.hasRemaining()) {
+            if (current == null) {
+                if (urgent) takeControl();
+                if (isEmpty(controlBatch) && isEmpty(batch) && !takeBatch()) break;
+                if (isEmpty(controlBatch)) {
+                    current = batch.poll();
+                    currentOrigin = batchOrigins.poll();
+                } else {
+                    current = controlBatch.poll();
+                    currentOrigin = Backlog.NONE;
+                }
+                currentPos = 0;
+            }
+            int from = currentPos;
+            currentPos = encode(current, currentPos, stage);
+            // A multi-byte char that does not fit waits for the next fill, after this stage is written.
+            if (currentPos == from) break;
+            if (currentPos > current.length()) {
+                current = null;
+                currentOrigin.release(1);
+            }
+        }
+        buf.clear().put(stage.flip()).flip();
+        if (buf.hasRemaining()) return true;
+        synchronized (this) {
+            if (!closed && (urgent || pending != null)) return true;
+            finishDrain();
+            return false;
+        }
+    }
+
+    private void finishDrain() {
+        draining = false;
+        controlBatch = null;
+        batch = null;
+        releaseAll(batchOrigins);
+        batchOrigins = null;
+        if (current != null) {
+            current = null;
+            currentOrigin.release(1);
+        }
+        releaseBuffer();
+    }
+
+    private synchronized boolean takeBatch() {
+        if (closed) return false;
+        takeControl();
+        // Only called once the batch is used up, so the queues can change hands without copying.
+        batch = pending;
+        batchOrigins = pendingOrigins;
+        pending = null;
+        pendingOrigins = null;
+        pendingChars = 0;
+        return !isEmpty(controlBatch) || !isEmpty(batch);
+    }
+
+    private synchronized void takeControl() {
+        if (closed) return;
+        urgent = false;
+        if (control != null) {
+            for (String line : control) pendingChars -= line.length();
+            if (isEmpty(controlBatch)) {
+                controlBatch = control;
+            } else {
+                controlBatch.addAll(control);
+            }
+            control = null;
+        }
+        if (presence != null) {
+            if (controlBatch == null) controlBatch = new ArrayDeque<>(QUEUE_CAPACITY);
+            controlBatch.add(presence);
+            presence = null;
+        }
+    }
+
+    private static boolean isEmpty(ArrayDeque<?> queue) {
+        return queue == null || queue.isEmpty();
+    }
+
+    private static void releaseAll(ArrayDeque<Backlog> origins) {
+        if (origins == null) return;
+        for (Backlog origin : origins) origin.release(1);
+    }
+
+    private void releaseBuffer() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Writes the UTF-8 encoding of {@code line} followed by a newline, starting at char index
+     * {@code from}, for as long as whole code points fit into {@code dst}.
+     *
+     * @return index of the next char to encode; {@code line.length() + 1} once the newline is written
+     */
+    static int encode(String line, int from, ByteBuffer dst) {
+        int i = from;
+        int n = line.length();
+        if (dst.hasArray()) {
+            // Fast path for the common all-ASCII prefix: plain array stores, no per-byte buffer checks.
+            byte[] a = dst.array();
+            int p = dst.arrayOffset() + dst.position();
+            int end = dst.arrayOffset() + dst.limit();
+            for (char c; i < n && p < end && (c = line.charAt(i)) < 0x80; i++) a[p++] = (byte) c;
+            dst.position(p - dst.arrayOffset());
+        }
+        while (i < n) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                if (!dst.hasRemaining()) return i;
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                if (dst.remaining() < 2) return i;
+                dst.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(line.charAt(i + 1))) {
+                if (dst.remaining() < 4) return i;
+                int cp = Character.toCodePoint(c, line.charAt(i + 1));
+                dst.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                i++;
+            } else {
+                if (dst.remaining() < 3) return i;
+                if (Character.isSurrogate(c)) c = '?'; // unpaired surrogate, as String.getBytes would
+                dst.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+            i++;
+        }
+        if (i == n && dst.hasRemaining()) {
+            dst.put((byte) '\n');
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,71 @@
+package chat.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread owning one delivery partition of an {@link InMemoryBackend}.
+ * <p>
+ * Other threads hand work to the partition by posting tasks to its mailbox, a lock-free queue;
+ * the partition thread runs them one after another, so the data they touch needs neither locks
+ * nor concurrent collections as long as only these tasks touch it. Tasks posted by one thread run
+ * in the order they were posted. The thread parks while the mailbox is empty and only the first
+ * task posted after that unparks it, so posting to a busy partition costs a single queue insert.
+ * </p>
+ */
+final class PartitionLoop implements Executor {
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private volatile boolean parked;
+    private volatile boolean running = true;
+
+    /**
+     * Starts the partition thread as a daemon.
+     *
+     * @param name thread name
+     */
+    PartitionLoop(String name) {
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void execute(Runnable task) {
+        mailbox.add(task);
+        if (parked) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops the partition thread once the task it is running returns and waits for it to exit.
+     * Tasks still in the mailbox are dropped.
+     *
+     * @param millis maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void shutdown(long millis) throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join(millis);
+    }
+
+    private void run() {
+        while (running) {
+            Runnable r = mailbox.poll();
+            if (r == null) {
+                parked = true;
+                // Re-check after publishing the flag: a producer that missed it has queued its task by now.
+                if (mailbox.isEmpty()) LockSupport.park(this);
+                parked = false;
+                continue;
+            }
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
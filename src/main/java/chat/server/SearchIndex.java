@@ -0,0 +1,367 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded, incrementally maintained inverted index over recent public messages.
+ * <p>
+ * Messages get consecutive document ids and are kept in a ring of fixed capacity, so adding one
+ * evicts the oldest once the index is full (or once the retained text exceeds its character
+ * budget). Text is split into lower-cased runs of letters and digits; every term maps to a
+ * postings list of document ids in a growable {@code int[]}. Because ids only grow, postings are
+ * sorted by construction, eviction just moves a lower bound, and dead prefixes are trimmed by a
+ * periodic sweep that also rebases ids so they never overflow.
+ * </p>
+ * <p>
+ * A query is a list of words, optionally with {@code from:<nick>} to restrict the sender. Every
+ * message matching at least one word counts, ranked by the number of distinct query words it
+ * contains and then by recency.
+ * </p>
+ * <p>
+ * {@link #offer} hands a message to a background indexer thread through a bounded queue and
+ * never blocks; {@link #add} indexes on the caller's thread. Both may be used concurrently with
+ * {@link #search}.
+ * </p>
+ */
+public final class SearchIndex {
+    /** Default number of messages retained. */
+    public static final int DEFAULT_CAPACITY = 100_000;
+    /** Default limit on the total length of retained message text, in chars. */
+    public static final long DEFAULT_MAX_CHARS = 16L * 1024 * 1024;
+    /** Messages waiting for the indexer thread beyond this are dropped. */
+    static final int INGEST_QUEUE_CAPACITY = 64 * 1024;
+    /** Longer words are truncated to this many chars before indexing. */
+    static final int MAX_TERM_LENGTH = 64;
+    /** Sender terms use a prefix the tokenizer never produces, so they cannot clash with words. */
+    private static final String FROM_TERM = "from:";
+    private static final int INDEX_BATCH = 256;
+
+    /**
+     * One search result.
+     *
+     * @param seq server sequence number of the message
+     * @param millis server receive time in epoch milliseconds
+     * @param from sender nickname
+     * @param text message text
+     */
+    public record Hit(long seq, long millis, String from, String text) {
+    }
+
+    private record Pending(long seq, long millis, String from, String text) {
+    }
+
+    private final int capacity;
+    private final long maxChars;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private long[] seqs;
+    private long[] times;
+    private String[] senders;
+    private String[] texts;
+    /** Live documents are {@code [firstId, nextId)}; document {@code id} lives in slot {@code id % capacity}. */
+    private int firstId;
+    private int nextId;
+    private long chars;
+
+    private final ArrayBlockingQueue<Pending> ingest = new ArrayBlockingQueue<>(INGEST_QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread indexer;
+    private volatile boolean closed;
+
+    /** Creates an index with the default capacity and character budget. */
+    public SearchIndex() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * Creates an index.
+     *
+     * @param capacity maximum number of retained messages
+     * @param maxChars maximum total length of retained message text
+     */
+    public SearchIndex(int capacity, long maxChars) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (maxChars < 1) throw new IllegalArgumentException("maxChars must be positive: " + maxChars);
+        this.capacity = capacity;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Queues a message for indexing on the background indexer thread. Never blocks; if the
+     * indexer has fallen too far behind, the message is not indexed.
+     *
+     * @param seq server sequence number of the message
+     * @param millis server receive time in epoch milliseconds
+     * @param from sender nickname
+     * @param text message text
+     */
+    public void offer(long seq, long millis, String from, String text) {
+        if (closed) return;
+        if (indexer == null) startIndexer();
+        if (!ingest.offer(new Pending(seq, millis, from, text))) dropped.incrementAndGet();
+    }
+
+    /**
+     * Returns how many offered messages were dropped because the indexer queue was full.
+     *
+     * @return dropped message count
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the indexer thread. Messages offered afterwards are not indexed; what was indexed
+     * before can still be searched.
+     */
+    public synchronized void close() {
+        closed = true;
+        Thread t = indexer;
+        if (t != null) t.interrupt();
+    }
+
+    /**
+     * Indexes a message on the caller's thread.
+     *
+     * @param seq server sequence number of the message
+     * @param millis server receive time in epoch milliseconds
+     * @param from sender nickname
+     * @param text message text
+     */
+    public void add(long seq, long millis, String from, String text) {
+        lock.writeLock().lock();
+        try {
+            insert(seq, millis, from, text);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages currently retained.
+     *
+     * @return live document count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nextId - firstId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the best matching retained messages.
+     *
+     * @param query words to look for, optionally with one {@code from:<nick>} sender filter
+     * @param limit maximum number of hits
+     * @return hits ordered by the number of matched words and then newest first
+     */
+    public List<Hit> search(String query, int limit) {
+        List<String> words = new ArrayList<>();
+        String sender = null;
+        for (String part : query.trim().split("\\s+")) {
+            if (part.startsWith(FROM_TERM) && part.length() > FROM_TERM.length()) {
+                sender = part;
+            } else {
+                tokenize(part, words);
+            }
+        }
+        if (limit <= 0 || words.isEmpty() && sender == null) return List.of();
+
+        lock.readLock().lock();
+        try {
+            return rank(words.stream().distinct().toList(), sender, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Hit> rank(List<String> words, String sender, int limit) {
+        Postings senderPostings = null;
+        if (sender != null) {
+            senderPostings = terms.get(sender);
+            if (senderPostings == null) return List.of();
+        }
+        List<Postings> lists = new ArrayList<>();
+        for (String w : words) {
+            Postings p = terms.get(w);
+            if (p != null) lists.add(p);
+        }
+        if (lists.isEmpty() && !words.isEmpty()) return List.of();
+        if (lists.isEmpty()) lists.add(senderPostings); // sender filter alone: newest messages by that user
+
+        // Merge the sorted lists from their newest ends; each step yields one document and how many lists contain it.
+        int[] cursor = new int[lists.size()];
+        for (int i = 0; i < cursor.length; i++) cursor[i] = lists.get(i).size - 1;
+        int senderCursor = senderPostings == null ? -1 : senderPostings.size - 1;
+        PriorityQueue<long[]> best = new PriorityQueue<>(limit + 1, SearchIndex::compareScore);
+        while (true) {
+            int id = -1;
+            for (int i = 0; i < cursor.length; i++) {
+                Postings p = lists.get(i);
+                if (cursor[i] >= p.start && p.ids[cursor[i]] >= firstId) id = Math.max(id, p.ids[cursor[i]]);
+            }
+            if (id < 0) break;
+            int score = 0;
+            for (int i = 0; i < cursor.length; i++) {
+                Postings p = lists.get(i);
+                if (cursor[i] >= p.start && p.ids[cursor[i]] == id) {
+                    score++;
+                    cursor[i]--;
+                }
+            }
+            if (senderPostings != null) {
+                while (senderCursor >= senderPostings.start && senderPostings.ids[senderCursor] > id) senderCursor--;
+                if (senderCursor < senderPostings.start || senderPostings.ids[senderCursor] != id) continue;
+            }
+            // Candidates arrive newest first, so one that only ties the current worst is older and loses.
+            if (best.size() == limit && score <= best.peek()[0]) continue;
+            best.add(new long[]{score, id});
+            if (best.size() > limit) best.poll();
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            int slot = (int) (best.poll()[1] % capacity);
+            hits[i] = new Hit(seqs[slot], times[slot], senders[slot], texts[slot]);
+        }
+        return Arrays.asList(hits);
+    }
+
+    /** Orders candidates worst first: fewer matched words, then older. */
+    private static int compareScore(long[] a, long[] b) {
+        return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+    }
+
+    private void insert(long seq, long millis, String from, String text) {
+        if (seqs == null) {
+            seqs = new long[capacity];
+            times = new long[capacity];
+            senders = new String[capacity];
+            texts = new String[capacity];
+        }
+        while (nextId - firstId == capacity || (nextId > firstId && chars + text.length() > maxChars)) evictOldest();
+
+        int id = nextId++;
+        int slot = id % capacity;
+        seqs[slot] = seq;
+        times[slot] = millis;
+        senders[slot] = from;
+        texts[slot] = text;
+        chars += text.length();
+
+        List<String> words = new ArrayList<>();
+        tokenize(text, words);
+        words.add(FROM_TERM + from);
+        for (String w : words) terms.computeIfAbsent(w, k -> new Postings()).append(id);
+
+        if (id % capacity == capacity - 1) sweep();
+    }
+
+    private void evictOldest() {
+        int slot = firstId % capacity;
+        chars -= texts[slot].length();
+        senders[slot] = null;
+        texts[slot] = null;
+        firstId++;
+    }
+
+    /**
+     * Drops evicted ids from all postings, forgets terms that no longer occur and shifts ids
+     * down by a multiple of the capacity so they stay small without changing any slot.
+     */
+    private void sweep() {
+        int shift = firstId / capacity * capacity;
+        for (Iterator<Postings> it = terms.values().iterator(); it.hasNext(); ) {
+            Postings p = it.next();
+            if (!p.trim(firstId, shift)) it.remove();
+        }
+        firstId -= shift;
+        nextId -= shift;
+    }
+
+    /** Appends the lower-cased letter-and-digit runs of {@code text} to {@code out}. */
+    static void tokenize(String text, List<String> out) {
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) out.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase());
+        }
+    }
+
+    private synchronized void startIndexer() {
+        if (indexer != null || closed) return;
+        Thread t = new Thread(this::runIndexer, "chat/indexer");
+        t.setDaemon(true);
+        t.start();
+        indexer = t;
+    }
+
+    private void runIndexer() {
+        List<Pending> batch = new ArrayList<>(INDEX_BATCH);
+        try {
+            while (true) {
+                batch.add(ingest.take());
+                ingest.drainTo(batch, INDEX_BATCH - 1);
+                // Batches amortize the write lock while keeping searches from waiting long.
+                lock.writeLock().lock();
+                try {
+                    for (Pending m : batch) insert(m.seq, m.millis, m.from, m.text);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Sorted document ids of one term; the live part is {@code ids[start..size)}. */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int start;
+        int size;
+
+        void append(int id) {
+            if (size > start && ids[size - 1] == id) return; // term repeated within one message
+            if (size == ids.length) {
+                if (start > size / 2) {
+                    System.arraycopy(ids, start, ids, 0, size - start);
+                    size -= start;
+                    start = 0;
+                } else {
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+            }
+            ids[size++] = id;
+        }
+
+        /** Drops ids below {@code firstLive} and subtracts {@code shift}; returns false if nothing is left. */
+        boolean trim(int firstLive, int shift) {
+            while (start < size && ids[start] < firstLive) start++;
+            int live = size - start;
+            if (live == 0) return false;
+            int[] target = ids.length > 4 && live <= ids.length / 4 ? new int[Math.max(4, live * 2)] : ids;
+            for (int i = 0; i < live; i++) target[i] = ids[start + i] - shift;
+            ids = target;
+            start = 0;
+            size = live;
+            return true;
+        }
+    }
+}
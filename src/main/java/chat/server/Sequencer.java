@@ -0,0 +1,207 @@
+package chat.server;
+
+import chat.protocol.Backend;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-producer ring buffer with a single consumer thread that sees every entry in one global
+ * order.
+ * <p>
+ * Producers claim the next sequence number from one counter, fill the preallocated entry in that
+ * slot and publish it by storing its sequence number in the slot's marker. The router thread
+ * consumes sequence numbers strictly in order and hands each entry to the {@link Handler}, so the
+ * claim order is the total order in which entries are handled. Entries are reused once handled;
+ * nothing is allocated per message.
+ * </p>
+ * <p>
+ * Producers are event loop threads, so a full ring must not make them wait: once it is full,
+ * entries are allocated and appended to an overflow queue instead, and every later publish goes
+ * there too until the router has emptied it, which keeps each producer's entries in order. The
+ * router takes the overflow only after every entry claimed in the ring before it. The overflow is
+ * not bounded here; it is bounded by the {@link Backlog} each entry is charged to, which stops
+ * reading from a sender long before its entries could pile up. The router spins briefly when it
+ * runs out of entries and then parks until the next publish unparks it.
+ * </p>
+ */
+final class Sequencer {
+    /** Number of empty polls the router spins before it parks. */
+    private static final int SPINS = 100;
+
+    /** Kinds of entries. */
+    static final int PUBLIC = 0;
+    static final int PRIVATE = 1;
+    static final int GROUP = 2;
+
+    /** Consumer of published entries; runs on the router thread. */
+    interface Handler {
+        /**
+         * Handles one entry. The entry is cleared and reused after this returns.
+         *
+         * @param entry the entry, valid only during the call
+         */
+        void onEntry(Entry entry);
+    }
+
+    /** One preallocated slot of the ring. */
+    static final class Entry {
+        int kind;
+        String from;
+        /** The sender as resolved by the backend; {@code null} if it was not. */
+        Backend.Sender sender;
+        String to;
+        String text;
+        Backlog origin;
+
+        private void set(int kind, String from, Backend.Sender sender, String to, String text, Backlog origin) {
+            this.kind = kind;
+            this.from = from;
+            this.sender = sender;
+            this.to = to;
+            this.text = text;
+            this.origin = origin;
+        }
+
+        private void clear() {
+            from = null;
+            sender = null;
+            to = null;
+            text = null;
+            origin = null;
+        }
+    }
+
+    private final Entry[] ring;
+    private final int mask;
+    /** Sequence number last published in each slot; -1 before the first. */
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    /** Entries published while the ring was full, or while earlier ones still waited here. */
+    private final ConcurrentLinkedQueue<Entry> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicLong overflowed = new AtomicLong();
+    /** Every sequence number below this has been handled and its slot may be reused. */
+    private volatile long consumed;
+    private volatile boolean routerParked;
+    private volatile boolean running = true;
+    private final Handler handler;
+    private final Thread router;
+
+    /**
+     * Allocates the ring and starts the router thread as a daemon.
+     *
+     * @param capacity number of slots; a power of two
+     * @param handler consumer of the entries
+     * @param name router thread name
+     */
+    Sequencer(int capacity, Handler handler, String name) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) ring[i] = new Entry();
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+        this.handler = handler;
+        this.router = new Thread(this::run, name);
+        router.setDaemon(true);
+        router.start();
+    }
+
+    /**
+     * Appends an entry to the global order. Never waits: if the ring is full, the entry goes to
+     * the overflow queue.
+     *
+     * @param kind {@link #PUBLIC}, {@link #PRIVATE} or {@link #GROUP}
+     * @param from sender nickname
+     * @param sender the sender as resolved by the backend, or {@code null}
+     * @param to recipient nickname, comma-separated recipients for {@link #GROUP}, or {@code null}
+     *           for public messages
+     * @param text message text
+     * @param origin sender's flow-control account
+     */
+    void publish(int kind, String from, Backend.Sender sender, String to, String text, Backlog origin) {
+        if (overflow.isEmpty()) {
+            for (long seq = claimed.get(); seq - ring.length < consumed; seq = claimed.get()) {
+                if (!claimed.compareAndSet(seq, seq + 1)) continue;
+                int slot = (int) seq & mask;
+                ring[slot].set(kind, from, sender, to, text, origin);
+                published.set(slot, seq);
+                if (routerParked) LockSupport.unpark(router);
+                return;
+            }
+        }
+        Entry e = new Entry();
+        e.set(kind, from, sender, to, text, origin);
+        overflow.add(e);
+        overflowed.incrementAndGet();
+        if (routerParked) LockSupport.unpark(router);
+    }
+
+    /**
+     * Returns how many entries went to the overflow queue because the ring was full.
+     *
+     * @return overflowed entry count
+     */
+    long overflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * Stops the router thread once the entry it is handling returns and waits for it to exit.
+     * Entries not yet handled are dropped.
+     *
+     * @param millis maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void shutdown(long millis) throws InterruptedException {
+        running = false;
+        LockSupport.unpark(router);
+        router.join(millis);
+    }
+
+    private void run() {
+        long next = 0;
+        int idle = 0;
+        while (running) {
+            int slot = (int) next & mask;
+            if (published.get(slot) == next) {
+                idle = 0;
+                Entry e = ring[slot];
+                handle(e);
+                e.clear();
+                consumed = ++next;
+                continue;
+            }
+            // An overflowed entry goes after every slot claimed before it was queued. It is removed
+            // only once handled, so producers keep queueing behind it instead of claiming slots.
+            Entry e = overflow.peek();
+            if (e != null && claimed.get() == next) {
+                idle = 0;
+                handle(e);
+                overflow.poll();
+                continue;
+            }
+            if (++idle < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            routerParked = true;
+            // Re-check after publishing the flag: a producer that missed it has published by now.
+            if (published.get(slot) != next && overflow.isEmpty()) LockSupport.park(this);
+            routerParked = false;
+            idle = 0;
+        }
+    }
+
+    private void handle(Entry e) {
+        try {
+            handler.onEntry(e);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package chat.server;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder events emitted by the server.
+ * <p>
+ * All events belong to the {@code Chat} category and are enabled by the default JFR settings,
+ * so a plain {@code -XX:StartFlightRecording} on a running server shows connection churn,
+ * logins, per-command processing time, fan-out cost, filtered messages, stalled writes and
+ * file transfers.
+ * Duration events only keep operations that took at least a millisecond, so a busy server does
+ * not flood the recording; lower {@code chat.Command#threshold} and its siblings to see every one.
+ * </p>
+ * <p>
+ * Call sites follow the usual JFR pattern of creating the event, calling {@code begin()} and
+ * filling in fields only after {@code shouldCommit()} returned true. While recording is off the
+ * JIT eliminates the short-lived event objects, so the instrumentation costs next to nothing.
+ * </p>
+ * <p>
+ * Stack traces are disabled for all of them: the call sites are fixed and the traces would
+ * cost more than the events themselves.
+ * </p>
+ */
+final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("chat.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"Chat", "Connections"})
+    @StackTrace(false)
+    static final class ConnectionAccepted extends Event {
+        @Label("Connection Id")
+        int connectionId;
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("chat.ConnectionClosed")
+    @Label("Connection Closed")
+    @Category({"Chat", "Connections"})
+    @StackTrace(false)
+    static final class ConnectionClosed extends Event {
+        @Label("Connection Id")
+        int connectionId;
+        @Label("Nickname")
+        String nick;
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("chat.Login")
+    @Label("Login")
+    @Description("Outcome of a HELLO or RESUME handshake")
+    @Category({"Chat", "Connections"})
+    @StackTrace(false)
+    static final class Login extends Event {
+        @Label("Connection Id")
+        int connectionId;
+        @Label("Nickname")
+        String nick;
+        @Label("Succeeded")
+        boolean succeeded;
+        @Label("Resumed")
+        boolean resumed;
+        @Label("Response")
+        String response;
+    }
+
+    @Name("chat.Command")
+    @Label("Command")
+    @Description("Processing of one client line, including the delivery work it triggered on the loop thread")
+    @Category({"Chat", "Commands"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class Command extends Event {
+        @Label("Connection Id")
+        int connectionId;
+        @Label("Command")
+        String command;
+        @Label("Nickname")
+        String nick;
+        @Label("Response")
+        String response;
+    }
+
+    @Name("chat.Broadcast")
+    @Label("Broadcast")
+    @Description("Fan-out of one public message to every recipient's outbox, or to those of one delivery partition")
+    @Category({"Chat", "Delivery"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class Broadcast extends Event {
+        @Label("Sender")
+        String sender;
+        @Label("Sequence Number")
+        long seq;
+        @Label("Recipients")
+        int recipients;
+        @Label("Parallel")
+        boolean parallel;
+    }
+
+    @Name("chat.PrivateMessage")
+    @Label("Private Message")
+    @Category({"Chat", "Delivery"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class PrivateMessage extends Event {
+        @Label("Sender")
+        String sender;
+        @Label("Recipient")
+        String recipient;
+        @Label("Delivered")
+        boolean delivered;
+    }
+
+    @Name("chat.FilterMatch")
+    @Label("Filter Match")
+    @Description("Message that contained a banned term, with the strongest action taken")
+    @Category({"Chat", "Delivery"})
+    @StackTrace(false)
+    static final class FilterMatch extends Event {
+        @Label("Sender")
+        String sender;
+        @Label("Action")
+        String action;
+        @Label("Term")
+        String term;
+    }
+
+    @Name("chat.FileTransfer")
+    @Label("File Transfer")
+    @Description("Upload of a file to the spool, or download of one from it, on the transfer port")
+    @Category({"Chat", "Transfers"})
+    @StackTrace(false)
+    static final class FileTransfer extends Event {
+        @Label("Sender")
+        String sender;
+        @Label("Recipient")
+        String recipient;
+        @Label("Upload")
+        boolean upload;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("chat.WriteStall")
+    @Label("Write Stall")
+    @Description("Time an outbox waited for a full socket to accept more output")
+    @Category({"Chat", "Delivery"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class WriteStall extends Event {
+        @Label("Unwritten Bytes")
+        @DataAmount
+        int unwrittenBytes;
+        @Label("Queued Chars")
+        long queuedChars;
+    }
+}
@@ -0,0 +1,299 @@
+package chat.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link MessageFilter} that finds banned terms with an Aho-Corasick automaton.
+ * <p>
+ * The automaton is built once from the whole term list and never changes afterwards, so one
+ * instance can be shared by all connection threads. Screening a message walks it once, char by
+ * char, whatever the number of terms: each step follows a goto edge or a failure link, and every
+ * term ending at the current position is reached through a chain of output links. Matching
+ * ignores case. A term that starts or ends with a letter or digit only matches where the message
+ * has no letter or digit right before or after it, so {@code ass} does not hit {@code class},
+ * while a term like {@code bit.ly/} still matches inside a link.
+ * </p>
+ * <p>
+ * Each term carries an {@link Action}. A message with a {@link Action#REJECT} term is rejected,
+ * {@link Action#MASK} terms are replaced by asterisks, and {@link Action#FLAG} terms let the
+ * message through unchanged. Every message that matched is reported as a
+ * {@code chat.FilterMatch} flight recorder event with its strongest action.
+ * </p>
+ * <p>
+ * To change the list, build a new instance and swap it in; {@link ChatServer#enableFilter} does
+ * that whenever the term file changes.
+ * </p>
+ */
+public final class TermFilter implements MessageFilter {
+    /** What happens to a message containing a term, from weakest to strongest. */
+    public enum Action {
+        /** Deliver the message unchanged, but report it. */
+        FLAG,
+        /** Deliver the message with the term replaced by asterisks. */
+        MASK,
+        /** Do not deliver the message. */
+        REJECT
+    }
+
+    private static final Action[] ACTIONS = Action.values();
+    private static final int ROOT = 0;
+    /** Number of children from which a node gets a dense transition row. */
+    private static final int DENSE_CHILDREN = 8;
+
+    /** Children of node {@code n} are {@code labels/targets[childStart[n] .. childStart[n + 1])}, sorted by label. */
+    private final int[] childStart;
+    private final char[] labels;
+    private final int[] targets;
+    /**
+     * ASCII transitions of nodes with many children, which is where most of a message is spent;
+     * {@code null} for the others. The root's row sends unknown chars back to the root.
+     */
+    private final int[][] dense;
+    private final int[] fail;
+    /** Term ending exactly at each node, or -1. */
+    private final int[] output;
+    /** Nearest node on the failure chain, excluding the node itself, at which a term ends; or -1. */
+    private final int[] outputLink;
+    private final String[] terms;
+    private final int[] termLength;
+    private final byte[] termAction;
+    /** Whether a term must not continue a word at its start or its end. */
+    private final boolean[] wordStart;
+    private final boolean[] wordEnd;
+
+    /**
+     * Builds the automaton for a set of terms.
+     *
+     * @param rules terms and their actions; terms are matched ignoring case, empty ones are ignored
+     */
+    public TermFilter(Map<String, Action> rules) {
+        Map<String, Action> merged = new LinkedHashMap<>();
+        rules.forEach((term, action) -> {
+            String t = lower(term.strip());
+            if (!t.isEmpty()) merged.merge(t, action, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+        });
+        int count = merged.size();
+        terms = new String[count];
+        termLength = new int[count];
+        termAction = new byte[count];
+        wordStart = new boolean[count];
+        wordEnd = new boolean[count];
+
+        // Trie with sorted child maps; flattened into arrays below.
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(-1);
+        int index = 0;
+        for (Map.Entry<String, Action> e : merged.entrySet()) {
+            String t = e.getKey();
+            int node = ROOT;
+            for (int i = 0; i < t.length(); i++) {
+                Integer next = children.get(node).get(t.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.get(node).put(t.charAt(i), next);
+                    children.add(new TreeMap<>());
+                    outputs.add(-1);
+                }
+                node = next;
+            }
+            outputs.set(node, index);
+            terms[index] = t;
+            termLength[index] = t.length();
+            termAction[index] = (byte) e.getValue().ordinal();
+            wordStart[index] = isWordChar(t.charAt(0));
+            wordEnd[index] = isWordChar(t.charAt(t.length() - 1));
+            index++;
+        }
+
+        int nodes = children.size();
+        childStart = new int[nodes + 1];
+        for (int n = 0; n < nodes; n++) childStart[n + 1] = childStart[n] + children.get(n).size();
+        labels = new char[childStart[nodes]];
+        targets = new int[childStart[nodes]];
+        for (int n = 0; n < nodes; n++) {
+            int k = childStart[n];
+            for (Map.Entry<Character, Integer> c : children.get(n).entrySet()) {
+                labels[k] = c.getKey();
+                targets[k++] = c.getValue();
+            }
+        }
+        output = new int[nodes];
+        for (int n = 0; n < nodes; n++) output[n] = outputs.get(n);
+        dense = new int[nodes][];
+        for (int n = 0; n < nodes; n++) {
+            if (n != ROOT && childStart[n + 1] - childStart[n] < DENSE_CHILDREN) continue;
+            int[] row = new int[128];
+            Arrays.fill(row, n == ROOT ? ROOT : -1);
+            for (int k = childStart[n]; k < childStart[n + 1]; k++) {
+                if (labels[k] < 128) row[labels[k]] = targets[k];
+            }
+            dense[n] = row;
+        }
+
+        // Breadth-first, so every failure target is finished before it is used.
+        fail = new int[nodes];
+        outputLink = new int[nodes];
+        outputLink[ROOT] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int k = childStart[ROOT]; k < childStart[ROOT + 1]; k++) {
+            fail[targets[k]] = ROOT;
+            outputLink[targets[k]] = -1;
+            queue.add(targets[k]);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int k = childStart[node]; k < childStart[node + 1]; k++) {
+                int child = targets[k];
+                int f = fail[node];
+                int next;
+                while ((next = child(f, labels[k])) < 0 && f != ROOT) f = fail[f];
+                fail[child] = next < 0 ? ROOT : next;
+                outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Loads a term file: one {@code <action> <term>} per line, where the action is
+     * {@code reject}, {@code mask} or {@code flag} and the term is the rest of the line.
+     * Blank lines and lines starting with {@code #} are skipped.
+     *
+     * @param file UTF-8 term file
+     * @return the filter
+     * @throws IOException if the file cannot be read or a line names no valid action
+     */
+    public static TermFilter load(Path file) throws IOException {
+        Map<String, Action> rules = new LinkedHashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int number = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                number++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int sp = line.indexOf(' ');
+                Action action = sp < 0 ? null : parseAction(line.substring(0, sp));
+                if (action == null) throw new IOException(file + ":" + number + ": expected 'reject|mask|flag <term>': " + line);
+                rules.merge(line.substring(sp + 1).strip(), action, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+            }
+        }
+        return new TermFilter(rules);
+    }
+
+    private static Action parseAction(String name) {
+        for (Action a : ACTIONS) {
+            if (a.name().equalsIgnoreCase(name)) return a;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of distinct terms.
+     *
+     * @return term count
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String screen(String from, String text) {
+        int strongest = -1;
+        int matched = -1;
+        char[] masked = null;
+        int node = ROOT;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = lower(text.charAt(i));
+            node = step(node, c);
+            for (int o = output[node] >= 0 ? node : outputLink[node]; o >= 0; o = outputLink[o]) {
+                int t = output[o];
+                int start = i - termLength[t] + 1;
+                if (wordStart[t] && start > 0 && isWordChar(text.charAt(start - 1))) continue;
+                if (wordEnd[t] && i + 1 < n && isWordChar(text.charAt(i + 1))) continue;
+                int action = termAction[t];
+                if (action > strongest) {
+                    strongest = action;
+                    matched = t;
+                }
+                if (action == Action.REJECT.ordinal()) {
+                    report(from, Action.REJECT, t);
+                    return null;
+                }
+                if (action == Action.MASK.ordinal()) {
+                    if (masked == null) masked = text.toCharArray();
+                    Arrays.fill(masked, start, i + 1, '*');
+                }
+            }
+        }
+        if (matched < 0) return text;
+        report(from, ACTIONS[strongest], matched);
+        return masked == null ? text : new String(masked);
+    }
+
+    private int step(int node, char c) {
+        while (true) {
+            int next = child(node, c);
+            if (next >= 0) return next;
+            if (node == ROOT) return ROOT;
+            node = fail[node];
+        }
+    }
+
+    /** Returns the child of {@code node} reached by {@code c}, or -1. */
+    private int child(int node, char c) {
+        int[] row = dense[node];
+        if (row != null && c < 128) return row[c];
+        int lo = childStart[node];
+        int hi = childStart[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char l = labels[mid];
+            if (l < c) {
+                lo = mid + 1;
+            } else if (l > c) {
+                hi = mid - 1;
+            } else {
+                return targets[mid];
+            }
+        }
+        return -1;
+    }
+
+    private void report(String from, Action action, int term) {
+        ServerEvents.FilterMatch event = new ServerEvents.FilterMatch();
+        if (!event.shouldCommit()) return;
+        event.sender = from;
+        event.action = action.name();
+        event.term = terms[term];
+        event.commit();
+    }
+
+    private static char lower(char c) {
+        if (c < 128) return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+
+    private static String lower(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) chars[i] = lower(chars[i]);
+        return new String(chars);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+}
@@ -0,0 +1,172 @@
+package chat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact recording of the protocol lines clients sent to a server, for replaying real traffic
+ * against another server later.
+ * <p>
+ * A capture starts with a magic number, followed by one record per inbound line and one per
+ * closed connection. Every record holds its kind, the connection id, the time since the previous
+ * record in microseconds and, for lines, the UTF-8 text; numbers are written as variable-length
+ * integers, so a typical chat line costs only a few bytes on top of its text. Connections are
+ * numbered by the server in accept order, and a connection's first record implies that it was
+ * opened.
+ * </p>
+ * <p>
+ * The writing methods may be called from any thread. A capture that fails to write stops
+ * recording and reports the error once, so a full disk never takes the server down.
+ * </p>
+ */
+public final class TrafficCapture implements Closeable {
+    /** Leading four bytes of every capture. */
+    static final int MAGIC = 0x43484301;
+    private static final int LINE = 1;
+    private static final int CLOSE = 2;
+
+    /**
+     * One recorded event.
+     *
+     * @param micros time since the start of the capture in microseconds
+     * @param connection connection id
+     * @param line the line the client sent, or {@code null} if the connection was closed
+     */
+    public record Record(long micros, int connection, String line) {
+    }
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long lastMicros;
+    private boolean failed;
+
+    /**
+     * Starts a capture, writing the header right away.
+     *
+     * @param out stream receiving the capture; closed by {@link #close()}
+     * @throws IOException if the header cannot be written
+     */
+    public TrafficCapture(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+    }
+
+    /**
+     * Records a line received from a client.
+     *
+     * @param connection connection id
+     * @param line the line without its terminator
+     */
+    public void line(int connection, String line) {
+        record(LINE, connection, line);
+    }
+
+    /**
+     * Records that a client connection was closed.
+     *
+     * @param connection connection id
+     */
+    public void closed(int connection) {
+        record(CLOSE, connection, null);
+    }
+
+    private synchronized void record(int kind, int connection, String line) {
+        if (failed) return;
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        try {
+            out.write(kind);
+            writeVarLong(out, connection);
+            writeVarLong(out, micros - lastMicros);
+            if (line != null) {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+            }
+            lastMicros = micros;
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Traffic capture stopped: " + e);
+        }
+    }
+
+    /**
+     * Flushes buffered records to the underlying stream.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Flushes and closes the capture. Later records are ignored. */
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+
+    /** Sequential reader of a capture written by {@link TrafficCapture}. */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private long micros;
+
+        /**
+         * Opens a capture and checks its header.
+         *
+         * @param in stream positioned at the start of the capture; closed by {@link #close()}
+         * @throws IOException if the stream does not start with a capture header
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            int magic = this.in.readInt();
+            if (magic != MAGIC) throw new IOException("Not a traffic capture: " + Integer.toHexString(magic));
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return the record, or {@code null} at the end of the capture
+         * @throws IOException if the stream cannot be read or holds a malformed record
+         */
+        public Record next() throws IOException {
+            int kind = in.read();
+            if (kind < 0) return null;
+            int connection = (int) readVarLong(in);
+            micros += readVarLong(in);
+            return switch (kind) {
+                case LINE -> {
+                    byte[] bytes = new byte[(int) readVarLong(in)];
+                    in.readFully(bytes);
+                    yield new Record(micros, connection, new String(bytes, StandardCharsets.UTF_8));
+                }
+                case CLOSE -> new Record(micros, connection, null);
+                default -> throw new IOException("Unknown capture record kind " + kind);
+            };
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+}
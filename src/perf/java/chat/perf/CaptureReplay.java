@@ -0,0 +1,245 @@
+package chat.perf;
+
+import chat.protocol.Protocol;
+import chat.server.ChatServer;
+import chat.server.TrafficCapture;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-drives a fresh in-process server with the client traffic of a {@link TrafficCapture}.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=CaptureReplay --args="<capture> [speed] [report]"}.
+ * Every captured connection is opened as a real socket and sends its lines at the captured
+ * times divided by {@code speed} (default 1; {@code max} sends as fast as the server accepts).
+ * Each public message is timed until its sender sees it echoed back. The run reports send
+ * throughput, how far sending fell behind the schedule and the echo latency percentiles.
+ * </p>
+ * <p>
+ * If the report file exists it is treated as a baseline and the differences are printed;
+ * otherwise the results are written to it, so the first run of a capture records the baseline
+ * that later runs compare against. Resume tokens of the captured server mean nothing to the fresh
+ * one, so {@code RESUME} is replayed as a plain {@code HELLO} and the resume capability is not
+ * requested.
+ * </p>
+ */
+public final class CaptureReplay {
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final String[] METRICS = {"lines_per_s", "lag_p99_us", "echo_p50_us", "echo_p99_us", "echo_max_us"};
+
+    private final Map<Integer, Client> clients = new HashMap<>();
+    private final List<Client> closed = new ArrayList<>();
+    private final Samples echoes = new Samples();
+    private final AtomicLong received = new AtomicLong();
+    private final int port;
+
+    private CaptureReplay(int port) {
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CaptureReplay <capture> [speed|max] [report]");
+            System.exit(2);
+        }
+        List<TrafficCapture.Record> records = new ArrayList<>();
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(Files.newInputStream(Path.of(args[0])))) {
+            for (TrafficCapture.Record r; (r = reader.next()) != null; ) records.add(r);
+        }
+        double speed = args.length < 2 ? 1 : args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port);
+        server.startAsync();
+        if (server.isReady(5000)) throw new IllegalStateException("Server did not start within 5s");
+        Map<String, Long> results;
+        try {
+            results = new CaptureReplay(port).run(records, speed);
+        } finally {
+            server.stop();
+        }
+
+        results.forEach((k, v) -> System.out.println(k + "=" + v));
+        if (args.length > 2) report(Path.of(args[2]), results);
+    }
+
+    private Map<String, Long> run(List<TrafficCapture.Record> records, double speed) throws IOException, InterruptedException {
+        Samples lag = new Samples();
+        long lines = 0;
+        long start = System.nanoTime();
+        for (TrafficCapture.Record r : records) {
+            long due = start + (speed > 0 ? (long) (r.micros() * 1000 / speed) : 0);
+            for (long wait; (wait = due - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+            lag.add(Math.max(0, System.nanoTime() - due));
+            if (r.line() == null) {
+                // Half-close like a departing client, but keep reading echoes that are still on their way.
+                Client c = clients.remove(r.connection());
+                if (c != null) {
+                    c.socket.shutdownOutput();
+                    closed.add(c);
+                }
+            } else {
+                clients.computeIfAbsent(r.connection(), id -> new Client(id)).send(r.line());
+                lines++;
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        closed.addAll(clients.values());
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        for (Client c : closed) {
+            while (!c.sent.isEmpty() && !c.done && System.nanoTime() < deadline) Thread.sleep(1);
+        }
+        for (Client c : closed) c.socket.close();
+
+        Map<String, Long> results = new LinkedHashMap<>();
+        results.put("records", (long) records.size());
+        results.put("captured_ms", records.isEmpty() ? 0 : records.get(records.size() - 1).micros() / 1000);
+        results.put("replay_ms", TimeUnit.NANOSECONDS.toMillis(sendNanos));
+        results.put("lines_per_s", (long) (lines * 1e9 / Math.max(1, sendNanos)));
+        results.put("received_lines", received.get());
+        results.put("lag_p99_us", lag.percentile(99) / 1000);
+        results.put("echoes", (long) echoes.size());
+        results.put("echo_p50_us", echoes.percentile(50) / 1000);
+        results.put("echo_p99_us", echoes.percentile(99) / 1000);
+        results.put("echo_max_us", echoes.percentile(100) / 1000);
+        return results;
+    }
+
+    /** Prints the change of each metric against an existing report, or writes a new one. */
+    private static void report(Path file, Map<String, Long> results) throws IOException {
+        if (!Files.exists(file)) {
+            Properties p = new Properties();
+            results.forEach((k, v) -> p.setProperty(k, Long.toString(v)));
+            try (Writer w = Files.newBufferedWriter(file)) {
+                p.store(w, "CaptureReplay baseline");
+            }
+            System.out.println("baseline written to " + file);
+            return;
+        }
+        Properties baseline = new Properties();
+        try (Reader r = Files.newBufferedReader(file)) {
+            baseline.load(r);
+        }
+        for (String metric : METRICS) {
+            long before = Long.parseLong(baseline.getProperty(metric, "0"));
+            long now = results.get(metric);
+            String change = before == 0 ? "n/a" : String.format("%+.1f%%", (now - before) * 100.0 / before);
+            System.out.printf("%-12s %10d -> %10d  %s%n", metric, before, now, change);
+        }
+    }
+
+    /** Rewrites lines whose meaning depends on the state of the captured server. */
+    private static String rewrite(String line) {
+        if (line.startsWith(Protocol.RESUME)) {
+            String[] parts = line.substring(Protocol.RESUME.length()).trim().split(" ", 2);
+            return Protocol.HANDSHAKE + parts[0];
+        }
+        if (line.startsWith(Protocol.CAPS)) {
+            StringJoiner caps = new StringJoiner(",");
+            for (String cap : line.substring(Protocol.CAPS.length()).split(",")) {
+                if (!cap.trim().equals(Protocol.CAP_RESUME)) caps.add(cap.trim());
+            }
+            return Protocol.CAPS + caps;
+        }
+        return line;
+    }
+
+    private record Sent(String text, long nanos) {
+    }
+
+    /** One replayed connection; its reader thread matches echoes of its own messages. */
+    private final class Client {
+        final Socket socket;
+        final Writer out;
+        /** Public messages not yet echoed, oldest first. */
+        final ConcurrentLinkedQueue<Sent> sent = new ConcurrentLinkedQueue<>();
+        volatile String echoPrefix;
+        /** Set once the server closed the connection. */
+        volatile boolean done;
+
+        Client(int id) {
+            try {
+                socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Thread t = new Thread(null, this::readLoop, "replay-" + id, 64 * 1024);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void send(String line) throws IOException {
+            line = rewrite(line);
+            if (line.startsWith(Protocol.HANDSHAKE)) {
+                echoPrefix = Protocol.FROM + line.substring(Protocol.HANDSHAKE.length()).trim() + " ";
+            } else if (line.startsWith(Protocol.MSG)) {
+                sent.add(new Sent(line.substring(Protocol.MSG.length()).trim(), System.nanoTime()));
+            }
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        private void readLoop() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    long now = System.nanoTime();
+                    received.incrementAndGet();
+                    if (line.startsWith(Protocol.STAMP)) line = line.split(" ", 4)[3];
+                    String prefix = echoPrefix;
+                    if (prefix == null || !line.startsWith(prefix)) continue;
+                    String text = line.substring(prefix.length());
+                    // Echoes arrive in send order; messages the server rejected are never echoed.
+                    for (Sent m; (m = sent.poll()) != null; ) {
+                        if (m.text.equals(text)) {
+                            echoes.add(now - m.nanos);
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+                // closed by the driver
+            } finally {
+                done = true;
+            }
+        }
+    }
+
+    /** Growable list of nanosecond samples. */
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long percentile(int p) {
+            if (size == 0) return 0;
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) ((long) size * p / 100))];
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package chat.perf;
+
+import chat.protocol.Protocol;
+import chat.server.ChatServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Measures chat latency while a large file crosses the server.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=FileTransferBench}. Starts a server with file transfer
+ * enabled and no effective bandwidth cap, then times round trips of a public message (sent and
+ * read back by the same user) twice: on an idle server, and while another user uploads a file of
+ * the given size in megabytes (default 512) and a third downloads it, each over the transfer
+ * port. Prints the median and 99th percentile of both phases and the transfer rate.
+ * </p>
+ */
+public final class FileTransferBench {
+    private static final int PINGS = 500;
+
+    private FileTransferBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port);
+        server.enableFileTransfer(0, null, size, Long.MAX_VALUE / 2);
+        server.startAsync();
+        if (server.isReady(5000)) throw new IllegalStateException("server did not start");
+        Path file = Files.createTempFile("bench", ".bin");
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer block = ByteBuffer.allocate(1 << 20);
+            for (long pos = 0; pos < size; pos += block.capacity()) fc.write(block.clear(), pos);
+        }
+
+        try (User alice = new User(port, "alice"); User carol = new User(port, "carol"); User dave = new User(port, "dave")) {
+            report("idle", alice.ping(null));
+
+            carol.out.println(Protocol.FILE_OFFER + "dave " + size + " bench.bin");
+            String ticket = carol.readLine(Protocol.FILE_UPLOAD).split(" ")[1];
+            long[] transferNanos = new long[1];
+            Thread transfer = new Thread(() -> {
+                try {
+                    long start = System.nanoTime();
+                    upload(server.fileTransferPort(), ticket, file, size);
+                    dave.readLine(Protocol.FILE_FROM);
+                    download(server.fileTransferPort(), ticket, size);
+                    transferNanos[0] = System.nanoTime() - start;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "bench-transfer");
+            transfer.start();
+            report("during transfer", alice.ping(transfer));
+            transfer.join();
+            System.out.printf("transfer: %d MiB up and down in %d ms (%.0f MiB/s each way)%n", size >> 20,
+                    transferNanos[0] / 1_000_000, 2.0 * (size >> 20) * 1e9 / transferNanos[0]);
+        } finally {
+            server.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /** A logged-in chat connection. */
+    private static final class User implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        User(int port, String nick) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(30_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            out.println(Protocol.HANDSHAKE + nick);
+            readLine(Protocol.WELCOME);
+        }
+
+        /** Times {@link #PINGS} round trips, or as many as fit while {@code busy} is alive. */
+        long[] ping(Thread busy) throws IOException {
+            long[] nanos = new long[PINGS];
+            int n = 0;
+            for (; busy == null ? n < PINGS : busy.isAlive(); n++) {
+                if (n == nanos.length) nanos = Arrays.copyOf(nanos, n * 2);
+                long start = System.nanoTime();
+                out.println(Protocol.MSG + "ping " + n);
+                readLine(Protocol.FROM);
+                nanos[n] = System.nanoTime() - start;
+            }
+            return Arrays.copyOf(nanos, Math.max(n, 1));
+        }
+
+        String readLine(String prefix) throws IOException {
+            for (String line; (line = in.readLine()) != null; ) {
+                if (line.startsWith(prefix)) return line;
+            }
+            throw new IOException("connection closed before " + prefix.trim());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static void upload(int port, String ticket, Path file, long size) throws IOException {
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+             FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            ch.write(ByteBuffer.wrap((Protocol.TRANSFER_PUT + ticket + "\n").getBytes(StandardCharsets.UTF_8)));
+            for (long pos = 0; pos < size; ) pos += fc.transferTo(pos, size - pos, ch);
+            ch.shutdownOutput();
+            ch.read(ByteBuffer.allocate(64));
+        }
+    }
+
+    private static void download(int port, String ticket, long size) throws IOException {
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+            ch.write(ByteBuffer.wrap((Protocol.TRANSFER_GET + ticket + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            long received = 0;
+            for (int n; (n = ch.read(buf.clear())) > 0; ) received += n;
+            // The count includes the OK line in front of the payload.
+            if (received < size) throw new IOException("download ended after " + received + " bytes");
+        }
+    }
+
+    private static void report(String phase, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s: round trip p50 %.2f ms, p99 %.2f ms%n", phase,
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+    }
+}
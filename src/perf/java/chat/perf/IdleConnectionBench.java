@@ -0,0 +1,122 @@
+package chat.perf;
+
+import chat.protocol.Protocol;
+import chat.server.ChatServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what the server keeps per idle connection.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=IdleConnectionBench}. Starts a server in this JVM and
+ * a second JVM that opens the given number of loopback connections (default 100000), so the
+ * client sockets do not count against the server. Every connection negotiates a capability and
+ * reads the reply, which makes the server read, process and write once for it, and then stays
+ * silent. The bench reports the growth of the used heap after a full collection and of the
+ * resident set size (from {@code /proc}, Linux only) divided by the number of connections.
+ * </p>
+ * <p>
+ * Both JVMs need one file descriptor per connection, so raise {@code ulimit -n} above the
+ * count. Connections are spread over the server addresses {@code 127.0.0.1} and up, 20000
+ * each, to stay within the ephemeral port range.
+ * </p>
+ */
+public final class IdleConnectionBench {
+    private static final int CONNECTIONS_PER_ADDRESS = 20_000;
+    private static final String CLIENTS = "--clients";
+
+    private IdleConnectionBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(CLIENTS)) {
+            openClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port);
+        server.startAsync();
+        if (server.isReady(5000)) throw new IllegalStateException("server did not start");
+
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        Process clients = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), IdleConnectionBench.class.getName(),
+                CLIENTS, String.valueOf(port), String.valueOf(connections))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(clients.getInputStream(), StandardCharsets.UTF_8))) {
+            long start = System.nanoTime();
+            String line = in.readLine();
+            if (line == null) throw new IllegalStateException("client process failed");
+            System.out.printf("%s in %d ms%n", line, (System.nanoTime() - start) / 1_000_000);
+            long heap = usedHeap() - heapBefore;
+            long rss = rss() - rssBefore;
+            System.out.printf("%d idle connections: %d bytes of heap per connection, %s%n", connections,
+                    heap / connections, rssBefore < 0 ? "RSS not available" : rss / connections + " bytes of RSS per connection");
+            System.out.printf("buffer pool: %s%n", server.bufferPool());
+        } finally {
+            clients.destroy();
+            server.stop();
+        }
+    }
+
+    /** Client side, run in its own JVM: connects, negotiates, reports and waits to be killed. */
+    private static void openClients(int port, int count) throws IOException, InterruptedException {
+        List<SocketChannel> channels = new ArrayList<>(count);
+        ByteBuffer request = ByteBuffer.wrap((Protocol.CAPS + Protocol.CAP_STAMPS + "\n").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer reply = ByteBuffer.allocate(256);
+        for (int i = 0; i < count; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0." + (1 + i / CONNECTIONS_PER_ADDRESS), port));
+            ch.write(request.rewind());
+            channels.add(ch);
+        }
+        // Reading every reply proves the server has served each connection once.
+        for (SocketChannel ch : channels) {
+            reply.clear();
+            while (reply.position() == 0 || reply.get(reply.position() - 1) != '\n') {
+                if (ch.read(reply) < 0) throw new IOException("server closed a connection");
+            }
+        }
+        System.out.println(count + " connections open and served");
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            Thread.sleep(1000);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Resident set size of this process in bytes, or -1 where {@code /proc} is not available. */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+package chat.perf;
+
+import chat.server.InMemoryBackend;
+import chat.server.LineSink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures broadcast delivery throughput of {@link InMemoryBackend} for growing numbers of
+ * delivery partitions.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=PartitionScalingBench}. One sender thread per core
+ * broadcasts to an audience of sinks that lock and count like an outbox does, first without
+ * partitions (delivery on the sender threads) and then with 1, 2, 4, ... partitions up to the
+ * number of cores. Each run reports deliveries per second and the speedup over one partition,
+ * which should grow close to linearly until the partitions outnumber the free cores. Every
+ * configuration is also run with {@link InMemoryBackend#enableOrderedDelivery() ordered delivery},
+ * to show what the global order costs. The arguments set the audience size (default 2000) and the
+ * messages per sender (default 2000).
+ * </p>
+ */
+public final class PartitionScalingBench {
+    private PartitionScalingBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int audience = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        List<Integer> counts = new ArrayList<>(List.of(0));
+        for (int p = 1; p < cores; p *= 2) counts.add(p);
+        counts.add(cores);
+        double base = 0;
+        for (int partitions : counts) {
+            run(partitions, false, cores, audience, messages / 10); // warm-up
+            double rate = run(partitions, false, cores, audience, messages);
+            run(partitions, true, cores, audience, messages / 10);
+            double ordered = run(partitions, true, cores, audience, messages);
+            if (partitions == 1) base = rate;
+            System.out.printf("partitions=%-3d senders=%d audience=%d  %,14.0f deliveries/s%s  ordered %,14.0f (%+.1f%%)%n",
+                    partitions, cores, audience, rate, partitions > 1 ? String.format("  x%.2f", rate / base) : "",
+                    ordered, (ordered - rate) * 100 / rate);
+        }
+    }
+
+    private static double run(int partitions, boolean ordered, int senders, int audience, int messages)
+            throws InterruptedException {
+        InMemoryBackend backend = new InMemoryBackend(partitions);
+        if (ordered) backend.enableOrderedDelivery();
+        backend.setPresenceTickMillis(60_000);
+        LongAdder delivered = new LongAdder();
+        for (int i = 0; i < audience; i++) {
+            backend.reserveNick("u" + i);
+            backend.attach("u" + i, new CountingSink(delivered), false);
+        }
+        Thread.sleep(100); // let the partitions take in their members
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            String nick = "u" + s;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int m = 0; m < messages; m++) backend.broadcast(nick, "message number " + m);
+            });
+            t.start();
+            threads.add(t);
+        }
+        long expected = (long) senders * messages * audience;
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) t.join();
+        while (delivered.sum() < expected) Thread.sleep(1);
+        long nanos = System.nanoTime() - begin;
+        backend.close(); // the next configuration should not share the cores with idle partitions
+        return expected * 1e9 / nanos;
+    }
+
+    /** Stands in for an outbox: takes its monitor and does a little work per line. */
+    private static final class CountingSink implements LineSink {
+        private final LongAdder delivered;
+        private long chars;
+
+        CountingSink(LongAdder delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public synchronized void send(String line) {
+            chars += line.length();
+            delivered.increment();
+        }
+    }
+}
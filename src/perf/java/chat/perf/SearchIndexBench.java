@@ -0,0 +1,68 @@
+package chat.perf;
+
+import chat.server.SearchIndex;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast messages are indexed and how long queries take on a full index.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=SearchIndexBench}. Messages are drawn from a Zipf-like
+ * vocabulary so that a few words are very common, as in real chat. The first argument sets the
+ * number of messages indexed (default 1000000, ten times the default capacity).
+ * </p>
+ */
+public final class SearchIndexBench {
+    private static final int VOCABULARY = 50_000;
+    private static final int WORDS_PER_MESSAGE = 12;
+    private static final int USERS = 1_000;
+    private static final int QUERIES = 20_000;
+
+    private SearchIndexBench() {
+    }
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        SplittableRandom random = new SplittableRandom(42);
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) vocabulary[i] = "w" + Integer.toString(i, 36);
+        String[] texts = new String[10_000];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) sb.append(vocabulary[zipf(random)]).append(' ');
+            texts[i] = sb.toString();
+        }
+
+        SearchIndex index = new SearchIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            index.add(i, i, "user" + (i % USERS), texts[i % texts.length]);
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("index: %d messages in %d ms (%.0f msg/s), retained %d%n",
+                messages, TimeUnit.NANOSECONDS.toMillis(nanos), messages * 1e9 / nanos, index.size());
+
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String q = vocabulary[zipf(random)] + " " + vocabulary[zipf(random)];
+            queries[i] = i % 4 == 0 ? q + " from:user" + random.nextInt(USERS) : q;
+        }
+        for (String q : queries) index.search(q, 10); // warm-up
+        long[] latencies = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            long t = System.nanoTime();
+            index.search(queries[i], 10);
+            latencies[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("query: p50=%d us p99=%d us max=%d us%n",
+                latencies[QUERIES / 2] / 1000, latencies[QUERIES * 99 / 100] / 1000, latencies[QUERIES - 1] / 1000);
+    }
+
+    /** Picks a vocabulary index with roughly Zipfian frequency. */
+    private static int zipf(SplittableRandom random) {
+        return (int) Math.min(VOCABULARY - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+    }
+}
@@ -0,0 +1,340 @@
+package chat.perf;
+
+import chat.protocol.Protocol;
+import chat.server.ChatServer;
+import chat.server.InMemoryBackend;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Performance budgets for the server, run with {@code ./gradlew perfTest}.
+ * <p>
+ * Each test starts a local {@link ChatServer}, drives it over loopback with hundreds of headless
+ * clients served by a single selector thread, and checks what it measured against the budgets
+ * in {@code perf-baseline.properties} (or the file given with {@code -PperfBaseline=<file>}).
+ * The budgets are deliberately loose, so that only changes that alter the cost structure fail:
+ * a users list sent per login instead of per presence tick shows up as presence lines per
+ * client growing with the number of clients, and a write per line instead of per batch as a
+ * collapse in message throughput and in lines per client read.
+ * </p>
+ * <p>
+ * Every measurement is printed, which makes re-baselining after an intended change a matter of
+ * copying the numbers with some headroom.
+ * </p>
+ */
+class ServerBudgetTest {
+    private static final int CLIENTS = 500;
+    private static final long LOGIN_STORM_NANOS = 1_000_000_000L;
+    private static final int AUDIENCE = 200;
+    private static final int SENDERS = 10;
+    private static final int MESSAGES_PER_SENDER = 500;
+    /** Messages per second sent while measuring delivery latency. */
+    private static final int PACED_RATE = 500;
+    private static final int PACED_SECONDS = 2;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private static Properties budgets;
+    private ChatServer server;
+    private Clients clients;
+
+    @BeforeAll
+    static void loadBudgets() throws IOException {
+        budgets = new Properties();
+        String file = System.getProperty("perf.baseline");
+        try (InputStream in = file != null ? Files.newInputStream(Path.of(file))
+                : ServerBudgetTest.class.getResourceAsStream("/perf-baseline.properties")) {
+            if (in == null) throw new IOException("perf-baseline.properties not found");
+            budgets.load(in);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (clients != null) clients.close();
+        if (server != null) server.stop();
+    }
+
+    @Test
+    void loginStormCostsBoundedPresenceAndIdleFootprint() throws Exception {
+        int port = startServer();
+        clients = new Clients(port);
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeapAfterGc();
+
+        clients.connect(CLIENTS);
+        // Spread the logins over a second, as in a reconnect storm, so that each presence tick sees only some of them.
+        long loginStart = System.nanoTime();
+        for (int i = 0; i < CLIENTS; i++) {
+            parkUntil(loginStart + i * LOGIN_STORM_NANOS / CLIENTS);
+            clients.send(i, Protocol.HANDSHAKE + "u" + i);
+        }
+        awaitCondition("every client sees all users", () -> clients.allSeeUsers(CLIENTS));
+        Thread.sleep(2 * InMemoryBackend.DEFAULT_PRESENCE_TICK_MS); // let a trailing presence tick arrive
+
+        double presenceLines = (double) clients.totalUsersLines() / CLIENTS;
+        double threadsPerConnection = (double) (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) / CLIENTS;
+        double heapPerConnection = (double) (usedHeapAfterGc() - heapBefore) / CLIENTS;
+
+        checkMax("presence.linesPerClient.max", presenceLines);
+        checkMax("threads.perConnection.max", threadsPerConnection);
+        checkMax("heap.bytesPerConnection.max", heapPerConnection);
+    }
+
+    @Test
+    void broadcastsMeetThroughputAndLatencyBudgets() throws Exception {
+        int port = startServer();
+        clients = new Clients(port);
+        clients.connect(AUDIENCE);
+        for (int i = 0; i < AUDIENCE; i++) clients.send(i, Protocol.HANDSHAKE + "u" + i);
+        awaitCondition("every client sees all users", () -> clients.allSeeUsers(AUDIENCE));
+        clients.resetReads();
+
+        long messages = (long) SENDERS * MESSAGES_PER_SENDER;
+        long expected = messages * AUDIENCE;
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES_PER_SENDER; m++) {
+            for (int s = 0; s < SENDERS; s++) clients.send(s, Protocol.MSG + System.nanoTime());
+        }
+        awaitCondition("all messages delivered", () -> clients.deliveries() >= expected);
+        long nanos = System.nanoTime() - start;
+        double linesPerRead = (double) clients.deliveries() / clients.reads();
+
+        // Latency is only meaningful below saturation, so measure it at a steady, moderate rate.
+        clients.resetLatencies();
+        long paced = PACED_RATE * PACED_SECONDS;
+        long delivered = clients.deliveries();
+        long pacedStart = System.nanoTime();
+        for (long m = 0; m < paced; m++) {
+            parkUntil(pacedStart + m * 1_000_000_000L / PACED_RATE);
+            clients.send((int) (m % SENDERS), Protocol.MSG + System.nanoTime());
+        }
+        awaitCondition("paced messages delivered", () -> clients.deliveries() >= delivered + paced * AUDIENCE);
+
+        checkMin("broadcast.messagesPerSecond.min", messages * 1e9 / nanos);
+        checkMin("broadcast.linesPerRead.min", linesPerRead);
+        checkMax("broadcast.deliveryP99Millis.max", clients.latencyPercentile(99) / 1e6);
+    }
+
+    private int startServer() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        server = new ChatServer(port);
+        server.startAsync();
+        if (server.isReady(5000)) throw new IllegalStateException("Server did not start within 5s");
+        return port;
+    }
+
+    private static void checkMax(String budget, double value) {
+        double limit = Double.parseDouble(budgets.getProperty(budget));
+        System.out.printf("%-36s %12.3f (budget <= %s)%n", budget, value, limit);
+        assertTrue(value <= limit, budget + ": " + value + " exceeds " + limit);
+    }
+
+    private static void checkMin(String budget, double value) {
+        double limit = Double.parseDouble(budgets.getProperty(budget));
+        System.out.printf("%-36s %12.3f (budget >= %s)%n", budget, value, limit);
+        assertTrue(value >= limit, budget + ": " + value + " is below " + limit);
+    }
+
+    private static void parkUntil(long nanoTime) {
+        for (long wait; (wait = nanoTime - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+    }
+
+    private static void awaitCondition(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out waiting until " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Headless clients multiplexed on one selector thread, so the harness adds a fixed number of
+     * threads no matter how many clients it runs. Counters are written by the selector thread
+     * only and read by the test once they have settled.
+     */
+    private static final class Clients implements AutoCloseable {
+        private final int port;
+        private final Selector selector = Selector.open();
+        private final Thread thread = new Thread(this::run, "perf/clients");
+        private final ConcurrentLinkedQueue<Client> registrations = new ConcurrentLinkedQueue<>();
+        private final List<Client> all = new ArrayList<>();
+        private volatile boolean running = true;
+        private volatile long deliveries;
+        private volatile long reads;
+        /** Shared by all clients; a trailing partial line is copied out to its client. */
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private long[] latencies = new long[1 << 16];
+        private int latencyCount;
+
+        Clients(int port) throws IOException {
+            this.port = port;
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void connect(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                ch.configureBlocking(false);
+                Client c = new Client(ch);
+                all.add(c);
+                registrations.add(c);
+            }
+            selector.wakeup();
+        }
+
+        /** Writes one line, spinning while the socket is full. */
+        void send(int client, String line) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            SocketChannel ch = all.get(client).channel;
+            while (b.hasRemaining()) {
+                if (ch.write(b) == 0) Thread.onSpinWait();
+            }
+        }
+
+        boolean allSeeUsers(int n) {
+            for (Client c : all) {
+                if (c.users != n) return false;
+            }
+            return true;
+        }
+
+        long totalUsersLines() {
+            long n = 0;
+            for (Client c : all) n += c.usersLines;
+            return n;
+        }
+
+        long deliveries() {
+            return deliveries;
+        }
+
+        long reads() {
+            return reads;
+        }
+
+        void resetReads() {
+            reads = 0;
+        }
+
+        synchronized void resetLatencies() {
+            latencyCount = 0;
+        }
+
+        synchronized long latencyPercentile(int p) {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+        }
+
+        private synchronized void recordLatency(long nanos) {
+            if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            latencies[latencyCount++] = nanos;
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    for (Client c; (c = registrations.poll()) != null; ) c.channel.register(selector, SelectionKey.OP_READ, c);
+                    for (SelectionKey key : selector.selectedKeys()) read((Client) key.attachment());
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                if (running) throw new UncheckedIOException(e);
+            }
+        }
+
+        private void read(Client c) throws IOException {
+            ByteBuffer in = buffer.clear();
+            if (c.partial != null) in.put(c.partial);
+            int n = c.channel.read(in);
+            if (n < 0) {
+                c.channel.close();
+                return;
+            }
+            reads++;
+            byte[] a = in.array();
+            int start = 0;
+            for (int i = 0; i < in.position(); i++) {
+                if (a[i] == '\n') {
+                    onLine(c, new String(a, start, i - start, StandardCharsets.ISO_8859_1));
+                    start = i + 1;
+                }
+            }
+            c.partial = start == in.position() ? null : Arrays.copyOfRange(a, start, in.position());
+        }
+
+        private void onLine(Client c, String line) {
+            if (line.startsWith(Protocol.LIST_USERS)) {
+                c.usersLines++;
+                String csv = line.substring(Protocol.LIST_USERS.length());
+                c.users = csv.isEmpty() ? 0 : csv.split(",").length;
+            } else if (line.startsWith(Protocol.FROM)) {
+                recordLatency(System.nanoTime() - Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+                deliveries++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Client c : all) c.channel.close();
+            selector.close();
+        }
+    }
+
+    private static final class Client {
+        final SocketChannel channel;
+        byte[] partial;
+        volatile int users = -1;
+        volatile int usersLines;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
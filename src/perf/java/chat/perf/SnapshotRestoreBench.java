@@ -0,0 +1,61 @@
+package chat.perf;
+
+import chat.server.InMemoryBackend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a fresh backend takes to restore a snapshot of many resumable users.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=SnapshotRestoreBench}. The first argument sets the
+ * number of users (default 100000). Each restore goes into a new backend, as after a restart.
+ * </p>
+ */
+public final class SnapshotRestoreBench {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    private SnapshotRestoreBench() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        InMemoryBackend source = new InMemoryBackend();
+        source.setPresenceTickMillis(0);
+        for (int i = 0; i < users; i++) {
+            String nick = "user" + i;
+            source.reserveNick(nick);
+            source.issueResumeToken(nick);
+        }
+        long writeStart = System.nanoTime();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        source.writeSnapshot(buf);
+        long writeNanos = System.nanoTime() - writeStart;
+        byte[] snapshot = buf.toByteArray();
+        System.out.printf("users=%d snapshot=%d KiB write=%d ms%n",
+                users, snapshot.length / 1024, TimeUnit.NANOSECONDS.toMillis(writeNanos));
+
+        for (int i = 0; i < WARMUP; i++) restore(snapshot);
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long nanos = restore(snapshot);
+            best = Math.min(best, nanos);
+            total += nanos;
+        }
+        System.out.printf("restore: best=%d ms avg=%d ms%n",
+                TimeUnit.NANOSECONDS.toMillis(best), TimeUnit.NANOSECONDS.toMillis(total / RUNS));
+    }
+
+    private static long restore(byte[] snapshot) throws IOException {
+        InMemoryBackend target = new InMemoryBackend();
+        target.setPresenceTickMillis(0);
+        long start = System.nanoTime();
+        target.restoreSnapshot(new ByteArrayInputStream(snapshot));
+        return System.nanoTime() - start;
+    }
+}
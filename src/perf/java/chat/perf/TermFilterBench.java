@@ -0,0 +1,89 @@
+package chat.perf;
+
+import chat.server.TermFilter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what screening costs per message with a large term list.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=TermFilterBench}. Builds a {@link TermFilter} from the
+ * given number of terms (default 5000; a mix of words and link fragments), then screens typical
+ * chat messages of about 80 chars, some of which contain a term. For comparison it runs the same
+ * messages through a loop of {@code String.contains} calls, one per term, which is what the
+ * filter replaces. The second argument sets the number of messages (default 200000).
+ * </p>
+ */
+public final class TermFilterBench {
+    private static final int WORDS_PER_MESSAGE = 12;
+
+    private TermFilterBench() {
+    }
+
+    public static void main(String[] args) {
+        int termCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        SplittableRandom random = new SplittableRandom(42);
+
+        Map<String, TermFilter.Action> rules = new LinkedHashMap<>();
+        TermFilter.Action[] actions = TermFilter.Action.values();
+        while (rules.size() < termCount) {
+            String term = rules.size() % 5 == 0
+                    ? word(random, 6) + "." + word(random, 3) + "/"
+                    : word(random, 4 + random.nextInt(6));
+            rules.put(term, actions[random.nextInt(actions.length)]);
+        }
+        String[] terms = rules.keySet().toArray(new String[0]);
+
+        String[] texts = new String[10_000];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                // One message in fifty carries a banned term.
+                sb.append(w == 0 && i % 50 == 0 ? terms[random.nextInt(terms.length)] : word(random, 2 + random.nextInt(8)));
+                sb.append(' ');
+            }
+            texts[i] = sb.toString();
+        }
+
+        long start = System.nanoTime();
+        TermFilter filter = new TermFilter(rules);
+        System.out.printf("build: %d terms in %d ms%n", filter.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        for (int i = 0; i < messages; i++) filter.screen("alice", texts[i % texts.length]); // warm-up
+        int changed = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            String text = texts[i % texts.length];
+            if (filter.screen("alice", text) != text) changed++;
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("automaton: %.0f ns/message (%.0f msg/s), %d masked or rejected%n",
+                (double) nanos / messages, messages * 1e9 / nanos, changed);
+
+        int naiveMessages = Math.max(1, messages / 100);
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < naiveMessages; i++) {
+            String text = texts[i % texts.length];
+            for (String term : terms) {
+                if (text.contains(term)) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        nanos = System.nanoTime() - start;
+        System.out.printf("contains loop: %.0f ns/message (%.0f msg/s), %d hits%n",
+                (double) nanos / naiveMessages, naiveMessages * 1e9 / nanos, hits);
+    }
+
+    private static String word(SplittableRandom random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+}
@@ -0,0 +1,47 @@
+package chat.perf;
+
+import chat.server.InMemoryBackend;
+import chat.server.LineSink;
+
+/**
+ * Measures the heap the backend keeps per logged-in user.
+ * <p>
+ * Run with {@code ./gradlew bench -Pbench=UserFootprintBench}. Reserves and attaches the given
+ * number of users (default 100000) to a backend with four delivery partitions, all sharing one
+ * no-op sink so that only the backend's own structures are counted, and reports the growth of the
+ * used heap after a full collection divided by the number of users.
+ * </p>
+ */
+public final class UserFootprintBench {
+    private UserFootprintBench() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String[] nicks = new String[users];
+        for (int i = 0; i < users; i++) nicks[i] = "user" + i;
+        LineSink sink = line -> {
+        };
+
+        InMemoryBackend backend = new InMemoryBackend(4);
+        backend.setPresenceTickMillis(60_000);
+        long before = usedHeap();
+        for (String nick : nicks) {
+            backend.reserveNick(nick);
+            backend.attach(nick, sink, false);
+        }
+        Thread.sleep(500); // let the partitions take in their members
+        long after = usedHeap();
+        System.out.printf("%d users: %d bytes per user%n", users, (after - before) / users);
+        if (backend.usersCsv().isEmpty()) System.out.println(); // keep the backend reachable
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,125 @@
+package chat.app;
+
+import chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCacheTest {
+    private final Path file;
+
+    MessageCacheTest() throws IOException {
+        file = Files.createTempFile("history", ".bin");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    void messagesAndOwnerSurviveReopening() throws IOException {
+        try (MessageCache cache = MessageCache.open(file, 4096, 10)) {
+            assertEquals(List.of(), cache.lines());
+            assertNull(cache.owner());
+            cache.setOwner("bob");
+            cache.append(Protocol.FROM + "alice hello \u00e9t\u00e9");
+            cache.append(Protocol.LIST_USERS + "alice,bob"); // not a message
+            cache.append(Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob psst");
+        }
+
+        try (MessageCache cache = MessageCache.open(file, 4096, 10)) {
+            assertEquals(List.of(Protocol.FROM + "alice hello \u00e9t\u00e9",
+                    Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob psst"), cache.lines());
+            assertEquals("bob", cache.owner());
+        }
+    }
+
+    @Test
+    void fullRingDropsOldestMessagesWithoutGrowing() throws IOException {
+        List<String> appended = new ArrayList<>();
+        try (MessageCache cache = MessageCache.open(file, 1024, 1000)) {
+            for (int i = 0; i < 500; i++) {
+                String line = Protocol.FROM + "alice message " + i + "x".repeat(i % 37);
+                cache.append(line);
+                appended.add(line);
+
+                List<String> lines = cache.lines();
+                assertFalse(lines.isEmpty());
+                // Whatever is kept is the newest messages, in order.
+                assertEquals(appended.subList(appended.size() - lines.size(), appended.size()), lines);
+            }
+        }
+        assertTrue(Files.size(file) < 1024 + 100, "file grew to " + Files.size(file));
+        try (MessageCache cache = MessageCache.open(file, 1024, 1000)) {
+            assertEquals(appended.get(appended.size() - 1), cache.lines().get(cache.lines().size() - 1));
+        }
+    }
+
+    @Test
+    void keepsNewestMessagesPerConversation() throws IOException {
+        try (MessageCache cache = MessageCache.open(file, 4096, 2)) {
+            cache.append(Protocol.PRIV_FROM + "bob" + Protocol.PRIV_TO + "alice p1");
+            for (int i = 0; i < 5; i++) cache.append(Protocol.FROM + "carol m" + i);
+            cache.append(Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob p2");
+            cache.append(Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "carol q1");
+            cache.append(Protocol.PRIV_FROM + "bob" + Protocol.PRIV_TO + "alice p3");
+
+            assertEquals(List.of(
+                    Protocol.FROM + "carol m3",
+                    Protocol.FROM + "carol m4",
+                    Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob p2",
+                    Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "carol q1",
+                    Protocol.PRIV_FROM + "bob" + Protocol.PRIV_TO + "alice p3"), cache.lines());
+        }
+    }
+
+    @Test
+    void groupMessagesShareOneConversationWhoeverWrites() {
+        assertEquals("alice bob carol", MessageCache.conversation(Protocol.PRIV_FROM + "carol" + Protocol.PRIV_TO + "bob,alice hi"));
+        assertEquals("alice bob carol", MessageCache.conversation(Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob,carol hey"));
+        assertEquals("alice bob", MessageCache.conversation(Protocol.PRIV_FROM + "bob" + Protocol.PRIV_TO + "alice psst"));
+    }
+
+    @Test
+    void newOwnerStartsWithAnEmptyOwnerOnlyFile() throws IOException {
+        Files.delete(file);
+        String psst = Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob psst";
+        try (MessageCache cache = MessageCache.open(file, 4096, 10)) {
+            if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+            }
+            cache.setOwner("bob");
+            cache.append(psst);
+            cache.setOwner("bob");
+            assertEquals(List.of(psst), cache.lines());
+
+            cache.setOwner("carol");
+            assertEquals(List.of(), cache.lines());
+            assertEquals("carol", cache.owner());
+        }
+        assertFalse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains("psst"));
+    }
+
+    @Test
+    void foreignFileIsStartedAfreshAndOpenFileIsLocked() throws IOException {
+        Files.writeString(file, "not a cache");
+        try (MessageCache cache = MessageCache.open(file, 4096, 10)) {
+            assertEquals(List.of(), cache.lines());
+            cache.append(Protocol.FROM + "alice hi");
+            assertThrows(IOException.class, () -> MessageCache.open(file, 4096, 10));
+        }
+        try (MessageCache cache = MessageCache.open(file, 8192, 10)) {
+            assertEquals(List.of(), cache.lines()); // different size: not the same cache
+        }
+    }
+}
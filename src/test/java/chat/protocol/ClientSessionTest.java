@@ -3,6 +3,8 @@ package chat.protocol;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -19,6 +21,7 @@ class ClientSessionTest {
         assertEquals(Protocol.WELCOME, resp);
         assertEquals("alice", s.nick());
         verify(backend).reserveNick("alice");
+        verify(backend).sender("alice");
         verifyNoMoreInteractions(backend);
     }
 
@@ -42,6 +45,16 @@ class ClientSessionTest {
         verifyNoInteractions(backend);
     }
 
+    @Test
+    void hello_rejectsNickWithCommas() {
+        Backend backend = mock(Backend.class);
+        ClientSession s = new ClientSession(backend);
+
+        assertEquals(Protocol.ERR_INVALID_NICK, s.process(Protocol.HANDSHAKE + "a,b"));
+        assertEquals(Protocol.ERR_INVALID_NICK, s.process(Protocol.RESUME + "a,b tok"));
+        verifyNoInteractions(backend);
+    }
+
     @Test
     void hello_rejectsTooLongNick() {
         Backend backend = mock(Backend.class);
@@ -125,6 +138,66 @@ class ClientSessionTest {
         verify(backend).sendPrivate("alice", "bob", "hi");
     }
 
+    @Test
+    void priv_usesSenderResolvedAtLogin() {
+        Backend backend = mock(Backend.class);
+        Backend.Sender alice = () -> "alice";
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.sender("alice")).thenReturn(alice);
+        when(backend.sendPrivate(alice, "bob", "hi")).thenReturn(true);
+        when(backend.sendGroupPrivate(alice, List.of("bob", "carol"), "hi all")).thenReturn(new boolean[]{true, true});
+
+        ClientSession s = new ClientSession(backend);
+        s.process(Protocol.HANDSHAKE + "alice");
+
+        assertNull(s.process(Protocol.PRIV + "bob hi"));
+        assertNull(s.process(Protocol.GROUP_PRIV + "bob,carol hi all"));
+        verify(backend).sender("alice");
+        verify(backend).sendPrivate(alice, "bob", "hi");
+        verify(backend).sendGroupPrivate(alice, List.of("bob", "carol"), "hi all");
+    }
+
+    @Test
+    void groupPriv_sendsOnceToDistinctRecipientsAndNamesUndelivered() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.sendGroupPrivate("alice", List.of("bob", "carol", "dave"), "hi all"))
+                .thenReturn(new boolean[]{true, false, false});
+        when(backend.sendGroupPrivate("alice", List.of("bob"), "hi")).thenReturn(new boolean[]{true});
+
+        ClientSession s = new ClientSession(backend);
+        s.process(Protocol.HANDSHAKE + "alice");
+
+        assertEquals(Protocol.UNDELIVERED + "carol,dave", s.process(Protocol.GROUP_PRIV + "bob,carol,bob,,dave hi all"));
+        assertNull(s.process(Protocol.GROUP_PRIV + "bob hi"));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.GROUP_PRIV + "bob,carol"));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.GROUP_PRIV + ", hi"));
+        StringBuilder tooMany = new StringBuilder("u0");
+        for (int i = 1; i <= Protocol.MAX_GROUP_RECIPIENTS; i++) tooMany.append(",u").append(i);
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.GROUP_PRIV + tooMany + " hi"));
+        verify(backend, times(2)).sendGroupPrivate(anyString(), anyList(), anyString());
+    }
+
+    @Test
+    void file_passesOfferToBackendAndRejectsBadSizesAndNames() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.offerFile("alice", "bob", "build log.txt", 1234L)).thenReturn(true);
+
+        ClientSession s = new ClientSession(backend);
+        s.process(Protocol.HANDSHAKE + "alice");
+
+        assertNull(s.process(Protocol.FILE_OFFER + "bob 1234 build log.txt"));
+        assertEquals(Protocol.ERR_USER_NOT_FOUND, s.process(Protocol.FILE_OFFER + "zed 1 a.txt"));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.FILE_OFFER + "bob -1 a.txt"));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.FILE_OFFER + "bob big a.txt"));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.FILE_OFFER + "bob 1"));
+        for (String name : List.of(" ", ".", "..", "../a.txt", "dir/a.txt", "dir\\a.txt", "a\u0000b")) {
+            assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.FILE_OFFER + "bob 1 " + name), name);
+        }
+        verify(backend, times(2)).offerFile(anyString(), anyString(), anyString(), anyLong());
+    }
+
     @Test
     void priv_reportsInvalidMessage() {
         Backend backend = mock(Backend.class);
@@ -173,4 +246,113 @@ class ClientSessionTest {
         verify(backend).releaseNick("alice");
     }
 
+    @Test
+    void caps_acknowledgesOnlySupportedCapabilities() {
+        Backend backend = mock(Backend.class);
+        ClientSession s = new ClientSession(backend);
+
+        String resp = s.process(Protocol.CAPS + "bogus," + Protocol.CAP_RESUME);
+        assertEquals(Protocol.CAPS + Protocol.CAP_RESUME, resp);
+        assertTrue(s.hasCapability(Protocol.CAP_RESUME));
+        assertFalse(s.hasCapability("bogus"));
+        verifyNoInteractions(backend);
+    }
+
+    @Test
+    void hello_issuesResumeTokenWhenCapabilityEnabled() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.issueResumeToken("alice")).thenReturn("tok");
+
+        ClientSession s = new ClientSession(backend);
+        s.process(Protocol.CAPS + Protocol.CAP_RESUME);
+
+        assertEquals(Protocol.WELCOME, s.process(Protocol.HANDSHAKE + "alice"));
+        assertEquals("tok", s.resumeToken());
+        assertFalse(s.resumed());
+    }
+
+    @Test
+    void caps_afterLoginIssuesResumeTokenOnce() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.issueResumeToken("alice")).thenReturn("tok");
+
+        ClientSession s = new ClientSession(backend);
+        assertEquals(Protocol.WELCOME, s.process(Protocol.HANDSHAKE + "alice"));
+        assertNull(s.resumeToken());
+
+        assertEquals(Protocol.CAPS + Protocol.CAP_RESUME, s.process(Protocol.CAPS + Protocol.CAP_RESUME));
+        assertEquals("tok", s.resumeToken());
+        s.process(Protocol.CAPS + Protocol.CAP_RESUME + "," + Protocol.CAP_STAMPS);
+        verify(backend, times(1)).issueResumeToken("alice");
+    }
+
+    @Test
+    void resume_reclaimsReservationWithValidToken() {
+        Backend backend = mock(Backend.class);
+        when(backend.resumeNick("alice", "old")).thenReturn(true);
+        when(backend.issueResumeToken("alice")).thenReturn("new");
+
+        ClientSession s = new ClientSession(backend);
+        s.process(Protocol.CAPS + Protocol.CAP_RESUME);
+
+        assertEquals(Protocol.WELCOME, s.process(Protocol.RESUME + "alice old"));
+        assertEquals("alice", s.nick());
+        assertTrue(s.resumed());
+        assertEquals("new", s.resumeToken());
+        verify(backend, never()).reserveNick(anyString());
+    }
+
+    @Test
+    void resume_fallsBackToFreshReservation() {
+        Backend backend = mock(Backend.class);
+        when(backend.resumeNick("alice", "stale")).thenReturn(false);
+        when(backend.reserveNick("alice")).thenReturn(true);
+
+        ClientSession s = new ClientSession(backend);
+
+        assertEquals(Protocol.WELCOME, s.process(Protocol.RESUME + "alice stale"));
+        assertFalse(s.resumed());
+        assertNull(s.resumeToken());
+        verify(backend).reserveNick("alice");
+    }
+
+    @Test
+    void resume_rejectsNickHeldByAnotherSession() {
+        Backend backend = mock(Backend.class);
+        when(backend.resumeNick("alice", "wrong")).thenReturn(false);
+        when(backend.reserveNick("alice")).thenReturn(false);
+
+        ClientSession s = new ClientSession(backend);
+
+        assertEquals(Protocol.ERR_NICK_TAKEN, s.process(Protocol.RESUME + "alice wrong"));
+        assertNull(s.nick());
+    }
+
+    @Test
+    void search_delegatesToBackendAfterLogin() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        when(backend.search("alice", "release date")).thenReturn(true);
+        ClientSession s = new ClientSession(backend);
+
+        assertEquals(Protocol.ERR_NOT_LOGGED_IN, s.process(Protocol.SEARCH + "release"));
+        s.process(Protocol.HANDSHAKE + "alice");
+        assertNull(s.process(Protocol.SEARCH + " release date "));
+        assertEquals(Protocol.ERR_INVALID_MSG, s.process(Protocol.SEARCH + " "));
+        verify(backend).search("alice", "release date");
+    }
+
+    @Test
+    void typing_delegatesToBackendAfterLogin() {
+        Backend backend = mock(Backend.class);
+        when(backend.reserveNick("alice")).thenReturn(true);
+        ClientSession s = new ClientSession(backend);
+
+        assertEquals(Protocol.ERR_NOT_LOGGED_IN, s.process(Protocol.TYPING));
+        s.process(Protocol.HANDSHAKE + "alice");
+        assertNull(s.process(Protocol.TYPING));
+        verify(backend).typing("alice");
+    }
 }
@@ -0,0 +1,96 @@
+package chat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineDecoderTest {
+    private static final String OVERSIZED = "<oversized>";
+
+    /** Records lines and oversized reports in arrival order; stops after {@code stopAfter} lines. */
+    private static final class Recorder implements LineDecoder.Handler {
+        final List<String> events = new ArrayList<>();
+        int stopAfter = Integer.MAX_VALUE;
+
+        @Override
+        public boolean line(String line) {
+            events.add(line);
+            return events.size() < stopAfter;
+        }
+
+        @Override
+        public void oversized() {
+            events.add(OVERSIZED);
+        }
+    }
+
+    /** Feeds {@code input} in chunks of {@code chunk} bytes through a buffer kept like a connection keeps it. */
+    private static List<String> feed(LineDecoder decoder, byte[] input, int chunk, boolean direct) {
+        Recorder r = new Recorder();
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(decoder.maxLineBytes() + 2 + chunk) : ByteBuffer.allocate(decoder.maxLineBytes() + 2 + chunk);
+        for (int i = 0; i < input.length; i += chunk) {
+            buf.put(input, i, Math.min(chunk, input.length - i));
+            decoder.decode(buf.flip(), r);
+            assertTrue(buf.remaining() <= decoder.maxLineBytes() + 1, "kept " + buf.remaining());
+            buf.compact();
+        }
+        decoder.finish(buf.flip(), r);
+        assertFalse(buf.hasRemaining());
+        return r.events;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void linesSurviveEveryChunkBoundary() {
+        // \u00e9 and \u20ac are multi-byte in UTF-8, so some chunkings split them.
+        byte[] input = utf8("caf\u00e9\r\n\n10 \u20ac\nlast");
+        for (int chunk = 1; chunk <= input.length; chunk++) {
+            for (boolean direct : new boolean[]{false, true}) {
+                assertEquals(List.of("caf\u00e9", "", "10 \u20ac", "last"), feed(new LineDecoder(16), input, chunk, direct),
+                        "chunk " + chunk + (direct ? " direct" : ""));
+            }
+        }
+    }
+
+    @Test
+    void overlongLinesAreReportedOnceAndSkipped() {
+        byte[] input = utf8("ok\n" + "x".repeat(50) + "\nfine\n" + "y".repeat(11) + "\r\n" + "z".repeat(10) + "\r\nend");
+        for (int chunk : new int[]{1, 3, 7, 64, input.length}) {
+            assertEquals(List.of("ok", OVERSIZED, "fine", OVERSIZED, "z".repeat(10), "end"), feed(new LineDecoder(10), input, chunk, false),
+                    "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void stoppingLeavesTheRestInTheBuffer() {
+        LineDecoder decoder = new LineDecoder(100);
+        Recorder r = new Recorder();
+        r.stopAfter = 1;
+        ByteBuffer buf = ByteBuffer.wrap(utf8("one\ntwo\nthr"));
+
+        decoder.decode(buf, r);
+        assertEquals(List.of("one"), r.events);
+        assertEquals(4, buf.position());
+
+        r.stopAfter = Integer.MAX_VALUE;
+        decoder.decode(buf, r);
+        assertEquals(List.of("one", "two"), r.events);
+        assertEquals(8, buf.position()); // "thr" waits for its newline
+
+        decoder.finish(buf, r);
+        assertEquals(List.of("one", "two", "thr"), r.events);
+    }
+
+    @Test
+    void rejectsNonPositiveLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new LineDecoder(0));
+    }
+}
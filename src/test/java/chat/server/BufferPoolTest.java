@@ -0,0 +1,44 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    void servesSmallestFittingClassAndReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(2000);
+        assertTrue(small.isDirect());
+        assertEquals(BufferPool.SIZE_CLASSES[0], small.capacity());
+        assertEquals(BufferPool.SIZE_CLASSES[1], large.capacity());
+        assertEquals(2, pool.leasedBuffers());
+        assertEquals(2L * BufferPool.SLAB_SIZE, pool.allocatedBytes());
+
+        pool.release(small);
+        assertSame(small, pool.acquire(1));
+        assertEquals(2L * BufferPool.SLAB_SIZE, pool.allocatedBytes()); // no new slab
+    }
+
+    @Test
+    void rejectsOversizedRequests() {
+        BufferPool pool = new BufferPool();
+        assertThrows(IllegalArgumentException.class, () -> pool.acquire(BufferPool.maxBufferSize() + 1));
+    }
+
+    @Test
+    void leakTrackingReportsUnreleasedAndDoubleReleasedBuffers() {
+        BufferPool pool = new BufferPool(true);
+        ByteBuffer b = pool.acquire(10);
+        assertEquals(1, pool.leaks().size());
+
+        pool.release(b);
+        assertTrue(pool.leaks().isEmpty());
+        assertThrows(IllegalStateException.class, () -> pool.release(b));
+    }
+}
@@ -1,6 +1,9 @@
 package chat.server;
 
 import chat.protocol.Protocol;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
@@ -8,6 +11,15 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -172,4 +184,444 @@ public class ChatServerTest {
             assertFalse(usersA3.contains("bob"));
         }
     }
+
+    @Test
+    void droppedSessionResumesWithoutPresenceBroadcast() throws Exception {
+        int port = startServerOnFreePort();
+
+        try (Socket b = new Socket("127.0.0.1", port)) {
+            b.setSoTimeout(300);
+            BufferedReader inB = reader(b);
+            PrintWriter outB = writer(b);
+            outB.println(Protocol.HANDSHAKE + "bob");
+            assertEquals(Protocol.WELCOME, readNonUsers(inB));
+            assertEquals(Protocol.LIST_USERS + "bob", readUsers(inB));
+
+            String token;
+            try (Socket a = new Socket("127.0.0.1", port)) {
+                a.setSoTimeout(300);
+                BufferedReader inA = reader(a);
+                PrintWriter outA = writer(a);
+                outA.println(Protocol.CAPS + Protocol.CAP_RESUME);
+                assertEquals(Protocol.CAPS + Protocol.CAP_RESUME, inA.readLine());
+                outA.println(Protocol.HANDSHAKE + "alice");
+                assertEquals(Protocol.WELCOME, inA.readLine());
+                String tokenLine = inA.readLine();
+                assertTrue(tokenLine.startsWith(Protocol.TOKEN));
+                token = tokenLine.substring(Protocol.TOKEN.length());
+                assertTrue(readUsers(inB).contains("alice"));
+            }
+
+            try (Socket a2 = new Socket("127.0.0.1", port)) {
+                a2.setSoTimeout(300);
+                BufferedReader inA2 = reader(a2);
+                PrintWriter outA2 = writer(a2);
+                outA2.println(Protocol.RESUME + "alice " + token);
+                assertEquals(Protocol.WELCOME, inA2.readLine());
+                String users = readUsers(inA2);
+                assertTrue(users.contains("alice"));
+                assertTrue(users.contains("bob"));
+
+                // Bob never saw alice leave or come back.
+                assertThrows(java.net.SocketTimeoutException.class, () -> readUsers(inB));
+            }
+        }
+    }
+
+    @Test
+    void ioBuffersAreOnlyLeasedWhileDataIsInFlight() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        BufferPool pool = new BufferPool(true);
+        server = new ChatServer(port, new InMemoryBackend(), pool);
+        serverThread = server.startAsync();
+        assertFalse(server.isReady(2000));
+
+        try (Socket a = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(1000);
+            BufferedReader inA = reader(a);
+            PrintWriter outA = writer(a);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            outA.print(Protocol.MSG + "split "); // half a line keeps one small read buffer
+            outA.flush();
+            outA.println("line");
+            assertEquals(Protocol.FROM + "alice split line", readNonUsers(inA));
+
+            long deadline = System.currentTimeMillis() + 1000;
+            while (pool.leasedBuffers() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(0, pool.leasedBuffers(), pool.toString()); // idle connection holds nothing
+        }
+        server.stop();
+        assertEquals(List.of(), pool.leaks());
+    }
+
+    @Test
+    void failingConnectionIsClosedWithoutStoppingItsLoop() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        server = new ChatServer(port, new InMemoryBackend() {
+            @Override
+            public void broadcast(String fromNick, String text) {
+                if (text.equals("boom")) throw new IllegalStateException("boom");
+                super.broadcast(fromNick, text);
+            }
+        });
+        System.setProperty("chat.server.loops", "1"); // both connections on the loop that sees the failure
+        try {
+            serverThread = server.startAsync();
+            assertFalse(server.isReady(2000));
+        } finally {
+            System.clearProperty("chat.server.loops");
+        }
+
+        try (Socket a = new Socket("127.0.0.1", port); Socket b = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(1000);
+            b.setSoTimeout(1000);
+            BufferedReader inA = reader(a);
+            PrintWriter outA = writer(a);
+            BufferedReader inB = reader(b);
+            PrintWriter outB = writer(b);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            outB.println(Protocol.HANDSHAKE + "bob");
+            assertEquals(Protocol.WELCOME, readNonUsers(inB));
+
+            outA.println(Protocol.MSG + "boom");
+            assertNull(readNonUsers(inA));
+            outB.println(Protocol.MSG + "still here");
+            assertEquals(Protocol.FROM + "bob still here", readNonUsers(inB));
+        }
+    }
+
+    @Test
+    void connectionIsAttachedAtLoginAndWhenCapsChange() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        AtomicInteger attached = new AtomicInteger();
+        server = new ChatServer(port, new InMemoryBackend() {
+            @Override
+            public void attach(String nick, LineSink out, boolean stamped, Backlog backlog) {
+                attached.incrementAndGet();
+                super.attach(nick, out, stamped, backlog);
+            }
+        });
+        serverThread = server.startAsync();
+        assertFalse(server.isReady(2000));
+
+        try (Socket a = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(1000);
+            BufferedReader inA = reader(a);
+            PrintWriter outA = writer(a);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            for (int i = 0; i < 3; i++) {
+                outA.println(Protocol.MSG + "hi " + i);
+                assertEquals(Protocol.FROM + "alice hi " + i, readNonUsers(inA));
+            }
+            assertEquals(1, attached.get());
+
+            outA.println(Protocol.CAPS + Protocol.CAP_STAMPS);
+            assertEquals(Protocol.CAPS + Protocol.CAP_STAMPS, readNonUsers(inA));
+            outA.println(Protocol.MSG + "stamped");
+            String line = readNonUsers(inA);
+            assertTrue(line.startsWith(Protocol.STAMP) && line.endsWith(Protocol.FROM + "alice stamped"), line);
+            assertEquals(2, attached.get());
+        }
+    }
+
+    @Test
+    void resumeEnabledAfterLoginIssuesToken() throws Exception {
+        int port = startServerOnFreePort();
+
+        try (Socket a = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(1000);
+            BufferedReader inA = reader(a);
+            PrintWriter outA = writer(a);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            outA.println(Protocol.CAPS + Protocol.CAP_RESUME);
+            assertEquals(Protocol.CAPS + Protocol.CAP_RESUME, readNonUsers(inA));
+            String token = readNonUsers(inA);
+            assertTrue(token.startsWith(Protocol.TOKEN), token);
+        }
+    }
+
+    @Test
+    void overlongLineIsRejectedAndTheConnectionStaysUsable() throws Exception {
+        int port = startServerOnFreePort();
+        server.setMaxLineBytes(100); // set after start, like the limit itself, for new connections
+
+        try (Socket a = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(1000);
+            BufferedReader inA = reader(a);
+            PrintWriter outA = writer(a);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            // Far larger than any read buffer, so the server has to skip it rather than hold it.
+            outA.println(Protocol.MSG + "x".repeat(200_000));
+            assertEquals(Protocol.ERR_LINE_TOO_LONG, readNonUsers(inA));
+            outA.println(Protocol.MSG + "still here");
+            assertEquals(Protocol.FROM + "alice still here", readNonUsers(inA));
+        }
+    }
+
+    @Test
+    void fileTravelsOverTheTransferPortWhileChatGoesOn() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        server = new ChatServer(port);
+        server.enableFileTransfer(0, null, 1 << 20, 1 << 30);
+        serverThread = server.startAsync();
+        assertFalse(server.isReady(2000));
+        int transferPort = server.fileTransferPort();
+        assertTrue(transferPort > 0);
+
+        try (Socket a = new Socket("127.0.0.1", port);
+             Socket b = new Socket("127.0.0.1", port)) {
+            a.setSoTimeout(2000);
+            b.setSoTimeout(2000);
+            BufferedReader inA = reader(a);
+            BufferedReader inB = reader(b);
+            PrintWriter outA = writer(a);
+            PrintWriter outB = writer(b);
+            outA.println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            outB.println(Protocol.HANDSHAKE + "bob");
+            assertEquals(Protocol.WELCOME, readNonUsers(inB));
+
+            byte[] payload = "line one\nline two\n".getBytes(StandardCharsets.UTF_8);
+            outA.println(Protocol.FILE_OFFER + "bob " + payload.length + " notes.txt");
+            String[] upload = readNonUsers(inA).split(" ");
+            assertEquals(List.of(Protocol.FILE_UPLOAD.trim(), String.valueOf(transferPort), "notes.txt"),
+                    List.of(upload[0], upload[2], upload[3]));
+            String ticket = upload[1];
+
+            try (Socket t = new Socket("127.0.0.1", transferPort)) {
+                t.setSoTimeout(2000);
+                t.getOutputStream().write((Protocol.TRANSFER_PUT + ticket + "\n").getBytes(StandardCharsets.UTF_8));
+                t.getOutputStream().write(payload);
+                assertEquals(Protocol.TRANSFER_OK, reader(t).readLine());
+            }
+            assertEquals(Protocol.FILE_FROM + "alice " + transferPort + " " + ticket + " " + payload.length + " notes.txt",
+                    readNonUsers(inB));
+
+            outA.println(Protocol.MSG + "sent you my notes");
+            assertEquals(Protocol.FROM + "alice sent you my notes", readNonUsers(inB));
+
+            try (Socket t = new Socket("127.0.0.1", transferPort)) {
+                t.setSoTimeout(2000);
+                t.getOutputStream().write((Protocol.TRANSFER_GET + ticket + "\n").getBytes(StandardCharsets.UTF_8));
+                InputStream in = t.getInputStream();
+                assertEquals(Protocol.TRANSFER_OK + " " + payload.length + "\n",
+                        new String(in.readNBytes(4 + String.valueOf(payload.length).length()), StandardCharsets.UTF_8));
+                assertArrayEquals(payload, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void inboundLinesAreCapturedPerConnection() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        Path file = Files.createTempFile("capture", ".bin");
+        try {
+            server = new ChatServer(port);
+            server.enableCapture(file);
+            serverThread = server.startAsync();
+            assertFalse(server.isReady(2000));
+
+            try (Socket a = new Socket("127.0.0.1", port);
+                 Socket b = new Socket("127.0.0.1", port)) {
+                a.setSoTimeout(1000);
+                b.setSoTimeout(1000);
+                BufferedReader inA = reader(a);
+                PrintWriter outA = writer(a);
+                outA.println(Protocol.HANDSHAKE + "alice");
+                assertEquals(Protocol.WELCOME, readNonUsers(inA));
+                BufferedReader inB = reader(b);
+                PrintWriter outB = writer(b);
+                outB.println(Protocol.HANDSHAKE + "bob");
+                assertEquals(Protocol.WELCOME, readNonUsers(inB));
+                outA.println(Protocol.MSG + "hi");
+                assertEquals(Protocol.FROM + "alice hi", readNonUsers(inB));
+            }
+            server.stop();
+
+            List<TrafficCapture.Record> records = new ArrayList<>();
+            try (TrafficCapture.Reader reader = new TrafficCapture.Reader(Files.newInputStream(file))) {
+                for (TrafficCapture.Record r; (r = reader.next()) != null; ) records.add(r);
+            }
+            assertEquals(5, records.size(), records.toString());
+            int alice = records.get(0).connection();
+            int bob = records.get(1).connection();
+            assertNotEquals(alice, bob);
+            assertEquals(Protocol.HANDSHAKE + "alice", records.get(0).line());
+            assertEquals(Protocol.HANDSHAKE + "bob", records.get(1).line());
+            assertEquals(new TrafficCapture.Record(records.get(2).micros(), alice, Protocol.MSG + "hi"), records.get(2));
+            assertEquals(2, records.stream().skip(3).filter(r -> r.line() == null).count());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void filterFileIsAppliedAndReloadedWhenItChanges() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        Path file = Files.createTempFile("terms", ".txt");
+        try {
+            Files.writeString(file, "reject spam.example\n");
+            server = new ChatServer(port);
+            server.enableFilter(file, 10);
+            serverThread = server.startAsync();
+            assertFalse(server.isReady(2000));
+
+            try (Socket a = new Socket("127.0.0.1", port)) {
+                a.setSoTimeout(1000);
+                BufferedReader in = reader(a);
+                PrintWriter out = writer(a);
+                out.println(Protocol.HANDSHAKE + "alice");
+                assertEquals(Protocol.WELCOME, readNonUsers(in));
+                out.println(Protocol.MSG + "see spam.example");
+                assertEquals(Protocol.ERR_MESSAGE_REJECTED, readNonUsers(in));
+
+                Files.writeString(file, "mask spam.example\n");
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+                long deadline = System.currentTimeMillis() + 5000;
+                String line;
+                do {
+                    Thread.sleep(20);
+                    out.println(Protocol.MSG + "see spam.example");
+                    line = readNonUsers(in);
+                } while (Protocol.ERR_MESSAGE_REJECTED.equals(line) && System.currentTimeMillis() < deadline);
+                assertEquals(Protocol.FROM + "alice see ************", line);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void flightRecorderSeesConnectionLifecycleAndCommands() throws Exception {
+        Path file = Files.createTempFile("server", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : List.of("chat.ConnectionAccepted", "chat.ConnectionClosed", "chat.Login",
+                    "chat.Command", "chat.Broadcast", "chat.PrivateMessage")) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            int port = startServerOnFreePort();
+            try (Socket a = new Socket("127.0.0.1", port);
+                 Socket b = new Socket("127.0.0.1", port)) {
+                a.setSoTimeout(1000);
+                b.setSoTimeout(1000);
+                BufferedReader inA = reader(a);
+                PrintWriter outA = writer(a);
+                BufferedReader inB = reader(b);
+                PrintWriter outB = writer(b);
+                outA.println(Protocol.HANDSHAKE + "alice");
+                assertEquals(Protocol.WELCOME, readNonUsers(inA));
+                outB.println(Protocol.HANDSHAKE + "alice");
+                assertEquals(Protocol.ERR_NICK_TAKEN, readNonUsers(inB));
+                outA.println(Protocol.MSG + "hi");
+                assertEquals(Protocol.FROM + "alice hi", readNonUsers(inA));
+                outA.println(Protocol.PRIV + "nobody hi");
+                assertEquals(Protocol.ERR_USER_NOT_FOUND, readNonUsers(inA));
+            }
+            server.stop();
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Map<String, List<RecordedEvent>> byType = new HashMap<>();
+            for (RecordedEvent e : events) byType.computeIfAbsent(e.getEventType().getName(), k -> new ArrayList<>()).add(e);
+
+            assertEquals(2, byType.get("chat.ConnectionAccepted").size());
+            assertEquals(2, byType.get("chat.ConnectionClosed").size());
+            List<RecordedEvent> logins = byType.get("chat.Login");
+            assertEquals(2, logins.size());
+            assertEquals(1, logins.stream().filter(e -> e.getBoolean("succeeded")).count());
+            assertTrue(logins.stream().allMatch(e -> "alice".equals(e.getString("nick"))));
+            assertTrue(byType.get("chat.Command").stream().anyMatch(e -> "MSG".equals(e.getString("command"))));
+            RecordedEvent broadcast = byType.get("chat.Broadcast").get(0);
+            assertEquals("alice", broadcast.getString("sender"));
+            assertEquals(1, broadcast.getInt("recipients"));
+            assertFalse(byType.get("chat.PrivateMessage").get(0).getBoolean("delivered"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void senderIsNotReadWhileItsMessagesAreBackedUp() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        server = new ChatServer(port);
+        server.setBacklogLimit(64);
+        serverThread = server.startAsync();
+        assertFalse(server.isReady(2000));
+        int messages = 30_000;
+        String text = "y".repeat(1000); // far more in total than a slow reader's outbox may hold
+
+        try (Socket alice = new Socket("127.0.0.1", port);
+             Socket bob = new Socket("127.0.0.1", port)) {
+            alice.setSoTimeout(5000);
+            BufferedReader inA = reader(alice);
+            writer(alice).println(Protocol.HANDSHAKE + "alice");
+            assertEquals(Protocol.WELCOME, readNonUsers(inA));
+            BufferedReader inB = reader(bob);
+            PrintWriter outB = writer(bob);
+            outB.println(Protocol.HANDSHAKE + "bob");
+            assertEquals(Protocol.WELCOME, readNonUsers(inB));
+
+            Thread bobReads = new Thread(() -> {
+                try {
+                    while (inB.readLine() != null) {
+                        // bob receives his own broadcasts; keep his outbox empty
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            bobReads.start();
+            AtomicInteger sent = new AtomicInteger();
+            Thread bobWrites = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    outB.println(Protocol.MSG + i + " " + text);
+                    sent.incrementAndGet();
+                }
+            });
+            bobWrites.start();
+
+            // alice is not reading, so once the socket buffers are full bob must stop making progress.
+            for (int last = -1; bobWrites.isAlive() && sent.get() != last; Thread.sleep(200)) last = sent.get();
+            assertTrue(bobWrites.isAlive());
+            assertTrue(sent.get() < messages);
+
+            int received = 0;
+            for (String line; received < messages && (line = inA.readLine()) != null; ) {
+                if (line.startsWith(Protocol.FROM)) {
+                    assertTrue(line.startsWith(Protocol.FROM + "bob " + received + " "), line);
+                    received++;
+                }
+            }
+            assertEquals(messages, received); // nothing was dropped and alice was never cut off
+            bobWrites.join(5000);
+            assertFalse(bobWrites.isAlive());
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package chat.server;
+
+import chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransfersTest {
+    private Path spool;
+
+    @BeforeEach
+    void createSpool() throws IOException {
+        spool = Files.createTempDirectory("spool");
+    }
+
+    @AfterEach
+    void deleteSpool() throws IOException {
+        try (Stream<Path> files = Files.list(spool)) {
+            for (Path f : files.toList()) Files.delete(f);
+        }
+        Files.delete(spool);
+    }
+
+    private long spooledFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spool)) {
+            return files.count();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != '\n'; ) {
+            if (b < 0) return null;
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String put(int port, String ticket, byte[] payload, int length) throws IOException {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            out.write((Protocol.TRANSFER_PUT + ticket + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(payload, 0, length);
+            out.flush();
+            s.shutdownOutput();
+            return readLine(s.getInputStream());
+        }
+    }
+
+    @Test
+    void uploadIsAnnouncedOnceAndDownloadedUnchanged() throws IOException {
+        byte[] payload = new byte[300_000];
+        new Random(3).nextBytes(payload);
+        List<FileTransfers.Ticket> announced = new CopyOnWriteArrayList<>();
+        try (FileTransfers transfers = new FileTransfers(spool)) {
+            transfers.start(0);
+            FileTransfers.Ticket t = transfers.offer("alice", "bob", "dump.bin", payload.length, ticket -> announced.add(ticket));
+
+            assertEquals(Protocol.TRANSFER_OK, put(transfers.port(), t.id(), payload, payload.length));
+            assertEquals(List.of(t), announced);
+            assertEquals(1, spooledFiles());
+            assertEquals(Protocol.ERR_UNKNOWN_TICKET, put(transfers.port(), t.id(), payload, 1)); // only one upload per ticket
+
+            for (int i = 0; i < 2; i++) {
+                try (Socket s = new Socket("127.0.0.1", transfers.port())) {
+                    s.setSoTimeout(5000);
+                    s.getOutputStream().write((Protocol.TRANSFER_GET + t.id() + "\n").getBytes(StandardCharsets.UTF_8));
+                    InputStream in = s.getInputStream();
+                    assertEquals(Protocol.TRANSFER_OK + " " + payload.length, readLine(in));
+                    assertArrayEquals(payload, in.readAllBytes());
+                }
+            }
+        }
+        assertEquals(0, spooledFiles());
+    }
+
+    @Test
+    void failedUploadsLeaveNothingBehind() throws IOException {
+        try (FileTransfers transfers = new FileTransfers(spool)) {
+            transfers.start(0);
+            FileTransfers.Ticket truncated = transfers.offer("alice", "bob", "a.txt", 10, ticket -> true);
+            FileTransfers.Ticket unclaimed = transfers.offer("alice", "bob", "b.txt", 3, ticket -> false);
+
+            assertNull(put(transfers.port(), truncated.id(), new byte[5], 5));
+            assertEquals(Protocol.ERR_USER_NOT_FOUND, put(transfers.port(), unclaimed.id(), new byte[3], 3));
+            assertEquals(Protocol.ERR_UNKNOWN_TICKET, put(transfers.port(), "nope", new byte[0], 0));
+
+            assertEquals(0, transfers.tickets());
+            assertEquals(0, spooledFiles());
+        }
+    }
+
+    @Test
+    void transfersOfOneUserArePacedToTheBudget() throws IOException {
+        int chunks = 3;
+        byte[] payload = new byte[chunks * FileTransfers.CHUNK_BYTES];
+        // Every chunk after the first waits a quarter of a second.
+        try (FileTransfers transfers = new FileTransfers(spool, payload.length, 4L * FileTransfers.CHUNK_BYTES, 60_000)) {
+            transfers.start(0);
+            FileTransfers.Ticket t = transfers.offer("alice", "bob", "a.bin", payload.length, ticket -> true);
+
+            long start = System.nanoTime();
+            assertEquals(Protocol.TRANSFER_OK, put(transfers.port(), t.id(), payload, payload.length));
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(millis >= 450, millis + " ms");
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package chat.server;
 
+import chat.protocol.Backend;
 import chat.protocol.Protocol;
 import org.junit.jupiter.api.Test;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,6 +44,28 @@ class InMemoryBackendTest {
         assertTrue(list.contains("bob"));
     }
 
+    @Test
+    void nicksGetCompactIdsThatAreReusedAfterRelease() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        assertFalse(b.reserveNick("bob"));
+        b.reserveNick("carol");
+
+        assertEquals(0, b.idOf("alice"));
+        assertEquals(1, b.idOf("bob"));
+        assertEquals(2, b.idOf("carol"));
+        assertEquals("bob", b.nickOf(1));
+        assertEquals(-1, b.idOf("dave"));
+        assertNull(b.nickOf(3));
+
+        b.releaseNick("bob");
+        assertNull(b.nickOf(1));
+        b.reserveNick("dave");
+        assertEquals(1, b.idOf("dave"));
+        assertEquals("dave", b.nickOf(1));
+    }
+
     @Test
     void broadcastWritesToAllAttachedWriters() {
         InMemoryBackend b = new InMemoryBackend();
@@ -80,4 +111,667 @@ class InMemoryBackendTest {
         boolean ok = b.sendPrivate("alice", "missing", "hi");
         assertFalse(ok);
     }
-}
\ No newline at end of file
+
+    @Test
+    void groupPrivateSharesOneLineAndEchoesOnce() {
+        InMemoryBackend b = new InMemoryBackend();
+        List<String> alice = new ArrayList<>();
+        List<String> bob = new ArrayList<>();
+        List<String> carol = new ArrayList<>();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.reserveNick("carol");
+        b.attach("alice", alice::add, false);
+        b.attach("bob", bob::add, false);
+        b.attach("carol", carol::add, false);
+
+        boolean[] delivered = b.sendGroupPrivate("alice", List.of("bob", "zed", "carol"), "lunch?");
+
+        assertArrayEquals(new boolean[]{true, false, true}, delivered);
+        String line = Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob,carol lunch?";
+        assertEquals(List.of(line), bob);
+        assertEquals(List.of(line), carol);
+        assertEquals(List.of(line), alice);
+        assertSame(bob.get(0), carol.get(0));
+        assertSame(bob.get(0), alice.get(0));
+    }
+
+    @Test
+    void fileOfferIsRefusedWithoutTransferServiceOrOverTheLimit() throws IOException {
+        InMemoryBackend b = new InMemoryBackend();
+        List<String> alice = new ArrayList<>();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.attach("alice", alice::add, false);
+        b.attach("bob", line -> { }, false);
+
+        assertFalse(b.offerFile("alice", "zed", "a.txt", 1));
+        assertTrue(b.offerFile("alice", "bob", "a.txt", 1));
+        assertEquals(List.of(Protocol.ERR_NO_FILE_TRANSFER), alice);
+
+        try (FileTransfers transfers = new FileTransfers(null, 100, 1 << 20, 60_000)) {
+            transfers.start(0);
+            b.setFileTransfers(transfers);
+            alice.clear();
+            assertTrue(b.offerFile("alice", "bob", "a.txt", 101));
+            assertTrue(b.offerFile("alice", "bob", "a.txt", 100));
+            assertEquals(2, alice.size());
+            assertEquals(Protocol.ERR_FILE_TOO_LARGE, alice.get(0));
+            assertTrue(alice.get(1).startsWith(Protocol.FILE_UPLOAD), alice.get(1));
+            assertTrue(alice.get(1).endsWith(" " + transfers.port() + " a.txt"), alice.get(1));
+            assertEquals(1, transfers.tickets());
+        }
+    }
+
+    @Test
+    void groupPrivateReachesEveryPartitionAndTheOrderedRouter() throws InterruptedException {
+        for (boolean ordered : new boolean[]{false, true}) {
+            InMemoryBackend b = new InMemoryBackend(3);
+            if (ordered) b.enableOrderedDelivery();
+            List<List<String>> outs = new ArrayList<>();
+            List<String> nicks = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                List<String> out = new CopyOnWriteArrayList<>();
+                outs.add(out);
+                nicks.add("u" + i);
+                b.reserveNick("u" + i);
+                b.attach("u" + i, out::add, false);
+            }
+
+            // u0 also names itself: it must still get exactly one copy.
+            boolean[] delivered = b.sendGroupPrivate("u0", nicks, "hi");
+
+            assertArrayEquals(new boolean[]{true, true, true, true, true, true, true}, delivered);
+            String line = Protocol.PRIV_FROM + "u0" + Protocol.PRIV_TO + String.join(",", nicks) + " hi";
+            long deadline = System.currentTimeMillis() + 5000;
+            while (outs.stream().anyMatch(List::isEmpty) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            Thread.sleep(20);
+            for (List<String> out : outs) assertEquals(List.of(line), out, "ordered=" + ordered);
+        }
+    }
+
+    @Test
+    void droppedResumableSessionKeepsNickUntilResumed() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        LineSink w = new PrintWriter(new StringWriter(), true)::println;
+        b.attach("alice", w, false);
+        String token = b.issueResumeToken("alice");
+
+        b.connectionLost("alice", w, true);
+        assertTrue(b.usersCsv().contains("alice"));
+        assertFalse(b.reserveNick("alice"));
+
+        assertFalse(b.resumeNick("alice", "not-the-token"));
+        assertTrue(b.resumeNick("alice", token));
+        assertFalse(b.resumeNick("alice", token)); // tokens are single-use
+    }
+
+    @Test
+    void droppedResumableSessionIsReleasedAfterGracePeriod() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setResumeGraceMillis(50);
+        b.reserveNick("alice");
+        LineSink w = new PrintWriter(new StringWriter(), true)::println;
+        b.attach("alice", w, false);
+        String token = b.issueResumeToken("alice");
+
+        b.connectionLost("alice", w, true);
+        Thread.sleep(300);
+
+        assertFalse(b.usersCsv().contains("alice"));
+        assertFalse(b.resumeNick("alice", token));
+    }
+
+    @Test
+    void droppedSessionWithoutResumeIsReleasedImmediately() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        LineSink w = new PrintWriter(new StringWriter(), true)::println;
+        b.attach("alice", w, false);
+
+        b.connectionLost("alice", w, false);
+        assertFalse(b.usersCsv().contains("alice"));
+    }
+
+    @Test
+    void connectionLostIsIgnoredAfterTakeover() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        LineSink oldSink = new PrintWriter(new StringWriter(), true)::println;
+        LineSink newSink = new PrintWriter(new StringWriter(), true)::println;
+        b.attach("alice", oldSink, false);
+        b.attach("alice", newSink, false);
+
+        b.connectionLost("alice", oldSink, false);
+        assertTrue(b.usersCsv().contains("alice"));
+    }
+
+    @Test
+    void stampedWritersGetSequenceAndTimestamp() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        StringWriter wa = new StringWriter();
+        StringWriter wb = new StringWriter();
+        b.attachWriter("alice", new PrintWriter(wa, true), true);
+        b.attachWriter("bob", new PrintWriter(wb, true));
+
+        long before = System.currentTimeMillis();
+        b.broadcast("bob", "first");
+        b.sendPrivate("bob", "alice", "second");
+
+        String[] lines = wa.toString().split("\\R");
+        assertEquals(2, lines.length);
+        String[] first = lines[0].split(" ", 4);
+        String[] second = lines[1].split(" ", 4);
+        assertEquals(Protocol.STAMP.trim(), first[0]);
+        assertEquals(Protocol.FROM + "bob first", first[3]);
+        assertEquals(Protocol.PRIV_FROM + "bob" + Protocol.PRIV_TO + "alice second", second[3]);
+        assertTrue(Long.parseLong(second[1]) > Long.parseLong(first[1]));
+        assertTrue(Long.parseLong(first[2]) >= before);
+
+        // Writers without stamping keep the plain format.
+        assertTrue(wb.toString().startsWith(Protocol.FROM + "bob first"));
+    }
+
+    @Test
+    void parallelFanoutPreservesPerSenderOrder() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setParallelFanoutThreshold(1);
+        int recipients = 3 * InMemoryBackend.FANOUT_SHARD_SIZE;
+        int messages = 50;
+        StringWriter[] outs = new StringWriter[recipients];
+        for (int i = 0; i < recipients; i++) {
+            b.reserveNick("u" + i);
+            outs[i] = new StringWriter();
+            b.attachWriter("u" + i, new PrintWriter(outs[i], true));
+        }
+
+        for (int m = 0; m < messages; m++) b.broadcast("u0", "m" + m);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (StringWriter out : outs) {
+            while (out.toString().split("\\R").length < messages && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            String[] lines = out.toString().split("\\R");
+            assertEquals(messages, lines.length);
+            for (int m = 0; m < messages; m++) assertEquals(Protocol.FROM + "u0 m" + m, lines[m]);
+        }
+    }
+
+    @Test
+    void privateMessagesWaitBehindPendingParallelBroadcast() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setParallelFanoutThreshold(1);
+        int recipients = 3 * InMemoryBackend.FANOUT_SHARD_SIZE;
+        List<List<String>> outs = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            List<String> out = new CopyOnWriteArrayList<>();
+            outs.add(out);
+            b.reserveNick("u" + i);
+            b.attach("u" + i, out::add, true);
+        }
+
+        b.broadcast("u0", "first");
+        assertTrue(b.sendPrivate("u0", "u1", "second"));
+        assertArrayEquals(new boolean[]{true, true}, b.sendGroupPrivate("u0", List.of("u1", "u2"), "third"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < 3; i++) {
+            List<String> out = outs.get(i);
+            int expected = i == 2 ? 2 : 3;
+            while (out.size() < expected && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(expected, out.size(), "u" + i + ": " + out);
+            assertTrue(out.get(0).endsWith(Protocol.FROM + "u0 first"), out.toString());
+            assertTrue(out.get(out.size() - 1).endsWith(" third"), out.toString());
+            for (int k = 1; k < out.size(); k++) {
+                assertTrue(Long.parseLong(out.get(k - 1).split(" ")[1]) < Long.parseLong(out.get(k).split(" ")[1]), out.toString());
+            }
+        }
+    }
+
+    @Test
+    void throwingSinkDoesNotStallLaterParallelDeliveries() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setParallelFanoutThreshold(1);
+        Backlog backlog = new Backlog(Long.MAX_VALUE, 0, () -> {});
+        List<String> bob = new CopyOnWriteArrayList<>();
+        b.reserveNick("alice");
+        b.attach("alice", line -> {}, false, backlog);
+        b.reserveNick("bob");
+        b.attach("bob", bob::add, false);
+        for (int i = 0; i < 2 * InMemoryBackend.FANOUT_SHARD_SIZE; i++) {
+            b.reserveNick("u" + i);
+            b.attach("u" + i, line -> {
+                if (line.endsWith(" boom")) throw new IllegalStateException("sink failed");
+            }, false);
+        }
+
+        b.broadcast("alice", "boom");
+        b.broadcast("alice", "after");
+        assertTrue(b.sendPrivate("alice", "bob", "dm"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String dm = Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob dm";
+        while ((!bob.contains(dm) || backlog.queued() > 0) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        // Whether bob got "boom" depends on which shard failed first; the later lines must arrive in order.
+        assertEquals(List.of(Protocol.FROM + "alice after", dm), bob.subList(Math.max(0, bob.size() - 2), bob.size()));
+        assertEquals(0, backlog.queued());
+
+        // Once closed, the pool rejects new stages; they still run and release their charges.
+        b.close();
+        b.broadcast("alice", "late");
+        assertEquals(0, backlog.queued());
+    }
+
+    @Test
+    void resolvedSenderSendsLikeItsNickname() throws InterruptedException {
+        for (boolean ordered : new boolean[]{false, true}) {
+            InMemoryBackend b = new InMemoryBackend();
+            if (ordered) b.enableOrderedDelivery();
+            List<String> lines = new CopyOnWriteArrayList<>();
+            for (String nick : List.of("alice", "bob", "carol")) {
+                b.reserveNick(nick);
+                b.attach(nick, line -> {
+                    if (line.startsWith(Protocol.PRIV_FROM)) lines.add(nick + " " + line);
+                }, false);
+            }
+            Backend.Sender alice = b.sender("alice");
+            assertEquals("alice", alice.nick());
+            assertNull(b.sender("dave"));
+
+            assertTrue(b.sendPrivate(alice, "bob", "hi"));
+            assertFalse(b.sendPrivate(alice, "dave", "hi"));
+            assertArrayEquals(new boolean[]{true, false}, b.sendGroupPrivate(alice, List.of("carol", "dave"), "all"));
+
+            String hi = Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob hi";
+            String all = Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "carol all";
+            List<String> expected = List.of("bob " + hi, "alice " + hi, "carol " + all, "alice " + all);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (lines.size() < expected.size() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(expected, lines, "ordered " + ordered);
+            b.close();
+        }
+    }
+
+    @Test
+    void partitionedDeliveryPreservesPerSenderOrderAndDropsReleasedUsers() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend(4);
+        int users = 20;
+        int messages = 100;
+        List<List<String>> outs = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            List<String> out = new CopyOnWriteArrayList<>();
+            outs.add(out);
+            b.reserveNick("u" + i);
+            b.attach("u" + i, out::add, false);
+        }
+
+        for (int m = 0; m < messages; m++) {
+            b.broadcast("u0", "m" + m);
+            assertTrue(b.sendPrivate("u1", "u" + (2 + m % (users - 2)), "p" + m));
+        }
+        b.releaseNick("u5");
+        b.broadcast("u0", "after");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < users; i++) {
+            List<String> out = outs.get(i);
+            int expected = messages + (i == 5 ? 0 : 1);
+            while (out.stream().filter(l -> l.startsWith(Protocol.FROM)).count() < expected
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            List<String> publicLines = out.stream().filter(l -> l.startsWith(Protocol.FROM)).toList();
+            assertEquals(expected, publicLines.size(), "u" + i);
+            for (int m = 0; m < messages; m++) assertEquals(Protocol.FROM + "u0 m" + m, publicLines.get(m));
+            List<String> privateLines = out.stream().filter(l -> l.startsWith(Protocol.PRIV_FROM)).toList();
+            for (int k = 1; k < privateLines.size(); k++) {
+                int prev = Integer.parseInt(privateLines.get(k - 1).substring(privateLines.get(k - 1).lastIndexOf('p') + 1));
+                int next = Integer.parseInt(privateLines.get(k).substring(privateLines.get(k).lastIndexOf('p') + 1));
+                assertTrue(prev < next, privateLines.toString());
+            }
+        }
+        // u1 sees its own echo of every private message.
+        assertEquals(messages, outs.get(1).stream().filter(l -> l.startsWith(Protocol.PRIV_FROM)).count());
+    }
+
+    @Test
+    void partitionedDeliveryChargesSenderUntilDelivered() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Backlog backlog = new Backlog(100, 0, () -> {});
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.attach("alice", line -> {}, false, backlog);
+        b.attach("bob", line -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, false);
+
+        b.broadcast("alice", "one");
+        b.broadcast("alice", "two");
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        assertEquals(2, backlog.queued()); // one being delivered, one waiting in the mailbox
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (backlog.queued() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(0, backlog.queued());
+    }
+
+    @Test
+    void partitionedDeliveryReachesNewHolderOfReusedId() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend(2);
+        List<String> bob = new CopyOnWriteArrayList<>();
+        List<String> carol = new CopyOnWriteArrayList<>();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.attach("alice", line -> {}, false);
+        b.attach("bob", bob::add, false);
+        int id = b.idOf("bob");
+
+        b.releaseNick("bob");
+        b.reserveNick("carol");
+        assertEquals(id, b.idOf("carol"));
+        b.attach("carol", carol::add, false);
+        b.broadcast("alice", "hi");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (carol.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(List.of(Protocol.FROM + "alice hi"), carol);
+        assertEquals(List.of(), bob);
+    }
+
+    @Test
+    void orderedDeliveryGivesEveryRecipientTheSameOrder() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend(4);
+        b.enableOrderedDelivery();
+        int users = 12;
+        int senders = 4;
+        int messages = 200;
+        List<List<String>> outs = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            List<String> out = new CopyOnWriteArrayList<>();
+            outs.add(out);
+            b.reserveNick("u" + i);
+            b.attach("u" + i, out::add, true);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            String nick = "u" + s;
+            Thread t = new Thread(() -> {
+                for (int m = 0; m < messages; m++) b.broadcast(nick, "m" + m);
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (List<String> out : outs) {
+            while (out.size() < senders * messages && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(senders * messages, out.size());
+        }
+        List<String> first = outs.get(0);
+        for (List<String> out : outs) assertEquals(first, out);
+        long last = 0;
+        for (String line : first) {
+            long seq = Long.parseLong(line.split(" ")[1]);
+            assertTrue(seq > last, line);
+            last = seq;
+        }
+    }
+
+    @Test
+    void orderedDeliveryKeepsPrivateMessagesInSenderOrder() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.enableOrderedDelivery();
+        List<String> bob = new CopyOnWriteArrayList<>();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.attach("alice", line -> {}, false);
+        b.attach("bob", bob::add, false);
+
+        b.broadcast("alice", "one");
+        assertTrue(b.sendPrivate("alice", "bob", "two"));
+        assertFalse(b.sendPrivate("alice", "carol", "nobody"));
+        b.broadcast("alice", "three");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bob.size() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(List.of(Protocol.FROM + "alice one", Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob two",
+                Protocol.FROM + "alice three"), bob);
+    }
+
+    @Test
+    void presenceChangesAreCoalescedPerTick() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setPresenceTickMillis(100);
+        b.reserveNick("alice");
+        List<String> presence = new CopyOnWriteArrayList<>();
+        b.attach("alice", new LineSink() {
+            @Override
+            public void send(String line) {
+            }
+
+            @Override
+            public void sendPresence(String line) {
+                presence.add(line);
+            }
+        }, false);
+
+        long before = b.presenceVersion();
+        for (int i = 0; i < 10; i++) {
+            b.reserveNick("u" + i);
+            b.broadcastUsersList();
+        }
+        Thread.sleep(400);
+
+        assertEquals(before + 10, b.presenceVersion());
+        assertEquals(1, presence.size());
+        for (int i = 0; i < 10; i++) assertTrue(presence.get(0).contains("u" + i));
+    }
+
+    @Test
+    void snapshotRestoresResumableReservationsAndCounters() throws IOException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        b.reserveNick("bob"); // no token, cannot be resumed after a restart
+        String token = b.issueResumeToken("alice");
+        b.broadcast("alice", "hello");
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(1, b.writeSnapshot(snapshot));
+
+        InMemoryBackend restored = new InMemoryBackend();
+        assertEquals(1, restored.restoreSnapshot(new ByteArrayInputStream(snapshot.toByteArray())));
+        assertTrue(restored.usersCsv().contains("alice"));
+        assertFalse(restored.usersCsv().contains("bob"));
+        assertTrue(restored.presenceVersion() >= b.presenceVersion());
+
+        StringWriter w = new StringWriter();
+        assertTrue(restored.resumeNick("alice", token));
+        restored.attachWriter("alice", new PrintWriter(w, true), true);
+        restored.broadcast("alice", "again");
+        assertTrue(w.toString().startsWith(Protocol.STAMP + "2 "), w.toString()); // sequence continues
+    }
+
+    @Test
+    void restoreRejectsForeignData() {
+        InMemoryBackend b = new InMemoryBackend();
+        assertThrows(IOException.class, () -> b.restoreSnapshot(new ByteArrayInputStream(new byte[16])));
+    }
+
+    @Test
+    void restoreOfDamagedSnapshotReservesNothing() throws IOException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.issueResumeToken("alice");
+        b.issueResumeToken("bob");
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(2, b.writeSnapshot(snapshot));
+        byte[] bytes = snapshot.toByteArray();
+
+        InMemoryBackend restored = new InMemoryBackend();
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 3);
+        assertThrows(IOException.class, () -> restored.restoreSnapshot(new ByteArrayInputStream(truncated)));
+        byte[] negative = bytes.clone();
+        Arrays.fill(negative, 20, 24, (byte) 0xff); // the reservation count
+        assertThrows(IOException.class, () -> restored.restoreSnapshot(new ByteArrayInputStream(negative)));
+
+        assertEquals("", restored.usersCsv());
+        assertTrue(restored.reserveNick("alice"));
+        assertTrue(restored.reserveNick("bob"));
+    }
+
+    @Test
+    void searchSendsRankedHitsToRequester() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.reserveNick("alice");
+        List<String> lines = new CopyOnWriteArrayList<>();
+        b.attach("alice", lines::add, false);
+        b.broadcast("alice", "the build is green");
+        b.broadcast("alice", "lunch?");
+
+        // Indexing happens in the background, so retry until the message is searchable.
+        long deadline = System.currentTimeMillis() + 2000;
+        while (true) {
+            lines.clear();
+            assertTrue(b.search("alice", "build"));
+            if (lines.get(0).equals(Protocol.FOUND + "1") || System.currentTimeMillis() > deadline) break;
+            Thread.sleep(10);
+        }
+
+        assertEquals(Protocol.FOUND + "1", lines.get(0));
+        assertTrue(lines.get(1).startsWith(Protocol.HIT + "1 "), lines.get(1));
+        assertTrue(lines.get(1).endsWith(" alice the build is green"), lines.get(1));
+    }
+
+    @Test
+    void searchIsUnsupportedWithoutIndex() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setSearchIndex(null);
+        assertFalse(b.search("alice", "anything"));
+    }
+
+    @Test
+    void filterMasksOrRejectsMessagesBeforeDelivery() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setMessageFilter(new TermFilter(Map.of(
+                "darn", TermFilter.Action.MASK,
+                "spam.example", TermFilter.Action.REJECT)));
+        List<String> alice = new ArrayList<>();
+        List<String> bob = new ArrayList<>();
+        b.reserveNick("alice");
+        b.reserveNick("bob");
+        b.attach("alice", alice::add, false);
+        b.attach("bob", bob::add, false);
+
+        b.broadcast("alice", "darn it");
+        b.broadcast("alice", "visit spam.example");
+        assertTrue(b.sendPrivate("alice", "bob", "see spam.example"));
+        assertTrue(b.sendPrivate("alice", "bob", "darn"));
+
+        assertEquals(List.of(Protocol.FROM + "alice **** it",
+                Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob ****"), bob);
+        assertEquals(List.of(Protocol.FROM + "alice **** it",
+                Protocol.ERR_MESSAGE_REJECTED,
+                Protocol.ERR_MESSAGE_REJECTED,
+                Protocol.PRIV_FROM + "alice" + Protocol.PRIV_TO + "bob ****"), alice);
+    }
+
+    @Test
+    void typingNoticesAreRateLimitedCoalescedAndEphemeral() throws InterruptedException {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setPresenceTickMillis(100);
+        b.setTypingIntervalMillis(60_000);
+        List<String> ephemeral = new CopyOnWriteArrayList<>();
+        List<String> regular = new CopyOnWriteArrayList<>();
+        for (String nick : List.of("alice", "bob", "carol", "dave")) {
+            b.reserveNick(nick);
+            b.attach(nick, new LineSink() {
+                @Override
+                public void send(String line) {
+                    regular.add(nick + " " + line);
+                }
+
+                @Override
+                public void sendEphemeral(String line) {
+                    ephemeral.add(nick + " " + line);
+                }
+            }, false);
+        }
+        b.setTypingNotices("alice", true);
+        b.setTypingNotices("bob", true);
+        b.setTypingNotices("carol", true);
+
+        for (int i = 0; i < 5; i++) {
+            b.typing("bob");
+            b.typing("carol");
+        }
+        Thread.sleep(400);
+        b.typing("bob"); // still within the interval
+        Thread.sleep(300);
+
+        // dave did not negotiate the capability; bob and carol see the line naming the other one too.
+        assertEquals(3, ephemeral.size(), ephemeral.toString());
+        for (String line : ephemeral) {
+            assertTrue(line.contains(" " + Protocol.TYPING + " "), line);
+            assertTrue(line.contains("bob") && line.contains("carol"), line);
+        }
+        assertTrue(ephemeral.stream().noneMatch(l -> l.startsWith("dave ")));
+        assertEquals(List.of(), regular);
+    }
+
+    @Test
+    void typingUserDoesNotHearOwnNotice() {
+        InMemoryBackend b = new InMemoryBackend();
+        b.setPresenceTickMillis(0);
+        List<String> lines = new CopyOnWriteArrayList<>();
+        for (String nick : List.of("alice", "bob")) {
+            b.reserveNick(nick);
+            b.attach(nick, line -> lines.add(nick + " " + line), false);
+            b.setTypingNotices(nick, true);
+        }
+
+        b.typing("alice");
+
+        assertEquals(List.of("bob " + Protocol.TYPING + " alice"), lines);
+    }
+
+    @Test
+    void closeStopsEveryBackendThread() throws InterruptedException {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        InMemoryBackend partitioned = new InMemoryBackend(2);
+        partitioned.enableOrderedDelivery();
+        InMemoryBackend pooled = new InMemoryBackend();
+        pooled.setParallelFanoutThreshold(1);
+        for (InMemoryBackend b : List.of(partitioned, pooled)) {
+            LineSink sink = line -> {};
+            b.reserveNick("alice");
+            b.attach("alice", sink, false);
+            b.broadcast("alice", "hello"); // starts the indexer and, for the second, the fan-out pool
+            b.connectionLost("alice", sink, true); // schedules the resume grace timer
+        }
+        Set<Thread> started = new HashSet<>(Thread.getAllStackTraces().keySet());
+        started.removeAll(before);
+        assertFalse(started.isEmpty());
+
+        partitioned.close();
+        pooled.close();
+
+        for (Thread t : started) {
+            t.join(2000);
+            assertFalse(t.isAlive(), t.getName());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package chat.server;
+
+import chat.protocol.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxTest {
+    private final BufferPool pool = new BufferPool(true);
+
+    @AfterEach
+    void noBufferIsLeaked() {
+        assertEquals(List.of(), pool.leaks());
+    }
+
+    @Test
+    void pendingLinesAreWrittenInOneBatch() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("one");
+        out.send("two");
+        assertEquals(1, tasks.size()); // only one drain is scheduled while output is pending
+        assertEquals(0, bytes.size());
+
+        tasks.get(0).run();
+        assertEquals("one\ntwo\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void newerPresenceReplacesPendingOne() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("FROM: alice hi");
+        out.sendPresence("USERSalice");
+        out.sendPresence("USERSalice,bob");
+        out.send("FROM: bob hey");
+        tasks.get(0).run();
+
+        assertEquals("FROM: alice hi\nFROM: bob hey\nUSERSalice,bob\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void ephemeralLineIsDroppedBehindPendingOutput() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("FROM: alice hi");
+        out.sendEphemeral("TYPING bob");
+        tasks.remove(0).run();
+        out.sendEphemeral("TYPING carol");
+        tasks.remove(0).run();
+
+        assertEquals("FROM: alice hi\nTYPING carol\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void outboxThatWentIdleQueuesAgain() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+        Backlog sender = new Backlog(100, 50, () -> {});
+
+        for (int round = 0; round < 3; round++) {
+            out.send("FROM: alice " + round, sender);
+            out.sendPresence("USERSalice");
+            out.send("CAPS stamps");
+            assertEquals(1, tasks.size());
+            tasks.remove(0).run();
+            assertEquals(0, sender.queued());
+        }
+
+        assertEquals("CAPS stamps\nUSERSalice\nFROM: alice 0\n"
+                        + "CAPS stamps\nUSERSalice\nFROM: alice 1\n"
+                        + "CAPS stamps\nUSERSalice\nFROM: alice 2\n",
+                bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void controlLinesOvertakeQueuedChat() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("FROM: alice 1", Backlog.NONE);
+        out.send("FROM: bob 1", Backlog.NONE);
+        out.sendPresence("USERSalice,bob");
+        out.send("ERROR unknown user");
+        out.send("FROM: alice 2", Backlog.NONE);
+        tasks.get(0).run();
+
+        assertEquals("ERROR unknown user\nUSERSalice,bob\nFROM: alice 1\nFROM: bob 1\nFROM: alice 2\n",
+                bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void controlLineOvertakesChatTakenForWritingWhileStalled() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] budget = {0};
+        WritableByteChannel trickle = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = Math.min(budget[0], src.remaining());
+                for (int i = 0; i < n; i++) bytes.write(src.get());
+                budget[0] -= n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Outbox out = new Outbox(trickle, pool, tasks::add, () -> {}, () -> {});
+        String chat = "FROM: alice " + "x".repeat(1000);
+        int lines = 3 * Outbox.WRITE_BUFFER_SIZE / chat.length();
+
+        for (int i = 0; i < lines; i++) out.send(chat, Backlog.NONE);
+        tasks.remove(0).run(); // the whole queue is taken, one buffer of it is waiting for the socket
+        out.send(Protocol.WELCOME);
+        budget[0] = Integer.MAX_VALUE;
+        out.writable();
+        tasks.remove(0).run();
+
+        String written = bytes.toString(StandardCharsets.UTF_8);
+        int welcome = written.indexOf(Protocol.WELCOME + "\n");
+        assertTrue(welcome > 0 && welcome < 2 * Outbox.WRITE_BUFFER_SIZE, "WELCOME written at " + welcome);
+        assertEquals(lines, written.split("\n").length - 1);
+        assertEquals((chat + "\n").repeat(lines), written.replace(Protocol.WELCOME + "\n", ""));
+    }
+
+    @Test
+    void closedOutboxDropsOutput() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("lost");
+        out.close();
+        out.send("also lost");
+        tasks.forEach(Runnable::run);
+
+        assertEquals(0, bytes.size());
+    }
+
+    @Test
+    void fullChannelParksOutputUntilWritable() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] budget = {4};
+        int[] parked = {0};
+        WritableByteChannel trickle = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = Math.min(budget[0], src.remaining());
+                for (int i = 0; i < n; i++) bytes.write(src.get());
+                budget[0] -= n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Outbox out = new Outbox(trickle, pool, tasks::add, () -> parked[0]++, () -> {});
+
+        out.send("h\u00e9llo");
+        tasks.remove(0).run();
+        assertEquals(1, parked[0]);
+        assertEquals(1, pool.leasedBuffers()); // the unwritten rest stays in the leased buffer
+
+        budget[0] = Integer.MAX_VALUE;
+        out.writable();
+        tasks.remove(0).run();
+        assertEquals("h\u00e9llo\n", bytes.toString(StandardCharsets.UTF_8));
+        assertEquals(0, pool.leasedBuffers());
+    }
+
+    @Test
+    void linesLargerThanTheBufferAreSplitAcrossWrites() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+        String big = "\u20ac\uD83D\uDE00x".repeat(Outbox.WRITE_BUFFER_SIZE);
+
+        out.send(big);
+        tasks.get(0).run();
+
+        assertEquals(big + "\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void multiByteCharAcrossTheBufferBoundaryWaitsForTheNextWrite() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+        String line = "a".repeat(Outbox.WRITE_BUFFER_SIZE - 1) + "\u00e9 tail";
+        String emoji = "b".repeat(Outbox.WRITE_BUFFER_SIZE - 2) + "\uD83D\uDE00";
+
+        out.send(line);
+        out.send(emoji);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> tasks.get(0).run());
+
+        assertEquals(line + "\n" + emoji + "\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void queuedLinesChargeTheirSenderUntilEncoded() {
+        List<Runnable> tasks = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] changes = {0};
+        Backlog sender = new Backlog(2, 1, () -> changes[0]++);
+        Outbox out = new Outbox(Channels.newChannel(bytes), pool, tasks::add, () -> {}, () -> {});
+
+        out.send("FROM: bob one", sender);
+        out.send("FROM: bob two", sender);
+        out.sendPresence("USERSbob"); // presence is nobody's backlog
+        assertTrue(sender.paused());
+        assertEquals(2, sender.queued());
+
+        tasks.get(0).run();
+        assertFalse(sender.paused());
+        assertEquals(0, sender.queued());
+        assertEquals(2, changes[0]);
+    }
+
+    @Test
+    void slowClientOverflowDropsItsQueueAndReleasesSenders() {
+        List<Runnable> tasks = new ArrayList<>();
+        int[] overflows = {0};
+        Backlog sender = new Backlog(Long.MAX_VALUE, 0, () -> {});
+        Outbox out = new Outbox(Channels.newChannel(new ByteArrayOutputStream()), pool, tasks::add, () -> {},
+                () -> overflows[0]++);
+        String line = "x".repeat(1024);
+
+        for (long sent = 0; sent <= Outbox.MAX_PENDING_CHARS; sent += line.length()) out.send(line, sender);
+        out.send(line, sender); // already closed: ignored
+
+        assertEquals(1, overflows[0]);
+        assertEquals(0, sender.queued());
+        tasks.forEach(Runnable::run);
+    }
+}
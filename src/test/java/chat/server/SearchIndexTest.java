@@ -0,0 +1,65 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+
+    private static List<String> texts(List<SearchIndex.Hit> hits) {
+        return hits.stream().map(SearchIndex.Hit::text).toList();
+    }
+
+    @Test
+    void ranksByMatchedWordsThenRecency() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, 100, "alice", "Release is on Friday");
+        index.add(2, 200, "bob", "the release slipped");
+        index.add(3, 300, "alice", "lunch on friday?");
+
+        List<SearchIndex.Hit> hits = index.search("friday RELEASE", 10);
+
+        assertEquals(List.of("Release is on Friday", "lunch on friday?", "the release slipped"), texts(hits));
+        assertEquals(new SearchIndex.Hit(1, 100, "alice", "Release is on Friday"), hits.get(0));
+        assertEquals(1, index.search("friday release", 1).size());
+    }
+
+    @Test
+    void senderFilterRestrictsResults() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, 1, "alice", "deploy done");
+        index.add(2, 2, "bob", "deploy failed");
+        index.add(3, 3, "alice", "coffee");
+
+        assertEquals(List.of("deploy done"), texts(index.search("from:alice deploy", 10)));
+        assertEquals(List.of("coffee", "deploy done"), texts(index.search("from:alice", 10)));
+        assertTrue(index.search("from:carol deploy", 10).isEmpty());
+    }
+
+    @Test
+    void oldestMessagesAreEvictedAndIdsStayConsistentAcrossSweeps() {
+        SearchIndex index = new SearchIndex(8, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) index.add(i, i, "u", "msg" + i + " common");
+
+        assertEquals(8, index.size());
+        assertTrue(index.search("msg91", 10).isEmpty());
+        assertEquals(List.of("msg92 common"), texts(index.search("msg92", 10)));
+        List<SearchIndex.Hit> common = index.search("common", 10);
+        assertEquals(8, common.size());
+        assertEquals(99, common.get(0).seq());
+        assertEquals(92, common.get(7).seq());
+    }
+
+    @Test
+    void characterBudgetBoundsRetainedText() {
+        SearchIndex index = new SearchIndex(100, 10);
+        index.add(1, 1, "u", "aaaaa");
+        index.add(2, 2, "u", "bbbbb");
+        index.add(3, 3, "u", "ccccc");
+
+        assertEquals(2, index.size());
+        assertTrue(index.search("aaaaa", 10).isEmpty());
+    }
+}
@@ -0,0 +1,78 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SequencerTest {
+
+    @Test
+    void everyEntryIsHandledOnceInPerProducerOrderAcrossWraps() throws InterruptedException {
+        List<String> handled = new CopyOnWriteArrayList<>();
+        Sequencer q = new Sequencer(4, e -> handled.add(e.from + ":" + e.text), "test-router");
+        int producers = 4;
+        int messages = 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            String name = "p" + p;
+            Thread t = new Thread(() -> {
+                for (int m = 0; m < messages; m++) q.publish(Sequencer.PUBLIC, name, null, null, Integer.toString(m), Backlog.NONE);
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.size() < producers * messages && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(producers * messages, handled.size());
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (String h : handled) {
+            int p = Integer.parseInt(h.substring(1, h.indexOf(':')));
+            int m = Integer.parseInt(h.substring(h.indexOf(':') + 1));
+            assertEquals(last[p] + 1, m, h);
+            last[p] = m;
+        }
+    }
+
+    @Test
+    void fullRingDoesNotBlockTheProducer() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        Sequencer q = new Sequencer(2, e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(e.text);
+        }, "test-router");
+        int messages = 20;
+
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) q.publish(Sequencer.PUBLIC, "p", null, null, Integer.toString(m), Backlog.NONE);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(q.overflowed() >= messages - 3, "overflowed " + q.overflowed());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.size() < messages && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        List<String> expected = new ArrayList<>();
+        for (int m = 0; m < messages; m++) expected.add(Integer.toString(m));
+        assertEquals(expected, handled);
+        q.shutdown(1000);
+    }
+
+    @Test
+    void rejectsCapacityThatIsNotAPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new Sequencer(6, e -> {}, "test-router"));
+    }
+}
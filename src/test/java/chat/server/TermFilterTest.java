@@ -0,0 +1,107 @@
+package chat.server;
+
+import chat.server.TermFilter.Action;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TermFilterTest {
+
+    @Test
+    void appliesStrongestActionIgnoringCase() {
+        TermFilter f = new TermFilter(Map.of(
+                "darn", Action.MASK,
+                "spam.example", Action.REJECT,
+                "crypto", Action.FLAG));
+
+        assertEquals("hello there", f.screen("alice", "hello there"));
+        assertEquals("oh **** it, **** it all", f.screen("alice", "oh darn it, DaRn it all"));
+        assertEquals("buy Crypto now", f.screen("alice", "buy Crypto now"));
+        assertNull(f.screen("alice", "see http://SPAM.example/deal, darn"));
+    }
+
+    @Test
+    void wordTermsOnlyMatchWholeWordsButLinksMatchAnywhere() {
+        TermFilter f = new TermFilter(Map.of(
+                "ass", Action.MASK,
+                "bit.ly/", Action.REJECT));
+
+        assertEquals("a classic assessment", f.screen("alice", "a classic assessment"));
+        assertEquals("you ***!", f.screen("alice", "you ass!"));
+        assertNull(f.screen("alice", "look:https://bit.ly/x"));
+    }
+
+    @Test
+    void overlappingAndNestedTermsAreAllFound() {
+        TermFilter f = new TermFilter(Map.of(
+                "he", Action.MASK,
+                "she", Action.MASK,
+                "his", Action.MASK,
+                "hers", Action.MASK));
+
+        assertEquals("*** and **** and ***", f.screen("alice", "she and hers and his"));
+        assertEquals("ushers", f.screen("alice", "ushers"));
+    }
+
+    @Test
+    void agreesWithNaiveSearchOnRandomText() {
+        Random random = new Random(7);
+        Map<String, Action> rules = new LinkedHashMap<>();
+        for (int i = 0; i < 300; i++) rules.put(randomWord(random, 1 + random.nextInt(4)), Action.MASK);
+        TermFilter f = new TermFilter(rules);
+
+        for (int m = 0; m < 2_000; m++) {
+            String message = randomWord(random, random.nextInt(60));
+            assertEquals(naiveMask(rules, message), f.screen("alice", message), message);
+        }
+    }
+
+    @Test
+    void loadsTermFile() throws IOException {
+        Path file = Files.createTempFile("terms", ".txt");
+        try {
+            Files.writeString(file, "# banned\n\nreject Buy Followers\nmask darn\nflag darn\n");
+            TermFilter f = TermFilter.load(file);
+            assertEquals(2, f.size());
+            assertNull(f.screen("alice", "buy followers today"));
+            assertEquals("****", f.screen("alice", "darn"));
+
+            Files.writeString(file, "block darn\n");
+            IOException e = assertThrows(IOException.class, () -> TermFilter.load(file));
+            assertTrue(e.getMessage().contains(":1:"), e.getMessage());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static String randomWord(Random random, int length) {
+        char[] chars = new char[length];
+        // Dashes make words of the letters and, at the ends of a term, let it match inside words.
+        for (int i = 0; i < length; i++) chars[i] = "abc-".charAt(random.nextInt(4));
+        return new String(chars);
+    }
+
+    /** Masks every occurrence of every term that does not extend a word, scanning for each term separately. */
+    private static String naiveMask(Map<String, Action> rules, String text) {
+        char[] out = text.toCharArray();
+        for (String term : rules.keySet()) {
+            for (int i = text.indexOf(term); i >= 0; i = text.indexOf(term, i + 1)) {
+                int end = i + term.length();
+                boolean before = i == 0 || !Character.isLetterOrDigit(term.charAt(0))
+                        || !Character.isLetterOrDigit(text.charAt(i - 1));
+                boolean after = end == text.length() || !Character.isLetterOrDigit(term.charAt(term.length() - 1))
+                        || !Character.isLetterOrDigit(text.charAt(end));
+                if (before && after) Arrays.fill(out, i, end, '*');
+            }
+        }
+        return new String(out);
+    }
+}
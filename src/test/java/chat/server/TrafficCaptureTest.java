@@ -0,0 +1,55 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrafficCaptureTest {
+
+    @Test
+    void recordsRoundTripInOrderWithGrowingTimestamps() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TrafficCapture capture = new TrafficCapture(bytes)) {
+            capture.line(0, "HELLO alice");
+            capture.line(70_000, "MSG gr\u00fc\u00dfe \uD83D\uDC4B");
+            capture.closed(0);
+            capture.line(70_000, "x".repeat(100_000));
+        }
+
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            TrafficCapture.Record a = reader.next();
+            TrafficCapture.Record b = reader.next();
+            TrafficCapture.Record c = reader.next();
+            TrafficCapture.Record d = reader.next();
+            assertNull(reader.next());
+
+            assertEquals(0, a.connection());
+            assertEquals("HELLO alice", a.line());
+            assertEquals(70_000, b.connection());
+            assertEquals("MSG gr\u00fc\u00dfe \uD83D\uDC4B", b.line());
+            assertEquals(0, c.connection());
+            assertNull(c.line());
+            assertEquals(100_000, d.line().length());
+            assertTrue(a.micros() <= b.micros() && b.micros() <= c.micros() && c.micros() <= d.micros());
+        }
+    }
+
+    @Test
+    void recordsAfterCloseAreIgnored() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TrafficCapture capture = new TrafficCapture(bytes);
+        capture.close();
+        capture.line(1, "late");
+        assertEquals(4, bytes.size()); // header only
+    }
+
+    @Test
+    void readerRejectsOtherFiles() {
+        assertThrows(IOException.class,
+                () -> new TrafficCapture.Reader(new ByteArrayInputStream("HELLO alice\n".getBytes())));
+    }
+}